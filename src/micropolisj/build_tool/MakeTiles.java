@@ -1,12 +1,16 @@
 package micropolisj.build_tool;
 
+import micropolisj.engine.TileCatalog;
 import micropolisj.engine.TileSpec;
 import micropolisj.graphics.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.charset.Charset;
+import java.security.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
 import javax.imageio.*;
 import javax.swing.ImageIcon;
 import javax.xml.stream.*;
@@ -15,36 +19,125 @@ import static micropolisj.engine.TileSpec.generateTileNames;
 import static micropolisj.graphics.TileImage.*;
 import static micropolisj.XML_Helper.*;
 
+/**
+ * Composes the tile images named in tiles.rc into one tile array per
+ * tile size, plus an index (tiles.idx, and a binary copy tiles.idx.bin)
+ * of where each tile ended up.
+ * <p>
+ * Usage: MakeTiles RECIPE SIZE=OUTPUTDIR [SIZE=OUTPUTDIR ...]
+ * <br>
+ * or, for a single size given by the tile_size property,
+ * MakeTiles RECIPE OUTPUTDIR.
+ * <p>
+ * If the tile_catalog property names a file, the tile specifications
+ * are also compiled into that file (see TileCatalog).
+ * <p>
+ * All sizes are made in one run, sharing decoded source images, and
+ * frames are drawn on as many threads as there are processors.
+ * An output directory whose inputs have not changed since it was
+ * last generated (see tiles.stamp) is left alone.
+ */
 public class MakeTiles
 {
-	static HashMap<String,String> tileData = new HashMap<String,String>();
-
 	static final Charset UTF8 = Charset.forName("UTF-8");
 	static int SKIP_TILES = 0;
 	static int COUNT_TILES = -1;
-	static int TILE_SIZE = STD_SIZE;
+	static int THREADS = Runtime.getRuntime().availableProcessors();
+
+	/** Change this whenever a change to this program alters its output. */
+	static final String STAMP_VERSION = "3";
+
+	/** Number of frames drawn by one drawing task. */
+	static final int BAND_FRAMES = 64;
+
+	final int TILE_SIZE;
+	final File outputDir;
+	final MyLoaderContext loaderContext = new MyLoaderContext();
+
+	/** Every input file looked for, whether or not it exists. */
+	final Set<File> inputFiles = new TreeSet<File>();
+
+	Composer composer;
+	ArrayList<TileMapping> mappings;
+
+	MakeTiles(int tileSize, File outputDir)
+	{
+		this.TILE_SIZE = tileSize;
+		this.outputDir = outputDir;
+	}
 
 	public static void main(String [] args)
 		throws Exception
 	{
-		if (args.length != 2) {
+		if (args.length < 2) {
 			throw new Exception("Wrong number of arguments");
 		}
 
-		if (System.getProperty("tile_size") != null) {
-			TILE_SIZE = Integer.parseInt(System.getProperty("tile_size"));
-		}
 		if (System.getProperty("skip_tiles") != null) {
 			SKIP_TILES = Integer.parseInt(System.getProperty("skip_tiles"));
 		}
 		if (System.getProperty("tile_count") != null) {
 			COUNT_TILES = Integer.parseInt(System.getProperty("tile_count"));
 		}
+		if (System.getProperty("threads") != null) {
+			THREADS = Integer.parseInt(System.getProperty("threads"));
+		}
 
 		File recipeFile = new File(args[0]);
-		File outputDir = new File(args[1]);
+		ArrayList<MakeTiles> jobs = new ArrayList<MakeTiles>();
+
+		if (args.length == 2 && args[1].indexOf('=') == -1) {
+			int tileSize = STD_SIZE;
+			if (System.getProperty("tile_size") != null) {
+				tileSize = Integer.parseInt(System.getProperty("tile_size"));
+			}
+			jobs.add(new MakeTiles(tileSize, new File(args[1])));
+		}
+		else {
+			for (int i = 1; i < args.length; i++) {
+				String [] parts = args[i].split("=", 2);
+				if (parts.length != 2) {
+					throw new Exception("Invalid output specifier: "+args[i]);
+				}
+				jobs.add(new MakeTiles(Integer.parseInt(parts[0]), new File(parts[1])));
+			}
+		}
+
+		generateFromRecipe(recipeFile, jobs);
 
-		generateFromRecipe(recipeFile, outputDir);
+		if (System.getProperty("tile_catalog") != null) {
+			writeCatalog(recipeFile, new File(System.getProperty("tile_catalog")));
+		}
+	}
+
+	/**
+	 * Compiles the recipe's tile specifications into a binary catalog,
+	 * unless the file already holds the same catalog.
+	 */
+	static void writeCatalog(File recipeFile, File catalogFile)
+		throws IOException
+	{
+		byte [] recipeBytes = TileCatalog.readFully(new FileInputStream(recipeFile));
+		Properties recipe = new Properties();
+		recipe.load(new InputStreamReader(new ByteArrayInputStream(recipeBytes), UTF8));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TileCatalog.write(TileSpec.parseTiles(recipe), TileCatalog.checksum(recipeBytes), bytes);
+		byte [] catalog = bytes.toByteArray();
+
+		if (catalogFile.exists() && Arrays.equals(catalog, TileCatalog.readFully(new FileInputStream(catalogFile)))) {
+			System.out.println("Up to date: "+catalogFile);
+			return;
+		}
+
+		System.out.println("Generating tile catalog: "+catalogFile);
+		OutputStream out = new FileOutputStream(catalogFile);
+		try {
+			out.write(catalog);
+		}
+		finally {
+			out.close();
+		}
 	}
 
 	static class TileMapping {
@@ -70,7 +163,7 @@ public class MakeTiles
 		}
 	}
 
-	static class ComposeBuffer extends TileImage
+	class ComposeBuffer extends TileImage
 	{
 		File outFile;
 		String fileName;
@@ -78,7 +171,9 @@ public class MakeTiles
 		int maxWidth;
 		int nextOffsetY;
 		BufferedImage buf;
-		Graphics2D gr;
+
+		/** Frames laid out in this buffer, from top to bottom. */
+		ArrayList<ComposeFrame> frames = new ArrayList<ComposeFrame>();
 
 		ComposeBuffer(File outputDir, String fileName, boolean useAlpha)
 		{
@@ -89,10 +184,11 @@ public class MakeTiles
 
 		TileImageSprite prepareTile(Dimension size, TileImage refImage)
 		{
-			TileImageSprite s = new ComposeFrame(this, refImage);
+			ComposeFrame s = new ComposeFrame(this, refImage);
 			s.offsetY = this.nextOffsetY + size.height - TILE_SIZE;
 			this.nextOffsetY += size.height;
 			this.maxWidth = Math.max(maxWidth, size.width);
+			frames.add(s);
 			return s;
 		}
 
@@ -100,7 +196,36 @@ public class MakeTiles
 		{
 			this.buf = new BufferedImage(maxWidth,nextOffsetY,
 				useAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
-			this.gr = buf.createGraphics();
+		}
+
+		/**
+		 * Splits the drawing of this buffer's frames into tasks.
+		 * Each task draws a separate horizontal band of the buffer,
+		 * so the tasks can run at the same time.
+		 */
+		void addDrawTasks(Collection<Callable<Object>> tasks)
+		{
+			for (int i = 0; i < frames.size(); i += BAND_FRAMES) {
+				final List<ComposeFrame> band = frames.subList(i, Math.min(frames.size(), i + BAND_FRAMES));
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						drawBand(band);
+						return null;
+					}});
+			}
+		}
+
+		void drawBand(List<ComposeFrame> band)
+		{
+			int y0 = band.get(0).offsetY;
+			int y1 = band.get(band.size()-1).offsetY + TILE_SIZE;
+
+			Graphics2D gr = buf.getSubimage(0, y0, maxWidth, y1-y0).createGraphics();
+			gr.translate(0, -y0);
+			for (ComposeFrame f : band) {
+				f.refImage.drawTo(gr, f.offsetX, f.offsetY);
+			}
+			gr.dispose();
 		}
 
 		void writeFile()
@@ -114,7 +239,7 @@ public class MakeTiles
 		public void drawFragment(Graphics2D gr, int destX, int destY, int srcX, int srcY) { throw new UnsupportedOperationException(); }
 	}
 
-	static class Composer
+	class Composer
 	{
 		ComposeBuffer stanTiles;
 
@@ -134,10 +259,9 @@ public class MakeTiles
 			stanTiles.createBuffer();
 		}
 
-		Graphics2D getGr(TileImageSprite s)
+		void addDrawTasks(Collection<Callable<Object>> tasks)
 		{
-			ComposeBuffer cb = (ComposeBuffer) s.source;
-			return cb.gr;
+			stanTiles.addDrawTasks(tasks);
 		}
 
 		void writeFiles()
@@ -147,23 +271,114 @@ public class MakeTiles
 		}
 	}
 
-	static void generateFromRecipe(File recipeFile, File outputDir)
+	static void generateFromRecipe(File recipeFile, List<MakeTiles> jobs)
 		throws IOException
 	{
 		Properties recipe = new Properties();
-		recipe.load(
-			new InputStreamReader(
-				new FileInputStream(recipeFile),
-				UTF8
-			));
+		InputStream recipeStream = new FileInputStream(recipeFile);
+		try {
+			recipe.load(new InputStreamReader(recipeStream, UTF8));
+		}
+		finally {
+			recipeStream.close();
+		}
+		String recipeHash = hashFile(recipeFile);
+
+		final ArrayList<MakeTiles> outOfDate = new ArrayList<MakeTiles>();
+		for (MakeTiles job : jobs) {
+			if (job.isUpToDate(recipeHash)) {
+				System.out.println("Up to date: "+job.outputDir);
+			}
+			else {
+				outOfDate.add(job);
+			}
+		}
+		if (outOfDate.isEmpty()) {
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, THREADS));
+		try {
+
+		// lay out the tile arrays, one task per tile size
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final MakeTiles job : outOfDate) {
+			final Properties r = recipe;
+			tasks.add(new Callable<Object>() {
+				public Object call() throws IOException {
+					job.prepare(r);
+					return null;
+				}});
+		}
+		runAll(pool, tasks);
+
+		// actually assemble the images
+		tasks.clear();
+		for (MakeTiles job : outOfDate) {
+			job.composer.addDrawTasks(tasks);
+		}
+		runAll(pool, tasks);
+
+		// output the composed images and their indexes
+		tasks.clear();
+		for (final MakeTiles job : outOfDate) {
+			tasks.add(new Callable<Object>() {
+				public Object call() throws IOException {
+					job.writeOutput();
+					return null;
+				}});
+		}
+		runAll(pool, tasks);
+
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		for (MakeTiles job : outOfDate) {
+			job.writeStamp(recipeHash);
+		}
+	}
 
+	static void runAll(ExecutorService pool, List<Callable<Object>> tasks)
+		throws IOException
+	{
+		try {
+			for (Future<Object> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Parses the recipe and lays out the frames of every tile.
+	 */
+	void prepare(Properties recipe)
+		throws IOException
+	{
 		// count number of images
 		String [] tileNames = generateTileNames(recipe);
 		int ntiles = COUNT_TILES == -1 ? tileNames.length : COUNT_TILES;
 
 		// prepare mapping data
 		Composer c = new Composer(outputDir);
-		ArrayList<TileMapping> mappings = new ArrayList<TileMapping>();
+		mappings = new ArrayList<TileMapping>();
 
 		for (int i = 0; i < ntiles; i++) {
 			int tileNumber = SKIP_TILES + i;
@@ -187,28 +402,168 @@ public class MakeTiles
 			mappings.add(m);
 		}
 
-		// actually assemble the image
 		c.createBuffers();
+		this.composer = c;
+	}
 
-		for (TileMapping m : mappings) {
-
-			drawFrames(m.dest, c);
-		}
-
+	void writeOutput()
+		throws IOException
+	{
 		// make parent directories if necessary
 		outputDir.mkdirs();
 
 		// output the composed images
-		c.writeFiles();
+		composer.writeFiles();
 
 		// output an index of all tile names and their offset into
 		// the composed tile array
 		File indexFile = new File(outputDir, "tiles.idx");
 		System.out.println("Generating tiles index: "+indexFile);
 		writeIndexFile(mappings, indexFile);
+		writeBinaryIndexFile(mappings, new File(outputDir, "tiles.idx.bin"));
 	}
 
-	static TileImage prepareFrames(TileImage ref, Composer c)
+	File getStampFile()
+	{
+		return new File(outputDir, "tiles.stamp");
+	}
+
+	/**
+	 * Checks whether this output directory was generated from the
+	 * same recipe and input files as it would be now.
+	 */
+	boolean isUpToDate(String recipeHash)
+		throws IOException
+	{
+		File stampFile = getStampFile();
+		if (!stampFile.exists() ||
+			!new File(outputDir, "tiles.png").exists() ||
+			!new File(outputDir, "tiles.idx").exists() ||
+			!new File(outputDir, "tiles.idx.bin").exists())
+		{
+			return false;
+		}
+
+		Properties stamp = new Properties();
+		InputStream in = new FileInputStream(stampFile);
+		try {
+			stamp.load(in);
+		}
+		finally {
+			in.close();
+		}
+
+		Properties expected = makeStampHeader(recipeHash);
+		for (String key : expected.stringPropertyNames()) {
+			if (!expected.getProperty(key).equals(stamp.getProperty(key))) {
+				return false;
+			}
+		}
+
+		for (String key : stamp.stringPropertyNames()) {
+			if (key.startsWith("input.")) {
+				File f = new File(key.substring(6));
+				if (!stamp.getProperty(key).equals(hashFile(f))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	Properties makeStampHeader(String recipeHash)
+	{
+		Properties p = new Properties();
+		p.setProperty("version", STAMP_VERSION);
+		p.setProperty("tile_size", Integer.toString(TILE_SIZE));
+		p.setProperty("skip_tiles", Integer.toString(SKIP_TILES));
+		p.setProperty("tile_count", Integer.toString(COUNT_TILES));
+		p.setProperty("recipe", recipeHash);
+		return p;
+	}
+
+	void writeStamp(String recipeHash)
+		throws IOException
+	{
+		Properties stamp = makeStampHeader(recipeHash);
+		for (File f : inputFiles) {
+			stamp.setProperty("input."+f.getPath(), hashFile(f));
+		}
+
+		OutputStream out = new FileOutputStream(getStampFile());
+		try {
+			stamp.store(out, "MakeTiles inputs; delete to force regeneration");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Notes that the given file is an input to this tile set,
+	 * and tells whether it exists.
+	 */
+	boolean checkInput(File f)
+	{
+		inputFiles.add(f);
+		return f.exists();
+	}
+
+	static final Map<File,String> fileHashes = new HashMap<File,String>();
+
+	/**
+	 * Gets a digest of the file's contents, or "missing" if there is
+	 * no such file.
+	 */
+	static String hashFile(File f)
+		throws IOException
+	{
+		synchronized (fileHashes) {
+			String h = fileHashes.get(f);
+			if (h != null) {
+				return h;
+			}
+		}
+
+		String h;
+		if (!f.exists()) {
+			h = "missing";
+		}
+		else {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance("SHA-1");
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new Error("unexpected: "+e, e);
+			}
+
+			InputStream in = new FileInputStream(f);
+			try {
+				byte [] buf = new byte[8192];
+				int nread;
+				while ((nread = in.read(buf)) != -1) {
+					md.update(buf, 0, nread);
+				}
+			}
+			finally {
+				in.close();
+			}
+
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			h = sb.toString();
+		}
+
+		synchronized (fileHashes) {
+			fileHashes.put(f, h);
+		}
+		return h;
+	}
+
+	TileImage prepareFrames(TileImage ref, Composer c)
 	{
 		if (ref instanceof Animation) {
 
@@ -226,22 +581,6 @@ public class MakeTiles
 		}
 	}
 
-	static void drawFrames(TileImage dest, Composer c)
-	{
-		if (dest instanceof Animation) {
-			Animation ani = (Animation) dest;
-			for (Animation.Frame f : ani.frames) {
-				drawFrames(f.frame, c);
-			}
-		}
-		else {
-			assert dest instanceof ComposeFrame;
-
-			ComposeFrame f = (ComposeFrame) dest;
-			f.refImage.drawTo(c.getGr(f), f.offsetX, f.offsetY);
-		}
-	}
-
 	static void writeIndexFile(Collection<TileMapping> mappings, File indexFile)
 		throws IOException
 	{
@@ -270,6 +609,50 @@ public class MakeTiles
 		}
 	}
 
+	/**
+	 * Writes the same information as writeIndexFile(), in the binary
+	 * form read by TileImage.readTileImageBin().
+	 */
+	static void writeBinaryIndexFile(Collection<TileMapping> mappings, File indexFile)
+		throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			out.writeInt(BIN_INDEX_MAGIC);
+			out.writeInt(mappings.size());
+			for (TileMapping m : mappings) {
+				out.writeUTF(m.tileName);
+				writeImageRecord(out, m.dest);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	static void writeImageRecord(DataOutputStream out, TileImage dest)
+		throws IOException
+	{
+		if (dest instanceof Animation) {
+
+			Animation ani = (Animation) dest;
+			out.writeByte(BIN_ANIMATION);
+			out.writeShort(ani.frames.size());
+			for (Animation.Frame f : ani.frames) {
+				out.writeInt(f.duration);
+				writeImageRecord(out, f.frame);
+			}
+		}
+		else { //assume it is a simple sprite
+
+			TileImageSprite s = (TileImageSprite) dest;
+			out.writeByte(BIN_IMAGE);
+			out.writeInt(s.offsetX);
+			out.writeInt(s.offsetY);
+		}
+	}
+
 	static void writeImageTags(XMLStreamWriter out, TileImage dest)
 		throws XMLStreamException
 	{
@@ -294,13 +677,13 @@ public class MakeTiles
 			out.writeEndElement();
 		}
 	}
-	static TileImage parseFrameSpec(TileSpec spec)
+	TileImage parseFrameSpec(TileSpec spec)
 		throws IOException
 	{
 		return parseFrameSpec(spec.getImages());
 	}
 
-	static TileImage parseFrameSpec(String rawSpec)
+	TileImage parseFrameSpec(String rawSpec)
 		throws IOException
 	{
 		String [] parts = rawSpec.split("\\|");
@@ -310,7 +693,7 @@ public class MakeTiles
 		return parseFrameSpec(parts);
 	}
 
-	static TileImage parseFrameSpec(String [] layerStrings)
+	TileImage parseFrameSpec(String [] layerStrings)
 		throws IOException
 	{
 		TileImage result = null;
@@ -331,7 +714,7 @@ public class MakeTiles
 		return result;
 	}
 
-	static TileImage parseLayerSpec(String layerStr)
+	TileImage parseLayerSpec(String layerStr)
 		throws IOException
 	{
 		String [] parts = layerStr.split("@", 2);
@@ -376,7 +759,7 @@ public class MakeTiles
 	}
 
 	static File stagingDir = new File("generated");
-	static File renderSvg(String fileName, File svgFile)
+	File renderSvg(String fileName, File svgFile)
 		throws IOException
 	{
 		File pngFile = new File(stagingDir, fileName+"_"+TILE_SIZE+"x"+TILE_SIZE+".png");
@@ -423,11 +806,11 @@ public class MakeTiles
 		return pngFile;
 	}
 
-	static TileImage loadAnimation(String fileName)
+	TileImage loadAnimation(String fileName)
 		throws IOException
 	{
 		File f = new File(fileName + ".ani");
-		if (f.exists()) {
+		if (checkInput(f)) {
 			return Animation.load(f, loaderContext);
 		}
 		else {
@@ -435,7 +818,7 @@ public class MakeTiles
 		}
 	}
 
-	static class MyLoaderContext implements LoaderContext
+	class MyLoaderContext implements LoaderContext
 	{
 		HashMap<String,SourceImage> loadedImages = new HashMap<String,SourceImage>();
 
@@ -460,45 +843,44 @@ public class MakeTiles
 		public TileImage parseFrameSpec(String tmp)
 			throws IOException
 		{
-			return MakeTiles.parseFrameSpec(tmp);
+			return MakeTiles.this.parseFrameSpec(tmp);
 		}
 	}
-	static MyLoaderContext loaderContext = new MyLoaderContext();
 
-	static TileImage loadImage(String fileName)
+	TileImage loadImage(String fileName)
 		throws IOException
 	{
 		File xmlFile = new File(fileName + ".xml");
-		if (xmlFile.exists()) {
+		if (checkInput(xmlFile)) {
 			return loadImageXml(xmlFile);
 		}
 
 		return loaderContext.getImage(fileName);
 	}
 
-	static SourceImage loadImageReal(File pngFile, int basisSize)
+	SourceImage loadImageReal(File pngFile, int basisSize)
 		throws IOException
 	{
-		BufferedImage bi = ImageIO.read(pngFile);
+		BufferedImage bi = readImage(pngFile);
 		return new ScaledSourceImage(
 			bi,
 			basisSize,
 			TILE_SIZE);
 	}
 
-	static SourceImage loadImageNoCache(String fileName)
+	SourceImage loadImageNoCache(String fileName)
 		throws IOException
 	{
 		File svgFile, pngFile = null;
 
 		svgFile = new File(fileName+"_"+TILE_SIZE+"x"+TILE_SIZE+".svg");
 
-		if (svgFile.exists()) {
+		if (checkInput(svgFile)) {
 			pngFile = renderSvg(fileName, svgFile);
 		}
 		else {
 			svgFile = new File(fileName+".svg");
-			if (svgFile.exists()) {
+			if (checkInput(svgFile)) {
 				pngFile = renderSvg(fileName, svgFile);
 			}
 		}
@@ -508,26 +890,46 @@ public class MakeTiles
 		}
 
 		pngFile = new File(fileName+"_"+TILE_SIZE+"x"+TILE_SIZE+".png");
-		if (pngFile.exists()) {
+		if (checkInput(pngFile)) {
 			return loadImageReal(pngFile, TILE_SIZE);
 		}
 
 		if (TILE_SIZE < 128) {
 		pngFile = new File(fileName+"_128x128.png");
-		if (pngFile.exists()) {
+		if (checkInput(pngFile)) {
 			return loadImageReal(pngFile, 128);
 		}
 		}
 
 		pngFile = new File(fileName+".png");
-		if (pngFile.exists()) {
+		if (checkInput(pngFile)) {
 			return loadImageReal(pngFile, STD_SIZE);
 		}
 
 		throw new IOException("File not found: "+fileName+".{svg,png}");
 	}
 
-	static TileImage loadImageXml(File xmlFile)
+	/** Decoded source images, shared by all tile sizes. */
+	static final Map<File,BufferedImage> decodedImages = new HashMap<File,BufferedImage>();
+
+	static BufferedImage readImage(File pngFile)
+		throws IOException
+	{
+		synchronized (decodedImages) {
+			BufferedImage bi = decodedImages.get(pngFile);
+			if (bi != null) {
+				return bi;
+			}
+		}
+
+		BufferedImage bi = ImageIO.read(pngFile);
+		synchronized (decodedImages) {
+			decodedImages.put(pngFile, bi);
+		}
+		return bi;
+	}
+
+	TileImage loadImageXml(File xmlFile)
 		throws IOException
 	{
 		FileInputStream inStream = new FileInputStream(xmlFile);
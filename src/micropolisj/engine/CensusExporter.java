@@ -0,0 +1,248 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * Writes one CSV row of city statistics for every census taken,
+ * for analysing a city's dynamics offline.
+ * <p>
+ * Rows are copied into a fixed ring of preallocated int arrays and
+ * formatted and written by a background thread, so recording costs
+ * the simulation only a few dozen field reads per census and
+ * allocates nothing. If the writer falls a full ring behind, rows are
+ * dropped rather than making the simulation wait (see getRowsDropped()).
+ */
+public class CensusExporter implements Micropolis.Listener
+{
+	static final String [] COLUMNS = {
+		"cityTime",
+		"resPop", "comPop", "indPop", "cityPop",
+		"resValve", "comValve", "indValve",
+		"crimeAverage", "pollutionAverage", "landValueAverage", "trafficAverage",
+		"totalFunds", "cashFlow", "cityScore",
+		"resZoneCount", "comZoneCount", "indZoneCount",
+		"poweredZoneCount", "unpoweredZoneCount"
+		};
+
+	/** Number of rows that can wait to be written. */
+	static final int RING_SIZE = 4096;
+
+	final Micropolis engine;
+	final Writer out;
+	final Thread writerThread;
+
+	final int [][] ring = new int[RING_SIZE][COLUMNS.length];
+	long produced;   //rows added by the simulation
+	long consumed;   //rows taken by the writer thread
+	int rowsDropped;
+	boolean closing;
+	IOException failure;
+
+	public CensusExporter(Micropolis engine, File outFile)
+		throws IOException
+	{
+		this.engine = engine;
+		this.out = new BufferedWriter(
+			new OutputStreamWriter(
+				new FileOutputStream(outFile),
+				Charset.forName("UTF-8")
+			), 64*1024);
+
+		for (int i = 0; i < COLUMNS.length; i++) {
+			out.write(i == 0 ? COLUMNS[i] : ","+COLUMNS[i]);
+		}
+		out.write('\n');
+
+		writerThread = new Thread("CensusExporter-"+outFile.getName()) {
+			public void run() {
+				writeRows();
+			}};
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		engine.addListener(this);
+	}
+
+	/**
+	 * Stops recording, writes any rows still waiting, and closes
+	 * the file.
+	 * @throws IOException if the writer thread failed at any point
+	 */
+	public void close()
+		throws IOException
+	{
+		engine.removeListener(this);
+
+		synchronized (this) {
+			closing = true;
+			notifyAll();
+		}
+		try {
+			writerThread.join();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Gets the number of rows lost because the writer thread had
+	 * fallen a full ring behind.
+	 */
+	public synchronized int getRowsDropped()
+	{
+		return rowsDropped;
+	}
+
+	//implements Micropolis.Listener
+	public void censusChanged()
+	{
+		int [] row;
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			if (produced - consumed >= RING_SIZE) {
+				rowsDropped++;
+				return;
+			}
+			row = ring[(int)(produced % RING_SIZE)];
+		}
+
+		int i = 0;
+		row[i++] = engine.cityTime;
+		row[i++] = engine.resPop;
+		row[i++] = engine.comPop;
+		row[i++] = engine.indPop;
+		row[i++] = engine.getCityPopulation();
+		row[i++] = engine.resValve;
+		row[i++] = engine.comValve;
+		row[i++] = engine.indValve;
+		row[i++] = engine.crimeAverage;
+		row[i++] = engine.pollutionAverage;
+		row[i++] = engine.landValueAverage;
+		row[i++] = engine.trafficAverage;
+		row[i++] = engine.budget.totalFunds;
+		row[i++] = engine.cashFlow;
+		row[i++] = engine.evaluation.cityScore;
+		row[i++] = engine.resZoneCount;
+		row[i++] = engine.comZoneCount;
+		row[i++] = engine.indZoneCount;
+		row[i++] = engine.poweredZoneCount;
+		row[i++] = engine.unpoweredZoneCount;
+		assert i == COLUMNS.length;
+
+		synchronized (this) {
+			produced++;
+			notifyAll();
+		}
+	}
+
+	void writeRows()
+	{
+		// enough for every column at full int width, plus separators
+		char [] buf = new char[COLUMNS.length * 12];
+
+		try {
+			for (;;) {
+				int [] row;
+				synchronized (this) {
+					while (consumed == produced && !closing) {
+						wait();
+					}
+					if (consumed == produced) {
+						break;
+					}
+					row = ring[(int)(consumed % RING_SIZE)];
+				}
+
+				int len = 0;
+				for (int i = 0; i < row.length; i++) {
+					if (i != 0) {
+						buf[len++] = ',';
+					}
+					len = formatInt(row[i], buf, len);
+				}
+				buf[len++] = '\n';
+				out.write(buf, 0, len);
+
+				synchronized (this) {
+					consumed++;
+				}
+			}
+		}
+		catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+			}
+		}
+		catch (InterruptedException e) {
+			synchronized (this) {
+				failure = new InterruptedIOException();
+			}
+		}
+		finally {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				synchronized (this) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the decimal digits of a number into a character array.
+	 * @return the index just past the last character written
+	 */
+	static int formatInt(int value, char [] buf, int pos)
+	{
+		if (value == Integer.MIN_VALUE) {
+			String s = Integer.toString(value);
+			s.getChars(0, s.length(), buf, pos);
+			return pos + s.length();
+		}
+
+		if (value < 0) {
+			buf[pos++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+
+		int end = pos + digits;
+		for (int i = end - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return end;
+	}
+
+	//implements Micropolis.Listener
+	public void cityMessage(MicropolisMessage message, CityLocation loc) {}
+	public void citySound(Sound sound, CityLocation loc) {}
+	public void demandChanged() {}
+	public void evaluationChanged() {}
+	public void fundsChanged() {}
+	public void optionsChanged() {}
+}
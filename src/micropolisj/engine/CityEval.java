@@ -16,14 +16,12 @@ import java.util.*;
 public class CityEval
 {
 	private final Micropolis engine;
-	private final Random PRNG;
 
 	public CityEval(Micropolis engine)
 	{
 		this.engine = engine;
-		this.PRNG = engine.PRNG;
 
-		assert PRNG != null;
+		assert engine.PRNG != null;
 	}
 
 	/** Percentage of population "approving" the mayor. Derived from cityScore. */
@@ -53,11 +51,11 @@ public class CityEval
 	/** City's top 4 (or fewer) problems as reported by citizens. */
 	public CityProblem [] problemOrder = new CityProblem[0];
 
-	/** Number of votes given for the various problems identified by problemOrder[]. */
-	public EnumMap<CityProblem,Integer> problemVotes = new EnumMap<CityProblem,Integer>(CityProblem.class);
+	/** Number of votes given for each problem, indexed by CityProblem.ordinal(). */
+	public int [] problemVotes = new int[CityProblem.values().length];
 
-	/** Score for various problems. */
-	public EnumMap<CityProblem,Integer> problemTable = new EnumMap<CityProblem,Integer>(CityProblem.class);
+	/** Score for each problem, indexed by CityProblem.ordinal(). */
+	public int [] problemTable = new int[CityProblem.values().length];
 
 	/**
 	 * Perform an evaluation.
@@ -85,7 +83,7 @@ public class CityEval
 		cityClass = 0;
 		cityScore = 500;
 		deltaCityScore = 0;
-		problemVotes.clear();
+		Arrays.fill(problemVotes, 0);
 		problemOrder = new CityProblem[0];
 	}
 
@@ -122,71 +120,67 @@ public class CityEval
 
 	void doProblems()
 	{
-		problemTable.clear();
-		problemTable.put(CityProblem.CRIME, engine.crimeAverage);
-		problemTable.put(CityProblem.POLLUTION, engine.pollutionAverage);
-		problemTable.put(CityProblem.HOUSING, (int)Math.round(engine.landValueAverage * 0.7));
-		problemTable.put(CityProblem.TAXES, engine.cityTax * 10);
-		problemTable.put(CityProblem.TRAFFIC, averageTrf());
-		problemTable.put(CityProblem.UNEMPLOYMENT, getUnemployment());
-		problemTable.put(CityProblem.FIRE, getFire());
-
-		problemVotes = voteProblems(problemTable);
-
-		CityProblem [] probOrder = CityProblem.values();
-		Arrays.sort(probOrder, new Comparator<CityProblem>() {
-			public int compare(CityProblem a, CityProblem b) {
-				return -(problemVotes.get(a).compareTo(problemVotes.get(b)));
-			}});
+		problemTable[CityProblem.CRIME.ordinal()] = engine.crimeAverage;
+		problemTable[CityProblem.POLLUTION.ordinal()] = engine.pollutionAverage;
+		problemTable[CityProblem.HOUSING.ordinal()] = (int)Math.round(engine.landValueAverage * 0.7);
+		problemTable[CityProblem.TAXES.ordinal()] = engine.cityTax * 10;
+		problemTable[CityProblem.TRAFFIC.ordinal()] = averageTrf();
+		problemTable[CityProblem.UNEMPLOYMENT.ordinal()] = getUnemployment();
+		problemTable[CityProblem.FIRE.ordinal()] = getFire();
+
+		voteProblems(problemTable, problemVotes);
+
+		// order problems by number of votes, most first;
+		// ties keep their declaration order
+		CityProblem [] pp = CityProblem.values();
+		int [] probOrder = new int[pp.length];
+		for (int i = 0; i < pp.length; i++) {
+			int j = i;
+			while (j > 0 && problemVotes[probOrder[j-1]] < problemVotes[i]) {
+				probOrder[j] = probOrder[j-1];
+				j--;
+			}
+			probOrder[j] = i;
+		}
 
 		int c = 0;
 		while (c < probOrder.length &&
-				problemVotes.get(probOrder[c]).intValue() != 0 &&
+				problemVotes[probOrder[c]] != 0 &&
 				c < 4)
 			c++;
 
 		problemOrder = new CityProblem[c];
 		for (int i = 0; i < c; i++) {
-			problemOrder[i] = probOrder[i];
+			problemOrder[i] = pp[probOrder[i]];
 		}
 	}
 
-	EnumMap<CityProblem,Integer> voteProblems(Map<CityProblem,Integer> probTab)
+	/**
+	 * Polls citizens about the problems in probTab.
+	 * @param votes receives the number of votes for each problem
+	 */
+	void voteProblems(int [] probTab, int [] votes)
 	{
-		CityProblem [] pp = CityProblem.values();
-		int [] votes = new int[pp.length];
+		final int n = probTab.length;
+		Arrays.fill(votes, 0);
 
 		int countVotes = 0;
 		for (int i = 0; i < 600; i++) {
-			if (PRNG.nextInt(301) < probTab.get(pp[i%pp.length])) {
-				votes[i%pp.length]++;
+			if (engine.PRNG.nextInt(301) < probTab[i%n]) {
+				votes[i%n]++;
 				countVotes++;
 				if (countVotes >= 100)
 					break;
 			}
 		}
-
-		EnumMap<CityProblem,Integer> rv = new EnumMap<CityProblem,Integer>(CityProblem.class);
-		for (int i = 0; i < pp.length; i++) {
-			rv.put(pp[i], votes[i]);
-		}
-		return rv;
 	}
 
 	int averageTrf()
 	{
-		int count = 1;
-		int total = 0;
-
-		for (int y = 0; y < engine.getHeight(); y++) {
-			for (int x = 0; x < engine.getWidth(); x++) {
-				// only consider tiles that have nonzero landvalue
-				if (engine.getLandValue(x, y) != 0) {
-					total += engine.getTrafficDensity(x, y);
-					count++;
-				}
-			}
-		}
+		// the engine keeps a running total over the map cells that
+		// have nonzero land value; see Micropolis.addTraffic()
+		int count = 1 + engine.landValueCells;
+		int total = engine.trafficTotal;
 
 		engine.trafficAverage = (int)Math.round(((double)total / (double)count) * 2.4);
 		return engine.trafficAverage;
@@ -222,8 +216,8 @@ public class CityEval
 		int oldCityScore = cityScore;
 
 		int x = 0;
-		for (Integer z : problemTable.values()) {
-			x += z.intValue();
+		for (int z : problemTable) {
+			x += z;
 		}
 
 		x /= 3;
@@ -272,7 +266,7 @@ public class CityEval
 	{
 		cityYes = cityNo = 0;
 		for (int i = 0; i < 100; i++) {
-			if (PRNG.nextInt(1001) < cityScore) {
+			if (engine.PRNG.nextInt(1001) < cityScore) {
 				cityYes++;
 			} else {
 				cityNo++;
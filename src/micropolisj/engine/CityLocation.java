@@ -32,6 +32,30 @@ public class CityLocation
 		this.y = y;
 	}
 
+	/**
+	 * Packs a pair of coordinates into a single int, for storing
+	 * locations in the primitive collections (IntStack etc.) without
+	 * allocating an object for each. Both coordinates must be in the
+	 * range 0 to 65535.
+	 */
+	public static int pack(int x, int y)
+	{
+		assert x >= 0 && x <= 0xffff && y >= 0 && y <= 0xffff;
+		return (y << 16) | x;
+	}
+
+	/** Gets the X coordinate of a packed location. */
+	public static int unpackX(int packed)
+	{
+		return packed & 0xffff;
+	}
+
+	/** Gets the Y coordinate of a packed location. */
+	public static int unpackY(int packed)
+	{
+		return packed >>> 16;
+	}
+
 	@Override
 	public int hashCode()
 	{
@@ -0,0 +1,255 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.util.EnumMap;
+
+/**
+ * An unchanging copy of a city's tiles, overlays and summary figures,
+ * as of the end of one tick. It is taken on the simulation's thread,
+ * and may then be read on any thread while the city carries on.
+ * <p>
+ * Overlays are copied as they were when their listeners were last
+ * notified (see Micropolis.getOverlayValue()). A snapshot shares the
+ * tiles and overlays that have not changed with the snapshot taken
+ * before it, so taking one costs little more than copying what changed.
+ */
+public class CitySnapshot
+{
+	public final int width;
+	public final int height;
+	public final int cityTime;
+	public final int acycle;
+	public final int funds;
+	public final int population;
+	public final int resPop;
+	public final int comPop;
+	public final int indPop;
+	public final int resValve;
+	public final int comValve;
+	public final int indValve;
+	public final int cityScore;
+
+	/** Counts the snapshots taken of a city; see take(). */
+	public final int serial;
+
+	final TileCopy tiles;
+	final EnumMap<MapState,Layer> layers = new EnumMap<MapState,Layer>(MapState.class);
+
+	/** The map's tiles, as getTile() returns them. */
+	static class TileCopy
+	{
+		final int version;
+		final char [] cells;
+
+		TileCopy(int version, char [] cells)
+		{
+			this.version = version;
+			this.cells = cells;
+		}
+	}
+
+	/** One overlay's array. */
+	static class Layer
+	{
+		final int version;
+		final int scale;
+		final int width;
+		final int height;
+		final int cellSize;
+		final int [] cells;
+
+		Layer(OverlayLayer src, int mapWidth, int mapHeight)
+		{
+			this.version = src.version;
+			this.scale = src.scale;
+			this.width = (mapWidth + scale - 1) / scale;
+			this.height = (mapHeight + scale - 1) / scale;
+			this.cellSize = src.getCellSize();
+			this.cells = src.copyCells(width, height);
+		}
+
+		int get(int xpos, int ypos)
+		{
+			return cells[(ypos / scale) * width + xpos / scale];
+		}
+	}
+
+	private CitySnapshot(Micropolis city, CitySnapshot previous, boolean tilesChanged)
+	{
+		this.width = city.getWidth();
+		this.height = city.getHeight();
+		this.cityTime = city.cityTime;
+		this.acycle = city.acycle;
+		this.funds = city.budget.totalFunds;
+		this.population = city.getCityPopulation();
+		this.resPop = city.resPop;
+		this.comPop = city.comPop;
+		this.indPop = city.indPop;
+		this.resValve = city.resValve;
+		this.comValve = city.comValve;
+		this.indValve = city.indValve;
+		this.cityScore = city.evaluation.cityScore;
+		this.serial = previous != null ? previous.serial + 1 : 0;
+
+		boolean sameSize = previous != null && previous.width == width &&
+			previous.height == height;
+
+		if (sameSize && !tilesChanged) {
+			this.tiles = previous.tiles;
+		}
+		else {
+			char [] cells = new char[width * height];
+			city.copyTiles(cells);
+			this.tiles = new TileCopy(previous != null ? previous.tiles.version + 1 : 0, cells);
+		}
+
+		for (MapState state : city.overlayLayers.keySet()) {
+			OverlayLayer src = city.overlayLayers.get(state);
+			Layer last = sameSize ? previous.layers.get(state) : null;
+			if (last != null && last.version == src.version) {
+				layers.put(state, last);
+			}
+			else {
+				layers.put(state, new Layer(src, width, height));
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot. Must be called on the simulation's thread,
+	 * between ticks.
+	 * @param previous the last snapshot taken of the same city, if
+	 * any, to share unchanged data with
+	 * @param tilesChanged whether any tile may have changed since the
+	 * previous snapshot was taken
+	 */
+	public static CitySnapshot take(Micropolis city, CitySnapshot previous, boolean tilesChanged)
+	{
+		return new CitySnapshot(city, previous, tilesChanged);
+	}
+
+	public boolean testBounds(int xpos, int ypos)
+	{
+		return xpos >= 0 && xpos < width && ypos >= 0 && ypos < height;
+	}
+
+	public char getTile(int xpos, int ypos)
+	{
+		return tiles.cells[ypos * width + xpos];
+	}
+
+	/**
+	 * Gets a number that changes whenever any tile changes.
+	 */
+	public int getTilesVersion()
+	{
+		return tiles.version;
+	}
+
+	/**
+	 * Copies the tiles of part of the map, row by row.
+	 * @param area a part of the map, within its bounds
+	 */
+	public char [] copyTiles(CityRect area)
+	{
+		char [] dest = new char[area.width * area.height];
+		for (int y = 0; y < area.height; y++) {
+			System.arraycopy(tiles.cells, (area.y + y) * width + area.x,
+				dest, y * area.width, area.width);
+		}
+		return dest;
+	}
+
+	/**
+	 * Tells whether the given overlay is backed by an array of its own,
+	 * which readOverlay() can copy.
+	 */
+	public boolean hasOverlay(MapState overlayDataType)
+	{
+		return layers.containsKey(overlayDataType);
+	}
+
+	/**
+	 * See Micropolis.getOverlayVersion().
+	 */
+	public int getOverlayVersion(MapState overlayDataType)
+	{
+		Layer layer = layers.get(overlayDataType);
+		return layer != null ? layer.version : 0;
+	}
+
+	/**
+	 * Gets the number of map tiles, in each direction, covered by one
+	 * cell of an overlay's array.
+	 */
+	public int getOverlayScale(MapState overlayDataType)
+	{
+		return layers.get(overlayDataType).scale;
+	}
+
+	/**
+	 * Gets the size, in bytes, of each cell readOverlay() returns.
+	 */
+	public int getOverlayCellSize(MapState overlayDataType)
+	{
+		return layers.get(overlayDataType).cellSize;
+	}
+
+	/**
+	 * Gets the cells of an overlay's array that cover part of the map.
+	 * @param area a part of the map, within its bounds
+	 * @return the cells, in array coordinates
+	 */
+	public CityRect getOverlayCells(MapState overlayDataType, CityRect area)
+	{
+		int scale = getOverlayScale(overlayDataType);
+		int x0 = area.x / scale;
+		int y0 = area.y / scale;
+		int x1 = (area.x + area.width + scale - 1) / scale;
+		int y1 = (area.y + area.height + scale - 1) / scale;
+		return new CityRect(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * Copies the cells of an overlay's array that cover part of the
+	 * map (see getOverlayCells()), row by row, as little-endian numbers
+	 * of getOverlayCellSize() bytes each.
+	 * @param area a part of the map, within its bounds
+	 */
+	public byte [] readOverlay(MapState overlayDataType, CityRect area)
+	{
+		Layer layer = layers.get(overlayDataType);
+		CityRect r = getOverlayCells(overlayDataType, area);
+		byte [] dest = new byte[r.width * r.height * layer.cellSize];
+		int i = 0;
+		for (int y = r.y; y < r.y + r.height; y++) {
+			for (int x = r.x; x < r.x + r.width; x++) {
+				int v = layer.cells[y * layer.width + x];
+				for (int b = 0; b < layer.cellSize; b++) {
+					dest[i++] = (byte) (v >> (8 * b));
+				}
+			}
+		}
+		return dest;
+	}
+
+	/**
+	 * Works like Micropolis.queryZoneStatus(), but from the snapshot.
+	 */
+	public ZoneStatus queryZoneStatus(int xpos, int ypos)
+	{
+		return ZoneStatus.make(getTile(xpos, ypos),
+			layers.get(MapState.POPDEN_OVERLAY).get(xpos, ypos),
+			layers.get(MapState.LANDVALUE_OVERLAY).get(xpos, ypos),
+			layers.get(MapState.CRIME_OVERLAY).get(xpos, ypos),
+			layers.get(MapState.POLLUTE_OVERLAY).get(xpos, ypos),
+			layers.get(MapState.GROWTHRATE_OVERLAY).get(xpos, ypos));
+	}
+}
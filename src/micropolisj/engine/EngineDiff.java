@@ -0,0 +1,270 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.util.Random;
+
+/**
+ * Runs two engines side by side, comparing their state hashes after
+ * every tick, and reports where they first disagree. Used to check that
+ * an optimized engine (a subclass of Micropolis) behaves exactly like
+ * the reference engine.
+ * <p>
+ * Can also be run from the command line:
+ * <pre>
+ * java micropolisj.engine.EngineDiff CITYFILE|SEED TICKS [CANDIDATE_CLASS]
+ * </pre>
+ * The candidate class must have a constructor taking the same
+ * arguments as Micropolis(int,int,Random). If it is omitted, the
+ * reference engine is compared against another copy of itself, which
+ * finds any dependence on state outside the engine.
+ */
+public class EngineDiff
+{
+	final Micropolis reference;
+	final Micropolis candidate;
+	final StateHash referenceHash;
+	final StateHash candidateHash;
+
+	/** Number of ticks (calls to animate()) run on each engine. */
+	int ticks;
+
+	// where the engines first disagreed
+	int divergedAt = -1;
+	StateHash.Part divergentPart;
+	String divergentArray;
+	CityRect divergentArea;
+
+	/**
+	 * @param reference the engine to be trusted
+	 * @param candidate the engine to be checked; it must start from
+	 * the same state as the reference, including its random number
+	 * generator
+	 */
+	public EngineDiff(Micropolis reference, Micropolis candidate)
+	{
+		this.reference = reference;
+		this.candidate = candidate;
+		this.referenceHash = new StateHash(reference);
+		this.candidateHash = new StateHash(candidate);
+	}
+
+	/** Stops tracking changes to the two engines. */
+	public void dispose()
+	{
+		referenceHash.dispose();
+		candidateHash.dispose();
+	}
+
+	/**
+	 * Runs both engines until they disagree or the given number of
+	 * ticks have been run.
+	 * @return true if they agreed throughout
+	 */
+	public boolean run(int maxTicks)
+	{
+		if (divergedAt == -1 && !compare()) {
+			return false;
+		}
+		while (divergedAt == -1 && ticks < maxTicks) {
+			reference.animate();
+			candidate.animate();
+			ticks++;
+			compare();
+		}
+		return divergedAt == -1;
+	}
+
+	/**
+	 * Gets the tick after which the engines first disagreed, or -1
+	 * if they have not.
+	 */
+	public int getDivergedAt()
+	{
+		return divergedAt;
+	}
+
+	/** Gets the part of the state that first disagreed. */
+	public StateHash.Part getDivergentPart()
+	{
+		return divergentPart;
+	}
+
+	/**
+	 * Gets the name of the array that first disagreed, if the
+	 * divergent part is the map or an overlay.
+	 */
+	public String getDivergentArray()
+	{
+		return divergentArray;
+	}
+
+	/**
+	 * Gets the area of the map, in tile coordinates, covering every
+	 * difference in the divergent array; or null if the divergent
+	 * part has no position.
+	 */
+	public CityRect getDivergentArea()
+	{
+		return divergentArea;
+	}
+
+	private boolean compare()
+	{
+		for (StateHash.Part part : StateHash.Part.values()) {
+			if (referenceHash.getHash(part) != candidateHash.getHash(part)) {
+				divergedAt = ticks;
+				divergentPart = part;
+				locateDifference(part);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void locateDifference(StateHash.Part part)
+	{
+		if (part == StateHash.Part.MAP) {
+			divergentArray = "map";
+			divergentArea = findDifference(toInts(reference.map), toInts(candidate.map), 1);
+		}
+		else if (part == StateHash.Part.OVERLAYS) {
+			int [][][] a = StateHash.getOverlayArrays(reference);
+			int [][][] b = StateHash.getOverlayArrays(candidate);
+			for (int i = 0; i < a.length; i++) {
+				int scale = (reference.getWidth() + a[i][0].length - 1) / a[i][0].length;
+				CityRect r = findDifference(a[i], b[i], scale);
+				if (r != null) {
+					divergentArray = StateHash.OVERLAY_NAMES[i];
+					divergentArea = r;
+					return;
+				}
+			}
+			divergentArray = "powerMap";
+			divergentArea = findDifference(toInts(reference.powerMap), toInts(candidate.powerMap), 1);
+		}
+	}
+
+	/**
+	 * Finds the bounding box of the differences between two arrays.
+	 * @param scale number of map tiles covered by each array cell
+	 * @return the box, in map coordinates, or null if the arrays are equal
+	 */
+	static CityRect findDifference(int [][] a, int [][] b, int scale)
+	{
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = -1, maxY = -1;
+
+		for (int y = 0; y < a.length; y++) {
+			for (int x = 0; x < a[y].length; x++) {
+				if (a[y][x] != b[y][x]) {
+					minX = Math.min(minX, x);
+					maxX = Math.max(maxX, x);
+					minY = Math.min(minY, y);
+					maxY = y;
+				}
+			}
+		}
+
+		if (maxY < 0) {
+			return null;
+		}
+		return new CityRect(minX * scale, minY * scale,
+			(maxX - minX + 1) * scale, (maxY - minY + 1) * scale);
+	}
+
+	private static int [][] toInts(char [][] a)
+	{
+		int [][] rv = new int[a.length][];
+		for (int y = 0; y < a.length; y++) {
+			rv[y] = new int[a[y].length];
+			for (int x = 0; x < a[y].length; x++) {
+				rv[y][x] = a[y][x];
+			}
+		}
+		return rv;
+	}
+
+	private static int [][] toInts(MapBitSet a)
+	{
+		int [][] rv = new int[a.height][a.width];
+		for (int y = 0; y < a.height; y++) {
+			for (int x = 0; x < a.width; x++) {
+				rv[y][x] = a.get(x, y) ? 1 : 0;
+			}
+		}
+		return rv;
+	}
+
+	static Micropolis createEngine(Class<? extends Micropolis> engineClass, long seed)
+		throws Exception
+	{
+		Constructor<? extends Micropolis> c = engineClass.getDeclaredConstructor(
+			int.class, int.class, Random.class);
+		c.setAccessible(true);
+		return c.newInstance(Micropolis.DEFAULT_WIDTH, Micropolis.DEFAULT_HEIGHT,
+			new SimRandom(seed));
+	}
+
+	/**
+	 * Creates an engine and sets up the starting city, either by
+	 * loading a city file or by generating a map from a seed.
+	 */
+	static Micropolis createCity(Class<? extends Micropolis> engineClass, String cityArg)
+		throws Exception
+	{
+		File cityFile = new File(cityArg);
+		if (cityFile.exists()) {
+			Micropolis engine = createEngine(engineClass, 0);
+			engine.load(cityFile);
+			return engine;
+		}
+		else {
+			long seed = Long.parseLong(cityArg);
+			Micropolis engine = createEngine(engineClass, seed);
+			new MapGenerator(engine).generateSomeCity(seed);
+			return engine;
+		}
+	}
+
+	public static void main(String [] args)
+		throws Exception
+	{
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: java "+EngineDiff.class.getName()+" CITYFILE|SEED TICKS [CANDIDATE_CLASS]");
+			System.exit(2);
+		}
+
+		int maxTicks = Integer.parseInt(args[1]);
+		Class<? extends Micropolis> candidateClass = args.length > 2 ?
+			Class.forName(args[2]).asSubclass(Micropolis.class) :
+			Micropolis.class;
+
+		Micropolis reference = createCity(Micropolis.class, args[0]);
+		Micropolis candidate = createCity(candidateClass, args[0]);
+		EngineDiff diff = new EngineDiff(reference, candidate);
+		boolean same = diff.run(maxTicks);
+		diff.dispose();
+
+		if (same) {
+			System.out.println("Identical for "+diff.ticks+" ticks");
+			System.exit(0);
+		}
+
+		CityRect r = diff.getDivergentArea();
+		System.out.println("Diverged after tick "+diff.getDivergedAt()+
+			" in "+diff.getDivergentPart()+
+			(diff.getDivergentArray() != null ? " ("+diff.getDivergentArray()+")" : "")+
+			(r != null ? " at x="+r.x+" y="+r.y+" width="+r.width+" height="+r.height : "")
+			);
+		System.exit(1);
+	}
+}
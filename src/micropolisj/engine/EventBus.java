@@ -0,0 +1,415 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects the events a city fires and delivers them to its listeners
+ * in batches.
+ * <p>
+ * Between begin() and end() (e.g. for the length of one tick, or one
+ * tool application) events are only queued, and duplicates are merged:
+ * a tile or sprite that changes several times is reported once, the
+ * changed areas of an overlay are combined, and events that carry no
+ * data (funds, demand, census, etc.) are reported once. At the outer
+ * end() the whole batch is delivered. Events fired outside of a batch
+ * are delivered right away.
+ * <p>
+ * Each listener is registered with an executor. With none, events are
+ * delivered on the simulation's thread, as soon as the batch ends; the
+ * listener may then read the city's state. Otherwise the batch is
+ * handed to the executor and the simulation carries on without waiting,
+ * so such a listener must not rely on the city being unchanged.
+ */
+class EventBus
+{
+	final Micropolis city;
+
+	final List<Registration<Micropolis.Listener>> listeners = new CopyOnWriteArrayList<Registration<Micropolis.Listener>>();
+	final List<Registration<MapListener>> mapListeners = new CopyOnWriteArrayList<Registration<MapListener>>();
+	final List<Registration<EarthquakeListener>> earthquakeListeners = new CopyOnWriteArrayList<Registration<EarthquakeListener>>();
+
+	/** Nesting depth of begin() calls. */
+	int depth;
+
+	/** True while a batch is being delivered. */
+	boolean delivering;
+
+	Batch pending = new Batch();
+
+	/** An emptied batch, kept for reuse. */
+	Batch spare;
+
+	/** Marks the tiles already in the pending batch. */
+	MapBitSet tilesSeen;
+
+	static class Registration<T>
+	{
+		final T listener;
+		final Executor executor;
+
+		Registration(T listener, Executor executor)
+		{
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * The merged events of one batch. Once handed to an executor it is
+	 * never modified again.
+	 */
+	static class Batch
+	{
+		boolean wholeMapChanged;
+		final IntStack tiles = new IntStack();
+		final EnumMap<MapState,CityRect> overlays = new EnumMap<MapState,CityRect>(MapState.class);
+		final ArrayList<Sprite> sprites = new ArrayList<Sprite>();
+		boolean mapAnimation;
+
+		final ArrayList<MicropolisMessage> messages = new ArrayList<MicropolisMessage>();
+		final ArrayList<CityLocation> messageLocations = new ArrayList<CityLocation>();
+		final ArrayList<Sound> sounds = new ArrayList<Sound>();
+		final ArrayList<CityLocation> soundLocations = new ArrayList<CityLocation>();
+		boolean censusChanged;
+		boolean demandChanged;
+		boolean evaluationChanged;
+		boolean fundsChanged;
+		boolean optionsChanged;
+		boolean earthquakeStarted;
+
+		boolean isEmpty()
+		{
+			return !wholeMapChanged && tiles.isEmpty() && overlays.isEmpty() &&
+				sprites.isEmpty() && !mapAnimation &&
+				messages.isEmpty() && sounds.isEmpty() &&
+				!censusChanged && !demandChanged && !evaluationChanged &&
+				!fundsChanged && !optionsChanged && !earthquakeStarted;
+		}
+
+		void clear()
+		{
+			wholeMapChanged = false;
+			tiles.clear();
+			overlays.clear();
+			sprites.clear();
+			mapAnimation = false;
+			messages.clear();
+			messageLocations.clear();
+			sounds.clear();
+			soundLocations.clear();
+			censusChanged = false;
+			demandChanged = false;
+			evaluationChanged = false;
+			fundsChanged = false;
+			optionsChanged = false;
+			earthquakeStarted = false;
+		}
+
+		void deliverTo(MapListener l)
+		{
+			if (wholeMapChanged) {
+				// covers every tile change
+				l.wholeMapChanged();
+			}
+			else {
+				for (int i = 0; i < tiles.size(); i++) {
+					int loc = tiles.get(i);
+					l.tileChanged(CityLocation.unpackX(loc), CityLocation.unpackY(loc));
+				}
+			}
+			for (Map.Entry<MapState,CityRect> e : overlays.entrySet()) {
+				l.mapOverlayDataChanged(e.getKey(), e.getValue());
+			}
+			for (Sprite sprite : sprites) {
+				l.spriteMoved(sprite);
+			}
+			if (mapAnimation) {
+				l.mapAnimation();
+			}
+		}
+
+		void deliverTo(Micropolis.Listener l)
+		{
+			for (int i = 0; i < messages.size(); i++) {
+				l.cityMessage(messages.get(i), messageLocations.get(i));
+			}
+			for (int i = 0; i < sounds.size(); i++) {
+				l.citySound(sounds.get(i), soundLocations.get(i));
+			}
+			if (censusChanged) {
+				l.censusChanged();
+			}
+			if (demandChanged) {
+				l.demandChanged();
+			}
+			if (evaluationChanged) {
+				l.evaluationChanged();
+			}
+			if (fundsChanged) {
+				l.fundsChanged();
+			}
+			if (optionsChanged) {
+				l.optionsChanged();
+			}
+		}
+
+		void deliverTo(EarthquakeListener l)
+		{
+			if (earthquakeStarted) {
+				l.earthquakeStarted();
+			}
+		}
+	}
+
+	EventBus(Micropolis city)
+	{
+		this.city = city;
+	}
+
+	static <T> void remove(List<Registration<T>> list, T listener)
+	{
+		for (Registration<T> r : list) {
+			if (r.listener == listener) {
+				list.remove(r);
+				return;
+			}
+		}
+	}
+
+	/** Starts queuing events. Calls may be nested. */
+	void begin()
+	{
+		depth++;
+	}
+
+	/** Delivers the queued events, if this ends the outermost batch. */
+	void end()
+	{
+		assert depth > 0;
+		if (--depth == 0) {
+			flush();
+		}
+	}
+
+	/** Called after each event is queued. */
+	private void posted()
+	{
+		if (depth == 0) {
+			flush();
+		}
+	}
+
+	private void flush()
+	{
+		if (delivering) {
+			// a listener fired an event; the loop below will get it
+			return;
+		}
+
+		delivering = true;
+		try {
+			while (!pending.isEmpty()) {
+				Batch b = pending;
+				pending = spare != null ? spare : new Batch();
+				spare = null;
+				unmarkTiles(b);
+
+				if (!deliver(b)) {
+					b.clear();
+					spare = b;
+				}
+			}
+		}
+		finally {
+			delivering = false;
+		}
+	}
+
+	/**
+	 * @return true if the batch was handed to an executor, and so
+	 * must not be reused
+	 */
+	private boolean deliver(final Batch b)
+	{
+		boolean shared = false;
+		for (final Registration<MapListener> r : mapListeners) {
+			if (r.executor == null) {
+				b.deliverTo(r.listener);
+			}
+			else {
+				r.executor.execute(new Runnable() {
+					public void run() {
+						b.deliverTo(r.listener);
+					}});
+				shared = true;
+			}
+		}
+		for (final Registration<Micropolis.Listener> r : listeners) {
+			if (r.executor == null) {
+				b.deliverTo(r.listener);
+			}
+			else {
+				r.executor.execute(new Runnable() {
+					public void run() {
+						b.deliverTo(r.listener);
+					}});
+				shared = true;
+			}
+		}
+		if (b.earthquakeStarted) {
+			for (final Registration<EarthquakeListener> r : earthquakeListeners) {
+				if (r.executor == null) {
+					b.deliverTo(r.listener);
+				}
+				else {
+					r.executor.execute(new Runnable() {
+						public void run() {
+							b.deliverTo(r.listener);
+						}});
+					shared = true;
+				}
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Unmarks the batch's tiles, which takes less time than clearing
+	 * every word of a big map's bit set.
+	 */
+	private void unmarkTiles(Batch b)
+	{
+		if (tilesSeen == null) {
+			return;
+		}
+		for (int i = 0; i < b.tiles.size(); i++) {
+			int loc = b.tiles.get(i);
+			tilesSeen.clear(CityLocation.unpackX(loc), CityLocation.unpackY(loc));
+		}
+	}
+
+	void tileChanged(int xpos, int ypos)
+	{
+		if (!pending.wholeMapChanged) {
+			if (tilesSeen == null || tilesSeen.width != city.getWidth() ||
+				tilesSeen.height != city.getHeight())
+			{
+				tilesSeen = new MapBitSet(city.getWidth(), city.getHeight());
+				for (int i = 0; i < pending.tiles.size(); i++) {
+					int loc = pending.tiles.get(i);
+					tilesSeen.set(CityLocation.unpackX(loc), CityLocation.unpackY(loc));
+				}
+			}
+			if (tilesSeen.add(xpos, ypos)) {
+				pending.tiles.push(CityLocation.pack(xpos, ypos));
+			}
+		}
+		posted();
+	}
+
+	void wholeMapChanged()
+	{
+		unmarkTiles(pending);
+		pending.wholeMapChanged = true;
+		pending.tiles.clear();
+		posted();
+	}
+
+	void mapOverlayDataChanged(MapState overlayDataType, CityRect changedArea)
+	{
+		CityRect r = pending.overlays.get(overlayDataType);
+		if (r == null) {
+			pending.overlays.put(overlayDataType, new CityRect(
+				changedArea.x, changedArea.y,
+				changedArea.width, changedArea.height));
+		}
+		else {
+			int x1 = Math.max(r.x + r.width, changedArea.x + changedArea.width);
+			int y1 = Math.max(r.y + r.height, changedArea.y + changedArea.height);
+			r.x = Math.min(r.x, changedArea.x);
+			r.y = Math.min(r.y, changedArea.y);
+			r.width = x1 - r.x;
+			r.height = y1 - r.y;
+		}
+		posted();
+	}
+
+	void spriteMoved(Sprite sprite)
+	{
+		ArrayList<Sprite> sprites = pending.sprites;
+		int i = sprites.size() - 1;
+		while (i >= 0 && sprites.get(i) != sprite) {
+			i--;
+		}
+		if (i < 0) {
+			sprites.add(sprite);
+		}
+		posted();
+	}
+
+	void mapAnimation()
+	{
+		pending.mapAnimation = true;
+		posted();
+	}
+
+	void cityMessage(MicropolisMessage message, CityLocation loc)
+	{
+		pending.messages.add(message);
+		pending.messageLocations.add(loc);
+		posted();
+	}
+
+	void citySound(Sound sound, CityLocation loc)
+	{
+		pending.sounds.add(sound);
+		pending.soundLocations.add(loc);
+		posted();
+	}
+
+	void censusChanged()
+	{
+		pending.censusChanged = true;
+		posted();
+	}
+
+	void demandChanged()
+	{
+		pending.demandChanged = true;
+		posted();
+	}
+
+	void evaluationChanged()
+	{
+		pending.evaluationChanged = true;
+		posted();
+	}
+
+	void fundsChanged()
+	{
+		pending.fundsChanged = true;
+		posted();
+	}
+
+	void optionsChanged()
+	{
+		pending.optionsChanged = true;
+		posted();
+	}
+
+	void earthquakeStarted()
+	{
+		pending.earthquakeStarted = true;
+		posted();
+	}
+}
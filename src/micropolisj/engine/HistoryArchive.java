@@ -0,0 +1,114 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.util.Arrays;
+
+/**
+ * An unbounded record of every census sample taken during a city's
+ * lifetime, for full-lifetime graphs. Each column is kept as a
+ * delta-encoded, variable-length byte stream; a sample typically
+ * costs one or two bytes per column, so even a city run for a
+ * thousand years needs only a few hundred kilobytes.
+ */
+public class HistoryArchive
+{
+	public static final int TIME = 0;
+	public static final int RES = 1;
+	public static final int COM = 2;
+	public static final int IND = 3;
+	public static final int MONEY = 4;
+	public static final int POLLUTION = 5;
+	public static final int CRIME = 6;
+	public static final int NUM_COLUMNS = 7;
+
+	final byte [][] data = new byte[NUM_COLUMNS][64];
+	final int [] dataLength = new int[NUM_COLUMNS];
+	final int [] lastValue = new int[NUM_COLUMNS];
+	int size;
+
+	/** Gets the number of samples recorded. */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Records one sample.
+	 * @param row one value for each column, indexed by the column
+	 * constants of this class
+	 */
+	void add(int [] row)
+	{
+		assert row.length == NUM_COLUMNS;
+
+		for (int c = 0; c < NUM_COLUMNS; c++) {
+			int delta = row[c] - lastValue[c];
+			lastValue[c] = row[c];
+			writeVarInt(c, (delta << 1) ^ (delta >> 31));
+		}
+		size++;
+	}
+
+	private void writeVarInt(int column, int v)
+	{
+		byte [] buf = data[column];
+		int len = dataLength[column];
+		if (len + 5 > buf.length) {
+			buf = Arrays.copyOf(buf, buf.length * 2);
+			data[column] = buf;
+		}
+
+		while ((v & ~0x7f) != 0) {
+			buf[len++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[len++] = (byte) v;
+		dataLength[column] = len;
+	}
+
+	/**
+	 * Decodes all samples of one column, oldest first.
+	 */
+	public int [] getColumn(int column)
+	{
+		int [] values = new int[size];
+		byte [] buf = data[column];
+		int pos = 0;
+		int value = 0;
+
+		for (int i = 0; i < size; i++) {
+			int v = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = buf[pos++];
+				v |= (b & 0x7f) << shift;
+				shift += 7;
+			}
+			while ((b & 0x80) != 0);
+
+			value += (v >>> 1) ^ -(v & 1);
+			values[i] = value;
+		}
+		return values;
+	}
+
+	/**
+	 * Estimates the number of bytes used to hold the samples.
+	 */
+	public long getMemoryUsage()
+	{
+		long total = 0;
+		for (byte [] buf : data) {
+			total += buf.length;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,89 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+/**
+ * The recorded history of one city statistic (e.g. residential
+ * population), as shown by the graphs window.
+ * There are two windows of samples: a short-term one with a sample
+ * from every census, and a long-term one with every twelfth sample.
+ * Each is a ring buffer, so adding a sample takes constant time.
+ */
+public class HistorySeries
+{
+	/** Number of samples in each of the two windows. */
+	public static final int WINDOW = 120;
+
+	final int [] shortTerm = new int[WINDOW];
+	final int [] longTerm = new int[WINDOW];
+
+	/** Indexes of the newest samples. */
+	int shortHead;
+	int longHead;
+
+	/**
+	 * Gets a sample. Positions 0 to 119 are the short-term samples,
+	 * newest first; positions 120 to 239 are the long-term samples,
+	 * newest first.
+	 */
+	public int get(int pos)
+	{
+		assert pos >= 0 && pos < 2*WINDOW;
+
+		if (pos < WINDOW) {
+			return shortTerm[(shortHead - pos + WINDOW) % WINDOW];
+		}
+		else {
+			return longTerm[(longHead - (pos - WINDOW) + WINDOW) % WINDOW];
+		}
+	}
+
+	/** Records a sample in the short-term window. */
+	void addShortTerm(int value)
+	{
+		shortHead = (shortHead + 1) % WINDOW;
+		shortTerm[shortHead] = value;
+	}
+
+	/** Records a sample in the long-term window. */
+	void addLongTerm(int value)
+	{
+		longHead = (longHead + 1) % WINDOW;
+		longTerm[longHead] = value;
+	}
+
+	/**
+	 * Copies all samples into an array laid out as described
+	 * for get(), which is the layout used in saved cities.
+	 */
+	int [] toArray()
+	{
+		int [] array = new int[2*WINDOW];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * Replaces all samples with the contents of an array laid out
+	 * as described for get().
+	 */
+	void load(int [] array)
+	{
+		assert array.length == 2*WINDOW;
+
+		shortHead = WINDOW-1;
+		longHead = WINDOW-1;
+		for (int i = 0; i < WINDOW; i++) {
+			shortTerm[WINDOW-1-i] = array[i];
+			longTerm[WINDOW-1-i] = array[WINDOW+i];
+		}
+	}
+}
@@ -0,0 +1,74 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.util.Arrays;
+
+/**
+ * A growable stack of ints, typically map locations packed with
+ * CityLocation.pack(). Once it has grown to its working size, pushing
+ * and popping allocate nothing.
+ */
+class IntStack
+{
+	int [] data;
+	int size;
+
+	IntStack()
+	{
+		this(16);
+	}
+
+	IntStack(int initialCapacity)
+	{
+		data = new int[Math.max(1, initialCapacity)];
+	}
+
+	void push(int value)
+	{
+		if (size == data.length) {
+			data = Arrays.copyOf(data, size * 2);
+		}
+		data[size++] = value;
+	}
+
+	int pop()
+	{
+		assert size > 0;
+		return data[--size];
+	}
+
+	int peek()
+	{
+		assert size > 0;
+		return data[size-1];
+	}
+
+	/** Gets an element by position, counting from the bottom. */
+	int get(int index)
+	{
+		assert index >= 0 && index < size;
+		return data[index];
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	void clear()
+	{
+		size = 0;
+	}
+}
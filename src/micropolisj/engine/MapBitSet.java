@@ -0,0 +1,119 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.util.Arrays;
+
+/**
+ * A set of map locations, one bit per tile, e.g. for marking the tiles
+ * visited by a search. Bits are stored row by row, 64 to a word.
+ */
+class MapBitSet
+{
+	final int width;
+	final int height;
+	final long [] words;
+
+	MapBitSet(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		this.words = new long[(width * height + 63) / 64];
+	}
+
+	boolean get(int x, int y)
+	{
+		int i = y * width + x;
+		return (words[i >> 6] & (1L << i)) != 0;
+	}
+
+	void set(int x, int y)
+	{
+		int i = y * width + x;
+		words[i >> 6] |= 1L << i;
+	}
+
+	void set(int x, int y, boolean value)
+	{
+		int i = y * width + x;
+		if (value) {
+			words[i >> 6] |= 1L << i;
+		}
+		else {
+			words[i >> 6] &= ~(1L << i);
+		}
+	}
+
+	/**
+	 * Adds a location to the set.
+	 * @return true if it was not already in the set
+	 */
+	boolean add(int x, int y)
+	{
+		int i = y * width + x;
+		long bit = 1L << i;
+		long w = words[i >> 6];
+		words[i >> 6] = w | bit;
+		return (w & bit) == 0;
+	}
+
+	void clear(int x, int y)
+	{
+		int i = y * width + x;
+		words[i >> 6] &= ~(1L << i);
+	}
+
+	/** Removes every location from the set. */
+	void clear()
+	{
+		Arrays.fill(words, 0L);
+	}
+
+	boolean isEmpty()
+	{
+		for (long w : words) {
+			if (w != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	int cardinality()
+	{
+		int count = 0;
+		for (long w : words) {
+			count += Long.bitCount(w);
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the first location in the set at or after the given
+	 * row-major index (y * width + x).
+	 * @return the index of the location, or -1 if there is none
+	 */
+	int nextSetIndex(int fromIndex)
+	{
+		int wi = fromIndex >> 6;
+		if (wi >= words.length) {
+			return -1;
+		}
+		long w = words[wi] & (-1L << fromIndex);
+		for (;;) {
+			if (w != 0) {
+				return wi * 64 + Long.numberOfTrailingZeros(w);
+			}
+			if (++wi == words.length) {
+				return -1;
+			}
+			w = words[wi];
+		}
+	}
+}
@@ -39,6 +39,17 @@ public class MapGenerator
 		this.map = engine.map;
 	}
 
+	/**
+	 * Creates a generator that writes into a standalone map buffer
+	 * rather than a city, e.g. for trying out many terrains at once
+	 * (see TerrainBatch).
+	 */
+	public MapGenerator(char [][] map)
+	{
+		assert map.length != 0;
+		this.map = map;
+	}
+
 	private int getWidth()
 	{
 		return map[0].length;
@@ -49,19 +60,33 @@ public class MapGenerator
 		return map.length;
 	}
 
+	private boolean testBounds(int x, int y)
+	{
+		return x >= 0 && x < getWidth() && y >= 0 && y < getHeight();
+	}
+
 	/**
 	 * Generate a random map terrain.
 	 */
 	public void generateNewCity()
 	{
-		long r = Micropolis.DEFAULT_PRNG.nextLong();
-		generateSomeCity(r);
+		generateSomeCity(newSeed());
+	}
+
+	/**
+	 * Picks a seed for generateSomeCity(), as generateNewCity() does.
+	 */
+	public static long newSeed()
+	{
+		return Micropolis.DEFAULT_PRNG.nextLong();
 	}
 
 	public void generateSomeCity(long r)
 	{
 		generateMap(r);
-		engine.fireWholeMapChanged();
+		if (engine != null) {
+			engine.fireWholeMapChanged();
+		}
 	}
 
 	/**
@@ -266,7 +291,7 @@ public class MapGenerator
 			r2 = curveLevel + 100;
 		}
 
-		while (engine.testBounds(mapX + 4, mapY + 4))
+		while (testBounds(mapX + 4, mapY + 4))
 		{
 			BRivPlop();
 			if (PRNG.nextInt(r1+1) < 10)
@@ -302,7 +327,7 @@ public class MapGenerator
 			r2 = curveLevel + 100;
 		}
 
-		while (engine.testBounds(mapX + 3, mapY + 3))
+		while (testBounds(mapX + 3, mapY + 3))
 		{
 			SRivPlop();
 			if (PRNG.nextInt(r1+1) < 10)
@@ -375,7 +400,7 @@ public class MapGenerator
 		int xloc = mapX + xoff;
 		int yloc = mapY + yoff;
 
-		if (!engine.testBounds(xloc, yloc))
+		if (!testBounds(xloc, yloc))
 			return;
 
 		char tmp = map[yloc][xloc];
@@ -412,7 +437,7 @@ public class MapGenerator
 						bitindex <<= 1;
 						int xtem = mapX + DX[z];
 						int ytem = mapY + DY[z];
-						if (engine.testBounds(xtem, ytem) &&
+						if (testBounds(xtem, ytem) &&
 							((map[ytem][xtem] & LOMASK) != DIRT) &&
 							(((map[ytem][xtem] & LOMASK) < WOODS_LOW) ||
 							((map[ytem][xtem] & LOMASK) > WOODS_HIGH)))
@@ -474,7 +499,7 @@ public class MapGenerator
 			int dir = PRNG.nextInt(8);
 			moveMap(dir);
 
-			if (!engine.testBounds(mapX, mapY))
+			if (!testBounds(mapX, mapY))
 				return;
 
 			if ((map[mapY][mapX] & LOMASK) == DIRT)
@@ -516,7 +541,7 @@ public class MapGenerator
 						bitindex <<= 1;
 						int xtem = mapX + DX[z];
 						int ytem = mapY + DY[z];
-						if (engine.testBounds(xtem, ytem) &&
+						if (testBounds(xtem, ytem) &&
 							isTree(map[ytem][xtem]))
 						{
 							bitindex |= 1;
@@ -17,8 +17,12 @@ public interface MapListener
 	/** Called on every tick of the simulation. */
 	void mapAnimation();
 
-	/** Called whenever data for a specific overlay has changed. */
-	void mapOverlayDataChanged(MapState overlayDataType);
+	/**
+	 * Called whenever data for a specific overlay has changed.
+	 * @param changedArea the part of the map, in tile coordinates,
+	 * where the overlay's data changed
+	 */
+	void mapOverlayDataChanged(MapState overlayDataType, CityRect changedArea);
 
 	/** Called when a sprite moves. */
 	void spriteMoved(Sprite sprite);
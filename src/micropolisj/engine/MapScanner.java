@@ -190,7 +190,7 @@ class MapScanner extends TileBehavior
 			repairZone(POWERPLANT);
 		}
 
-		city.powerPlants.add(new CityLocation(xpos,ypos));
+		city.powerPlants.push(CityLocation.pack(xpos, ypos));
 	}
 
 	void doNuclearPower()
@@ -206,55 +206,29 @@ class MapScanner extends TileBehavior
 			repairZone(NUCLEAR);
 		}
 
-		city.powerPlants.add(new CityLocation(xpos, ypos));
+		city.powerPlants.push(CityLocation.pack(xpos, ypos));
 	}
 
 	void doFireStation()
 	{
-		boolean powerOn = checkZonePower();
+		checkZonePower();
 		city.fireStationCount++;
 		if ((city.cityTime % 8) == 0) {
 			repairZone(FIRESTATION);
 		}
 
-		int z;
-		if (powerOn) {
-			z = city.fireEffect;  //if powered, get effect
-		} else {
-			z = city.fireEffect/2; // from the funding ratio
-		}
-
-		traffic.mapX = xpos;
-		traffic.mapY = ypos;
-		if (!traffic.findPerimeterRoad()) {
-			z /= 2;
-		}
-
-		city.fireStMap[ypos/8][xpos/8] += z;
+		city.fireStMap[ypos/8][xpos/8] += city.getStationCoverage(xpos, ypos, city.fireEffect, traffic);
 	}
 
 	void doPoliceStation()
 	{
-		boolean powerOn = checkZonePower();
+		checkZonePower();
 		city.policeCount++;
 		if ((city.cityTime % 8) == 0) {
 			repairZone(POLICESTATION);
 		}
 
-		int z;
-		if (powerOn) {
-			z = city.policeEffect;
-		} else {
-			z = city.policeEffect / 2;
-		}
-
-		traffic.mapX = xpos;
-		traffic.mapY = ypos;
-		if (!traffic.findPerimeterRoad()) {
-			z /= 2;
-		}
-
-		city.policeMap[ypos/8][xpos/8] += z;
+		city.policeMap[ypos/8][xpos/8] += city.getStationCoverage(xpos, ypos, city.policeEffect, traffic);
 	}
 
 	void doStadiumEmpty()
@@ -719,7 +693,7 @@ class MapScanner extends TileBehavior
 	{
 		assert value >= 0 && value <= 3;
 
-		int z = city.pollutionMem[ypos/2][xpos/2];
+		int z = city.pollutionMem[ypos/2][xpos/2] & 0xff;
 		if (z > 128)
 			return;
 
@@ -902,7 +876,7 @@ class MapScanner extends TileBehavior
 			return -3000;
 
 		int value = city.getLandValue(xpos, ypos);
-		value -= city.pollutionMem[ypos/2][xpos/2];
+		value -= city.pollutionMem[ypos/2][xpos/2] & 0xff;
 
 		if (value < 0)
 			value = 0;    //cap at 0
@@ -924,7 +898,7 @@ class MapScanner extends TileBehavior
 	int getCRValue()
 	{
 		int lval = city.getLandValue(xpos, ypos);
-		lval -= city.pollutionMem[ypos/2][xpos/2];
+		lval -= city.pollutionMem[ypos/2][xpos/2] & 0xff;
 
 		if (lval < 30)
 			return 0;
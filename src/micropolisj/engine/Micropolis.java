@@ -12,6 +12,7 @@ import java.io.*;
 import java.util.*;
 
 // for XML load/save
+import java.util.concurrent.Executor;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import javax.xml.stream.*;
@@ -33,52 +34,58 @@ public class Micropolis
 
 	// full size arrays
 	char [][] map;
-	boolean [][] powerMap;
+
+	/** Which tiles are powered; updated each cycle by powerScan(). */
+	MapBitSet powerMap;
 
 	// half-size arrays
+	//
+	// Layers limited to 0-255 are stored as unsigned bytes (read them
+	// with "& 0xff"), others as shorts, to keep the cities small.
 
 	/**
 	 * For each 2x2 section of the city, the land value of the city (0-250).
 	 * 0 is lowest land value; 250 is maximum land value.
 	 * Updated each cycle by ptlScan().
 	 */
-	int [][] landValueMem;
+	byte [][] landValueMem;
 
 	/**
 	 * For each 2x2 section of the city, the pollution level of the city (0-255).
 	 * 0 is no pollution; 255 is maximum pollution.
 	 * Updated each cycle by ptlScan(); affects land value.
 	 */
-	public int [][] pollutionMem;
+	public byte [][] pollutionMem;
 
 	/**
 	 * For each 2x2 section of the city, the crime level of the city (0-250).
 	 * 0 is no crime; 250 is maximum crime.
 	 * Updated each cycle by crimeScan(); affects land value.
 	 */
-	public int [][] crimeMem;
+	public byte [][] crimeMem;
 
 	/**
-	 * For each 2x2 section of the city, the population density (0-?).
+	 * For each 2x2 section of the city, the population density (0-510).
 	 * Used for map overlays and as a factor for crime rates.
 	 */
-	public int [][] popDensity;
+	public short [][] popDensity;
 
 	/**
-	 * For each 2x2 section of the city, the traffic density (0-255).
+	 * For each 2x2 section of the city, the traffic density (usually
+	 * 0-255, but addTraffic() only caps it some of the time).
 	 * If less than 64, no cars are animated.
 	 * If between 64 and 192, then the "light traffic" animation is used.
 	 * If 192 or higher, then the "heavy traffic" animation is used.
 	 */
-	int [][] trfDensity;
+	short [][] trfDensity;
 
 	// quarter-size arrays
 
 	/**
 	 * For each 4x4 section of the city, an integer representing the natural
-	 * land features in the vicinity of this part of the city.
+	 * land features in the vicinity of this part of the city (0-360).
 	 */
-	int [][] terrainMem;
+	short [][] terrainMem;
 
 	// eighth-size arrays
 
@@ -87,7 +94,7 @@ public class Micropolis
 	 * Capped to a number between -200 and 200.
 	 * Used for reporting purposes only; the number has no affect.
 	 */
-	public int [][] rateOGMem; //rate of growth?
+	public short [][] rateOGMem; //rate of growth?
 
 	int [][] fireStMap;      //firestations- cleared and rebuilt each sim cycle
 	public int [][] fireRate;       //firestations reach- used for overlay graphs
@@ -98,8 +105,16 @@ public class Micropolis
 	 * with higher numbers being closer to the center of the city. */
 	int [][] comRate;
 
-	static final int DEFAULT_WIDTH = 120;
-	static final int DEFAULT_HEIGHT = 100;
+	// scratch arrays for the smoothing passes, so that they do not
+	// allocate every cycle; contents are meaningless between uses
+	int [][] halfTemp;
+	int [][] halfTemp2;
+	int [][] quarterTemp;
+	int [][] smallTemp;
+	int [] smallZeros;
+
+	public static final int DEFAULT_WIDTH = 120;
+	public static final int DEFAULT_HEIGHT = 100;
 
 	public final CityBudget budget = new CityBudget(this);
 	public boolean autoBulldoze = true;
@@ -107,8 +122,17 @@ public class Micropolis
 	public Speed simSpeed = Speed.NORMAL;
 	public boolean noDisasters = false;
 
+	/**
+	 * The order in which the simulator visits the map. Not saved with
+	 * the city; the default reproduces the original game exactly.
+	 */
+	public ScanOrder scanOrder = ScanOrder.CLASSIC;
+
 	public int gameLevel;
 
+	/** Set while a session is being recorded; see SessionRecorder. */
+	SessionRecorder recorder;
+
 	boolean autoGo;
 
 	// census numbers, reset in phase 0 of each cycle, summed during map scan
@@ -162,6 +186,11 @@ public class Micropolis
 	int landValueAverage;
 	int trafficAverage;
 
+	// running totals behind trafficAverage, kept up to date by
+	// addTraffic(), decTrafficMem() and ptlScan()
+	int trafficTotal;    //traffic density summed over map cells with land value
+	int landValueCells;  //number of map cells with nonzero land value
+
 	int resValve;   // ranges between -2000 and 2000, updated by setValves
 	int comValve;   // ranges between -1500 and 1500
 	int indValve;   // ranges between -1500 and 1500
@@ -219,172 +248,284 @@ public class Micropolis
 
 	public Micropolis(int width, int height)
 	{
-		PRNG = DEFAULT_PRNG;
+		this(width, height, DEFAULT_PRNG);
+	}
+
+	/**
+	 * Creates an engine with the given random number generator, so
+	 * that its course does not depend on other engines in the process.
+	 */
+	protected Micropolis(int width, int height, Random prng)
+	{
+		PRNG = prng;
 		evaluation = new CityEval(this);
 		init(width, height);
 		initTileBehaviors();
 	}
 
+	/**
+	 * Replaces the engine's random number generator, so that its
+	 * course no longer depends on other engines in the process.
+	 */
+	void setRandom(Random prng)
+	{
+		PRNG = prng;
+
+		// the tile behaviors keep a reference to the generator
+		initTileBehaviors();
+	}
+
 	protected void init(int width, int height)
 	{
 		map = new char[height][width];
-		powerMap = new boolean[height][width];
+		powerMap = new MapBitSet(width, height);
 
 		int hX = (width+1)/2;
 		int hY = (height+1)/2;
 
-		landValueMem = new int[hY][hX];
-		pollutionMem = new int[hY][hX];
-		crimeMem = new int[hY][hX];
-		popDensity = new int[hY][hX];
-		trfDensity = new int[hY][hX];
+		landValueMem = new byte[hY][hX];
+		pollutionMem = new byte[hY][hX];
+		crimeMem = new byte[hY][hX];
+		popDensity = new short[hY][hX];
+		trfDensity = new short[hY][hX];
+		trafficTotal = 0;
+		landValueCells = 0;
 
 		int qX = (width+3)/4;
 		int qY = (height+3)/4;
 
-		terrainMem = new int[qY][qX];
+		terrainMem = new short[qY][qX];
 
 		int smX = (width+7)/8;
 		int smY = (height+7)/8;
 
-		rateOGMem = new int[smY][smX];
+		rateOGMem = new short[smY][smX];
 		fireStMap = new int[smY][smX];
 		policeMap = new int[smY][smX];
 		policeMapEffect = new int[smY][smX];
 		fireRate = new int[smY][smX];
 		comRate = new int[smY][smX];
 
+		halfTemp = new int[hY][hX];
+		halfTemp2 = new int[hY][hX];
+		quarterTemp = new int[qY][qX];
+		smallTemp = new int[smY][smX];
+		smallZeros = new int[Math.max(hX, smX)];
+
 		centerMassX = hX;
 		centerMassY = hY;
 	}
 
 	void fireCensusChanged()
 	{
-		for (Listener l : listeners) {
-			l.censusChanged();
-		}
+		events.censusChanged();
 	}
 
 	void fireCityMessage(MicropolisMessage message, CityLocation loc)
 	{
-		for (Listener l : listeners) {
-			l.cityMessage(message, loc);
-		}
+		events.cityMessage(message, loc);
 	}
 
 	void fireCitySound(Sound sound, CityLocation loc)
 	{
-		for (Listener l : listeners) {
-			l.citySound(sound, loc);
-		}
+		events.citySound(sound, loc);
 	}
 
 	void fireDemandChanged()
 	{
-		for (Listener l : listeners) {
-			l.demandChanged();
-		}
+		events.demandChanged();
 	}
 
 	void fireEarthquakeStarted()
 	{
-		for (EarthquakeListener l : earthquakeListeners) {
-			l.earthquakeStarted();
-		}
+		events.earthquakeStarted();
 	}
 
 	void fireEvaluationChanged()
 	{
-		for (Listener l : listeners) {
-			l.evaluationChanged();
-		}
+		events.evaluationChanged();
 	}
 
 	void fireFundsChanged()
 	{
-		for (Listener l : listeners) {
-			l.fundsChanged();
-		}
+		events.fundsChanged();
 	}
 
 	void fireMapAnimation()
 	{
-		for (MapListener l : mapListeners) {
-			l.mapAnimation();
+		events.mapAnimation();
+	}
+
+	void fireMapOverlayDataChanged(MapState overlayDataType, CityRect changedArea)
+	{
+		events.mapOverlayDataChanged(overlayDataType, changedArea);
+	}
+
+	/** Change tracking for each overlay that is backed by its own array. */
+	final EnumMap<MapState,OverlayLayer> overlayLayers = new EnumMap<MapState,OverlayLayer>(MapState.class);
+	{
+		overlayLayers.put(MapState.POWER_OVERLAY, new OverlayLayer(1));
+		overlayLayers.put(MapState.POPDEN_OVERLAY, new OverlayLayer(2));
+		overlayLayers.put(MapState.LANDVALUE_OVERLAY, new OverlayLayer(2));
+		overlayLayers.put(MapState.CRIME_OVERLAY, new OverlayLayer(2));
+		overlayLayers.put(MapState.POLLUTE_OVERLAY, new OverlayLayer(2));
+		overlayLayers.put(MapState.TRAFFIC_OVERLAY, new OverlayLayer(2));
+		overlayLayers.put(MapState.GROWTHRATE_OVERLAY, new OverlayLayer(8));
+		overlayLayers.put(MapState.FIRE_OVERLAY, new OverlayLayer(8));
+		overlayLayers.put(MapState.POLICE_OVERLAY, new OverlayLayer(8));
+	}
+
+	/**
+	 * Notifies map listeners of any change to an overlay's array
+	 * since the last time this was called for that overlay.
+	 */
+	void updateOverlay(MapState overlayDataType)
+	{
+		CityRect r = updateOverlayLayer(overlayDataType);
+		if (r != null) {
+			fireMapOverlayDataChanged(overlayDataType, clipToMap(r));
 		}
 	}
 
-	void fireMapOverlayDataChanged(MapState overlayDataType)
+	private CityRect updateOverlayLayer(MapState overlayDataType)
 	{
-		for (MapListener l : mapListeners) {
-			l.mapOverlayDataChanged(overlayDataType);
+		OverlayLayer layer = overlayLayers.get(overlayDataType);
+		switch (overlayDataType) {
+		case POWER_OVERLAY:      return layer.update(powerMap);
+		case POPDEN_OVERLAY:     return layer.update(popDensity);
+		case LANDVALUE_OVERLAY:  return layer.update(landValueMem);
+		case CRIME_OVERLAY:      return layer.update(crimeMem);
+		case POLLUTE_OVERLAY:    return layer.update(pollutionMem);
+		case TRAFFIC_OVERLAY:    return layer.update(trfDensity);
+		case GROWTHRATE_OVERLAY: return layer.update(rateOGMem);
+		case FIRE_OVERLAY:       return layer.update(fireRate);
+		case POLICE_OVERLAY:     return layer.update(policeMapEffect);
+		default:
+			throw new Error("unexpected overlay "+overlayDataType);
 		}
 	}
 
-	void fireOptionsChanged()
+	private CityRect clipToMap(CityRect r)
 	{
-		for (Listener l : listeners)
-		{
-			l.optionsChanged();
+		r.width = Math.min(r.width, getWidth() - r.x);
+		r.height = Math.min(r.height, getHeight() - r.y);
+		return r;
+	}
+
+	/**
+	 * Gets a number that changes whenever the data shown by the
+	 * given overlay changes. Overlays that only depend on the map's
+	 * tiles always have version zero.
+	 */
+	public int getOverlayVersion(MapState overlayDataType)
+	{
+		OverlayLayer layer = overlayLayers.get(overlayDataType);
+		return layer != null ? layer.version : 0;
+	}
+
+	/**
+	 * Gets the value an overlay had at the given map location when
+	 * its listeners were last notified. Views should use this rather
+	 * than the live array, which the simulation may be part-way
+	 * through updating.
+	 */
+	public int getOverlayValue(MapState overlayDataType, int xpos, int ypos)
+	{
+		OverlayLayer layer = overlayLayers.get(overlayDataType);
+		if (!testBounds(xpos, ypos)) {
+			return 0;
 		}
+		return layer.get(xpos/layer.scale, ypos/layer.scale);
+	}
+
+	void fireOptionsChanged()
+	{
+		events.optionsChanged();
 	}
 
 	void fireSpriteMoved(Sprite sprite)
 	{
-		for (MapListener l : mapListeners)
-		{
-			l.spriteMoved(sprite);
-		}
+		events.spriteMoved(sprite);
 	}
 
 	void fireTileChanged(int xpos, int ypos)
 	{
-		for (MapListener l : mapListeners)
-		{
-			l.tileChanged(xpos, ypos);
-		}
+		events.tileChanged(xpos, ypos);
 	}
 
 	void fireWholeMapChanged()
 	{
-		for (MapListener l : mapListeners)
-		{
-			l.wholeMapChanged();
+		// listeners will reread everything, so just take note
+		// of the overlays' current contents
+		for (MapState overlayDataType : overlayLayers.keySet()) {
+			updateOverlayLayer(overlayDataType);
 		}
+
+		events.wholeMapChanged();
 	}
 
-	ArrayList<Listener> listeners = new ArrayList<Listener>();
-	ArrayList<MapListener> mapListeners = new ArrayList<MapListener>();
-	ArrayList<EarthquakeListener> earthquakeListeners = new ArrayList<EarthquakeListener>();
+	/**
+	 * Queues and merges the events fired during a tick, and delivers
+	 * them to the listeners afterward; see EventBus.
+	 */
+	final EventBus events = new EventBus(this);
 
+	/**
+	 * Registers a listener, which is called on the simulation's thread
+	 * once each tick (or other batch of changes) is complete.
+	 */
 	public void addListener(Listener l)
 	{
-		this.listeners.add(l);
+		addListener(l, null);
+	}
+
+	/**
+	 * Registers a listener that is called by the given executor, so
+	 * that the simulation does not wait for it. By the time it runs,
+	 * the city may have changed further.
+	 * @param executor null to call the listener on the simulation's
+	 * thread
+	 */
+	public void addListener(Listener l, Executor executor)
+	{
+		events.listeners.add(new EventBus.Registration<Listener>(l, executor));
 	}
 
 	public void removeListener(Listener l)
 	{
-		this.listeners.remove(l);
+		EventBus.remove(events.listeners, l);
 	}
 
 	public void addEarthquakeListener(EarthquakeListener l)
 	{
-		this.earthquakeListeners.add(l);
+		addEarthquakeListener(l, null);
+	}
+
+	/** @see #addListener(Listener,Executor) */
+	public void addEarthquakeListener(EarthquakeListener l, Executor executor)
+	{
+		events.earthquakeListeners.add(new EventBus.Registration<EarthquakeListener>(l, executor));
 	}
 
 	public void removeEarthquakeListener(EarthquakeListener l)
 	{
-		this.earthquakeListeners.remove(l);
+		EventBus.remove(events.earthquakeListeners, l);
 	}
 
 	public void addMapListener(MapListener l)
 	{
-		this.mapListeners.add(l);
+		addMapListener(l, null);
+	}
+
+	/** @see #addListener(Listener,Executor) */
+	public void addMapListener(MapListener l, Executor executor)
+	{
+		events.mapListeners.add(new EventBus.Registration<MapListener>(l, executor));
 	}
 
 	public void removeMapListener(MapListener l)
 	{
-		this.mapListeners.remove(l);
+		EventBus.remove(events.mapListeners, l);
 	}
 
 	/**
@@ -447,6 +588,23 @@ public class Micropolis
 		return map[ypos][xpos];
 	}
 
+	/**
+	 * Copies the tile numbers of the whole map (as getTile() returns
+	 * them), row by row, into the given array.
+	 * @param dest an array of at least width*height elements
+	 */
+	public void copyTiles(char [] dest)
+	{
+		final int width = getWidth();
+		for (int y = 0; y < map.length; y++) {
+			char [] row = map[y];
+			int base = y * width;
+			for (int x = 0; x < width; x++) {
+				dest[base + x] = (char)(row[x] & LOMASK);
+			}
+		}
+	}
+
 	boolean isTileDozeable(ToolEffectIfc eff)
 	{
 		int myTile = eff.getTile(0, 0);
@@ -496,7 +654,12 @@ public class Micropolis
 
 	public void setTilePower(int xpos, int ypos, boolean power)
 	{
-		map[ypos][xpos] = (char)(map[ypos][xpos] & (~PWRBIT) | (power ? PWRBIT : 0));
+		char newTile = (char)(map[ypos][xpos] & (~PWRBIT) | (power ? PWRBIT : 0));
+		if (map[ypos][xpos] != newTile)
+		{
+			map[ypos][xpos] = newTile;
+			fireTileChanged(xpos, ypos);
+		}
 	}
 
 	final public boolean testBounds(int xpos, int ypos)
@@ -507,7 +670,7 @@ public class Micropolis
 
 	final boolean hasPower(int x, int y)
 	{
-		return powerMap[y][x];
+		return powerMap.get(x, y);
 	}
 
 	/**
@@ -564,8 +727,6 @@ public class Micropolis
 
 	void simulate(int mod16)
 	{
-		final int band = getWidth() / 8;
-
 		switch (mod16)
 		{
 		case 0:
@@ -578,35 +739,14 @@ public class Micropolis
 			break;
 
 		case 1:
-			mapScan(0 * band, 1 * band);
-			break;
-
 		case 2:
-			mapScan(1 * band, 2 * band);
-			break;
-
 		case 3:
-			mapScan(2 * band, 3 * band);
-			break;
-
 		case 4:
-			mapScan(3 * band, 4 * band);
-			break;
-
 		case 5:
-			mapScan(4 * band, 5 * band);
-			break;
-
 		case 6:
-			mapScan(5 * band, 6 * band);
-			break;
-
 		case 7:
-			mapScan(6 * band, 7 * band);
-			break;
-
 		case 8:
-			mapScan(7 * band, getWidth());
+			mapScanBand(mod16 - 1);
 			break;
 
 		case 9:
@@ -633,18 +773,15 @@ public class Micropolis
 				decROGMem();
 			}
 			decTrafficMem();
-			fireMapOverlayDataChanged(MapState.TRAFFIC_OVERLAY); //TDMAP
-			fireMapOverlayDataChanged(MapState.TRANSPORT);       //RDMAP
-			fireMapOverlayDataChanged(MapState.ALL);             //ALMAP
-			fireMapOverlayDataChanged(MapState.RESIDENTIAL);     //REMAP
-			fireMapOverlayDataChanged(MapState.COMMERCIAL);      //COMAP
-			fireMapOverlayDataChanged(MapState.INDUSTRIAL);      //INMAP
+			updateOverlay(MapState.TRAFFIC_OVERLAY); //TDMAP
+			// TRANSPORT, ALL, RESIDENTIAL, COMMERCIAL and INDUSTRIAL
+			// show only tiles, which report their own changes
 			doMessages();
 			break;
 
 		case 11:
 			powerScan();
-			fireMapOverlayDataChanged(MapState.POWER_OVERLAY);
+			updateOverlay(MapState.POWER_OVERLAY);
 			newPower = true;
 			break;
 
@@ -687,33 +824,31 @@ public class Micropolis
 		return 0;
 	}
 
-	private static int [][] doSmooth(int [][] tem)
+	/**
+	 * Smooths a half-size array into another of the same size, each
+	 * cell becoming a quarter of the sum of itself and its four
+	 * neighbors, capped at 255.
+	 */
+	private void doSmooth(int [][] tem, int [][] tem2)
 	{
 		final int h = tem.length;
 		final int w = tem[0].length;
-		int [][] tem2 = new int[h][w];
+		final int [] zeros = smallZeros;
 
 		for (int y = 0; y < h; y++)
 		{
+			final int [] src = tem[y];
+			final int [] up = y > 0 ? tem[y-1] : zeros;
+			final int [] down = y + 1 < h ? tem[y+1] : zeros;
+			final int [] dest = tem2[y];
 			for (int x = 0; x < w; x++)
 			{
-				int z = tem[y][x];
-				if (x > 0)
-					z += tem[y][x-1];
-				if (x + 1 < w)
-					z += tem[y][x+1];
-				if (y > 0)
-					z += tem[y-1][x];
-				if (y + 1 < h)
-					z += tem[y+1][x];
-				z /= 4;
-				if (z > 255)
-					z = 255;
-				tem2[y][x] = z;
+				int z = src[x] + up[x] + down[x] +
+					(x > 0 ? src[x-1] : 0) +
+					(x + 1 < w ? src[x+1] : 0);
+				dest[x] = Math.min(z / 4, 255);
 			}
 		}
-	
-		return tem2;
 	}
 
 	public void calculateCenterMass()
@@ -728,19 +863,29 @@ public class Micropolis
 		int zoneCount = 0;
 		int width = getWidth();
 		int height = getHeight();
-		int [][] tem = new int[(height+1)/2][(width+1)/2];
+		int [][] tem = halfTemp;
+		for (int [] row : tem) {
+			Arrays.fill(row, 0);
+		}
 
-		for (int x = 0; x < width; x++)
+		for (int y = 0; y < height; y++)
 		{
-			for (int y = 0; y < height; y++)
+			final char [] row = map[y];
+			for (int x = 0; x < width; x++)
 			{
-				char tile = getTile(x, y);
+				char tile = (char)(row[x] & LOMASK);
 				if (isZoneCenter(tile))
 				{
 					int den = computePopDen(x, y, tile) * 8;
 					if (den > 254)
 						den = 254;
-					tem[y/2][x/2] = den;
+
+					// when two zone centers share a cell, keep the one
+					// a column-by-column scan reaches last, as before
+					boolean superseded = (x & 1) == 0 && (y & 1) == 1 &&
+						x + 1 < width && isZoneCenter(map[y-1][x+1] & LOMASK);
+					if (!superseded)
+						tem[y/2][x/2] = den;
 					xtot += x;
 					ytot += y;
 					zoneCount++;
@@ -748,15 +893,18 @@ public class Micropolis
 			}
 		}
 
-		tem = doSmooth(tem);
-		tem = doSmooth(tem);
-		tem = doSmooth(tem);
+		doSmooth(tem, halfTemp2);
+		doSmooth(halfTemp2, tem);
+		doSmooth(tem, halfTemp2);
+		tem = halfTemp2;
 
-		for (int x = 0; x < (width+1)/2; x++)
+		for (int y = 0; y < popDensity.length; y++)
 		{
-			for (int y = 0; y < (height+1)/2; y++)
+			final int [] src = tem[y];
+			final short [] dest = popDensity[y];
+			for (int x = 0; x < dest.length; x++)
 			{
-				popDensity[y][x] = 2 * tem[y][x];
+				dest[x] = (short) (2 * src[x]);
 			}
 		}
 
@@ -774,8 +922,8 @@ public class Micropolis
 			centerMassY = (height+1)/2;
 		}
 
-		fireMapOverlayDataChanged(MapState.POPDEN_OVERLAY);     //PDMAP
-		fireMapOverlayDataChanged(MapState.GROWTHRATE_OVERLAY); //RGMAP
+		updateOverlay(MapState.POPDEN_OVERLAY);     //PDMAP
+		updateOverlay(MapState.GROWTHRATE_OVERLAY); //RGMAP
 	}
 
 	private void distIntMarket()
@@ -797,31 +945,13 @@ public class Micropolis
 	{
 		for (int y = 0; y < rateOGMem.length; y++)
 		{
-			for (int x = 0; x < rateOGMem[y].length; x++)
+			final short [] row = rateOGMem[y];
+			for (int x = 0; x < row.length; x++)
 			{
-				int z = rateOGMem[y][x];
-				if (z == 0)
-					continue;
-
-				if (z > 0)
-				{
-					rateOGMem[y][x]--;
-					if (z > 200)
-					{
-						rateOGMem[y][x] = 200; //prevent overflow?
-					}
-					continue;
-				}
-
-				if (z < 0)
-				{
-					rateOGMem[y][x]++;
-					if (z < -200)
-					{
-						rateOGMem[y][x] = -200;
-					}
-					continue;
-				}
+				// one step toward zero, capped to -200..200
+				int z = row[x];
+				z -= Integer.signum(z);
+				row[x] = (short) Math.max(-200, Math.min(200, z));
 			}
 		}
 	}
@@ -829,61 +959,84 @@ public class Micropolis
 	//tends to empty trfDensity
 	private void decTrafficMem()
 	{
+		int total = 0;
 		for (int y = 0; y < trfDensity.length; y++)
 		{
-			for (int x = 0; x < trfDensity[y].length; x++)
+			final short [] row = trfDensity[y];
+			final byte [] lv = landValueMem[y];
+			int rowSum = 0;
+			for (int x = 0; x < row.length; x++)
 			{
-				int z = trfDensity[y][x];
-				if (z != 0)
-				{
-					if (z > 200)
-						trfDensity[y][x] = z - 34;
-					else if (z > 24)
-						trfDensity[y][x] = z - 24;
-					else
-						trfDensity[y][x] = 0;
-				}
+				// drops by 34 above 200, by 24 above 24, else to zero
+				int z = row[x];
+				z -= z > 200 ? 34 : z > 24 ? 24 : z;
+				row[x] = (short) z;
+
+				rowSum += lv[x] != 0 ? z : 0;
 			}
+
+			// weigh by halfCellArea(); every cell covers two columns
+			// except the last one of an odd-width map
+			int last = row.length - 1;
+			int lastWidth = Math.min(2, getWidth() - 2*last);
+			rowSum = 2 * rowSum - (lv[last] != 0 ? (2 - lastWidth) * row[last] : 0);
+			total += rowSum * Math.min(2, getHeight() - 2*y);
 		}
+		trafficTotal = total;
+	}
+
+	/**
+	 * Gets the number of map cells covered by a cell of the
+	 * half-size arrays (four, except along odd-sized edges).
+	 */
+	int halfCellArea(int hx, int hy)
+	{
+		return Math.min(2, getWidth() - 2*hx) * Math.min(2, getHeight() - 2*hy);
 	}
 
 	void crimeScan()
 	{
 		policeMap = smoothFirePoliceMap(policeMap);
-		policeMap = smoothFirePoliceMap(policeMap);
-		policeMap = smoothFirePoliceMap(policeMap);
 
 		for (int sy = 0; sy < policeMap.length; sy++) {
-			for (int sx = 0; sx < policeMap[sy].length; sx++) {
-				policeMapEffect[sy][sx] = policeMap[sy][sx];
-			}
+			System.arraycopy(policeMap[sy], 0, policeMapEffect[sy], 0, policeMap[sy].length);
 		}
 
 		int count = 0;
 		int sum = 0;
+		for (int hy = 0; hy < landValueMem.length; hy++) {
+			final byte [] lv = landValueMem[hy];
+			final short [] pop = popDensity[hy];
+			final int [] police = policeMap[hy/4];
+			final byte [] crime = crimeMem[hy];
+			for (int hx = 0; hx < lv.length; hx++) {
+				int val = lv[hx] & 0xff;
+				int z = Math.min(300, 128 - val + pop[hx]);
+				z -= police[hx/4];
+				z = Math.max(0, Math.min(250, z));
+				z = val != 0 ? z : 0;
+				crime[hx] = (byte) z;
+
+				count += val != 0 ? 1 : 0;
+				sum += z;
+			}
+		}
+
+		// ties for the maximum are broken at random, so this is
+		// done separately, visiting the cells in the original order
 		int cmax = 0;
 		for (int hy = 0; hy < landValueMem.length; hy++) {
-			for (int hx = 0; hx < landValueMem[hy].length; hx++) {
-				int val = landValueMem[hy][hx];
-				if (val != 0) {
-					count++;
-					int z = 128 - val + popDensity[hy][hx];
-					z = Math.min(300, z);
-					z -= policeMap[hy/4][hx/4];
-					z = Math.min(250, z);
-					z = Math.max(0, z);
-					crimeMem[hy][hx] = z;
-
-					sum += z;
+			final byte [] lv = landValueMem[hy];
+			final byte [] crime = crimeMem[hy];
+			for (int hx = 0; hx < lv.length; hx++) {
+				if (lv[hx] != 0) {
+					int z = crime[hx] & 0xff;
 					if (z > cmax || (z == cmax && PRNG.nextInt(4) == 0)) {
 						cmax = z;
 						crimeMaxLocationX = hx*2;
 						crimeMaxLocationY = hy*2;
 					}
 				}
-				else {
-					crimeMem[hy][hx] = 0;
-				}
 			}
 		}
 
@@ -892,7 +1045,8 @@ public class Micropolis
 		else
 			crimeAverage = 0;
 
-		fireMapOverlayDataChanged(MapState.POLICE_OVERLAY);
+		updateOverlay(MapState.CRIME_OVERLAY);
+		updateOverlay(MapState.POLICE_OVERLAY);
 	}
 
 	void doDisasters()
@@ -935,110 +1089,80 @@ public class Micropolis
 		}
 	}
 
+	/**
+	 * Spreads the effect of fire or police stations, by smoothing the
+	 * given map three times. The work is done in place, alternating
+	 * with a scratch array.
+	 * @return the smoothed map, which is either the given array or
+	 * the former scratch array
+	 */
 	private int[][] smoothFirePoliceMap(int[][] omap)
 	{
-		int smX = omap[0].length;
-		int smY = omap.length;
-		int[][] nmap = new int[smY][smX];
+		int[][] nmap = smallTemp;
+		smoothFirePoliceMap(omap, nmap);
+		smoothFirePoliceMap(nmap, omap);
+		smoothFirePoliceMap(omap, nmap);
+		smallTemp = omap;
+		return nmap;
+	}
+
+	private void smoothFirePoliceMap(int[][] omap, int[][] nmap)
+	{
+		final int smX = omap[0].length;
+		final int smY = omap.length;
+		final int [] zeros = smallZeros;
 		for (int sy = 0; sy < smY; sy++) {
+			final int [] src = omap[sy];
+			final int [] up = sy > 0 ? omap[sy-1] : zeros;
+			final int [] down = sy + 1 < smY ? omap[sy+1] : zeros;
+			final int [] dest = nmap[sy];
 			for (int sx = 0; sx < smX; sx++) {
-				int edge = 0;
-				if (sx > 0) { edge += omap[sy][sx-1]; }
-				if (sx + 1 < smX) { edge += omap[sy][sx+1]; }
-				if (sy > 0) { edge += omap[sy-1][sx]; }
-				if (sy + 1 < smY) { edge += omap[sy+1][sx]; }
-				edge = edge / 4 + omap[sy][sx];
-				nmap[sy][sx] = edge / 2;
+				int edge = up[sx] + down[sx] +
+					(sx > 0 ? src[sx-1] : 0) +
+					(sx + 1 < smX ? src[sx+1] : 0);
+				edge = edge / 4 + src[sx];
+				dest[sx] = edge / 2;
 			}
 		}
-		return nmap;
 	}
 
 	void fireAnalysis()
 	{
-		fireStMap = smoothFirePoliceMap(fireStMap);
-		fireStMap = smoothFirePoliceMap(fireStMap);
 		fireStMap = smoothFirePoliceMap(fireStMap);
 		for (int sy = 0; sy < fireStMap.length; sy++) {
-			for (int sx = 0; sx < fireStMap[sy].length; sx++) {
-				fireRate[sy][sx] = fireStMap[sy][sx];
-			}
+			System.arraycopy(fireStMap[sy], 0, fireRate[sy], 0, fireStMap[sy].length);
 		}
 
-		fireMapOverlayDataChanged(MapState.FIRE_OVERLAY);
+		updateOverlay(MapState.FIRE_OVERLAY);
 	}
 
-	private boolean testForCond(CityLocation loc, int dir)
-	{
-		int xsave = loc.x;
-		int ysave = loc.y;
-
-		boolean rv = false;
-		if (movePowerLocation(loc,dir))
-		{
-			char t = getTile(loc.x, loc.y);
-			rv = (
-				isConductive(t) &&
-				t != NUCLEAR &&
-				t != POWERPLANT &&
-				!hasPower(loc.x, loc.y)
-				);
-		}
-
-		loc.x = xsave;
-		loc.y = ysave;
-		return rv;
-	}
+	static final int [] POWER_DX = { 0, 1, 0, -1, 0 };
+	static final int [] POWER_DY = { -1, 0, 1, 0, 0 };
 
-	private boolean movePowerLocation(CityLocation loc, int dir)
+	/**
+	 * Checks whether power can spread from the given location to its
+	 * neighbor in the given direction (0 to 3: north, east, south, west).
+	 */
+	private boolean testForCond(int x, int y, int dir)
 	{
-		switch(dir)
-		{
-		case 0:
-			if (loc.y > 0)
-			{
-				loc.y--;
-				return true;
-			}
-			else
-				return false;
-		case 1:
-			if (loc.x + 1 < getWidth())
-			{
-				loc.x++;
-				return true;
-			}
-			else
-				return false;
-		case 2:
-			if (loc.y + 1 < getHeight())
-			{
-				loc.y++;
-				return true;
-			}
-			else
-				return false;
-		case 3:
-			if (loc.x > 0)
-			{
-				loc.x--;
-				return true;
-			}
-			else
-				return false;
-		case 4:
-			return true;
+		int xx = x + POWER_DX[dir];
+		int yy = y + POWER_DY[dir];
+		if (!testBounds(xx, yy)) {
+			return false;
 		}
-		return false;
+
+		char t = getTile(xx, yy);
+		return (
+			isConductive(t) &&
+			t != NUCLEAR &&
+			t != POWERPLANT &&
+			!hasPower(xx, yy)
+			);
 	}
 
 	void powerScan()
 	{
-		// clear powerMap
-		for (boolean [] bb : powerMap)
-		{
-			Arrays.fill(bb, false);
-		}
+		powerMap.clear();
 
 		//
 		// Note: brownouts are based on total number of power plants, not the number
@@ -1053,7 +1177,9 @@ public class Micropolis
 
 		while (!powerPlants.isEmpty())
 		{
-			CityLocation loc = powerPlants.pop();
+			int loc = powerPlants.pop();
+			int x = CityLocation.unpackX(loc);
+			int y = CityLocation.unpackY(loc);
 
 			int aDir = 4;
 			int conNum;
@@ -1065,26 +1191,26 @@ public class Micropolis
 					sendMessage(MicropolisMessage.BROWNOUTS_REPORT);
 					return;
 				}
-				movePowerLocation(loc, aDir);
-				powerMap[loc.y][loc.x] = true;
+				// (aDir is 4, meaning stay put, or a direction
+				// already found to be within the map)
+				x += POWER_DX[aDir];
+				y += POWER_DY[aDir];
+				powerMap.set(x, y);
 
 				conNum = 0;
 				int dir = 0;
 				while (dir < 4 && conNum < 2)
 				{
-					if (testForCond(loc, dir))
+					if (testForCond(x, y, dir))
 					{
 						conNum++;
 						aDir = dir;
 					}
-					else
-					{
-					}
 					dir++;
 				}
 				if (conNum > 1)
 				{
-					powerPlants.add(new CityLocation(loc.x,loc.y));
+					powerPlants.push(CityLocation.pack(x, y));
 				}
 			}
 			while (conNum != 0);
@@ -1098,8 +1224,8 @@ public class Micropolis
 	 */
 	void addTraffic(int mapX, int mapY, int traffic)
 	{
-		int z = trfDensity[mapY/2][mapX/2];
-		z += traffic;
+		int oldZ = trfDensity[mapY/2][mapX/2];
+		int z = oldZ + traffic;
 
 		//FIXME- why is this only capped to 240
 		// by random chance. why is there no cap
@@ -1118,7 +1244,10 @@ public class Micropolis
 			}
 		}
 
-		trfDensity[mapY/2][mapX/2] = z;
+		trfDensity[mapY/2][mapX/2] = (short) z;
+		if (landValueMem[mapY/2][mapX/2] != 0) {
+			trafficTotal += (z - oldZ) * halfCellArea(mapX/2, mapY/2);
+		}
 	}
 
 	/** Accessor method for fireRate[]. */
@@ -1131,7 +1260,7 @@ public class Micropolis
 	public int getLandValue(int xpos, int ypos)
 	{
 		if (testBounds(xpos, ypos)) {
-			return landValueMem[ypos/2][xpos/2];
+			return landValueMem[ypos/2][xpos/2] & 0xff;
 		}
 		else {
 			return 0;
@@ -1150,28 +1279,31 @@ public class Micropolis
 	//power, terrain, land value
 	void ptlScan()
 	{
-		final int qX = (getWidth()+3)/4;
-		final int qY = (getHeight()+3)/4;
-		int [][] qtem = new int[qY][qX];
+		int [][] qtem = quarterTemp;
+		for (int [] row : qtem) {
+			Arrays.fill(row, 0);
+		}
 
 		int landValueTotal = 0;
 		int landValueCount = 0;
+		int trafficSum = 0;
+		int lvCells = 0;
 
 		final int HWLDX = (getWidth()+1)/2;
 		final int HWLDY = (getHeight()+1)/2;
-		int [][] tem = new int[HWLDY][HWLDX];
-		for (int x = 0; x < HWLDX; x++)
+		int [][] tem = halfTemp;
+		for (int y = 0; y < HWLDY; y++)
 		{
-			for (int y = 0; y < HWLDY; y++)
+			for (int x = 0; x < HWLDX; x++)
 			{
 				int plevel = 0;
 				int lvflag = 0;
 				int zx = 2*x;
 				int zy = 2*y;
 
-				for (int mx = zx; mx <= zx+1; mx++)
+				for (int my = zy; my <= zy+1; my++)
 				{
-					for (int my = zy; my <= zy+1; my++)
+					for (int mx = zx; mx <= zx+1; mx++)
 					{
 						int tile = getTile(mx, my);
 						if (tile != DIRT)
@@ -1205,17 +1337,16 @@ public class Micropolis
 					int dis = 34 - getDisCC(x, y);
 					dis *= 4;
 					dis += terrainMem[y/2][x/2];
-					dis -= pollutionMem[y][x];
-					if (crimeMem[y][x] > 190) {
-						dis -= 20;
-					}
-					if (dis > 250)
-						dis = 250;
-					if (dis < 1)
-						dis = 1;
-					landValueMem[y][x] = dis;
+					dis -= pollutionMem[y][x] & 0xff;
+					dis -= (crimeMem[y][x] & 0xff) > 190 ? 20 : 0;
+					dis = Math.max(1, Math.min(250, dis));
+					landValueMem[y][x] = (byte) dis;
 					landValueTotal += dis;
 					landValueCount++;
+
+					int area = halfCellArea(x, y);
+					trafficSum += trfDensity[y][x] * area;
+					lvCells += area;
 				}
 				else
 				{
@@ -1225,42 +1356,71 @@ public class Micropolis
 		}
 
 		landValueAverage = landValueCount != 0 ? (landValueTotal/landValueCount) : 0;
+		trafficTotal = trafficSum;
+		landValueCells = lvCells;
 
-		tem = doSmooth(tem);
-		tem = doSmooth(tem);
+		doSmooth(tem, halfTemp2);
+		doSmooth(halfTemp2, tem);
 
 		int pcount = 0;
 		int ptotal = 0;
-		int pmax = 0;
-		for (int x = 0; x < HWLDX; x++)
+		for (int y = 0; y < HWLDY; y++)
 		{
-			for (int y = 0; y < HWLDY; y++)
+			for (int x = 0; x < HWLDX; x++)
 			{
 				int z = tem[y][x];
-				pollutionMem[y][x] = z;
+				pollutionMem[y][x] = (byte) z;
 
 				if (z != 0)
 				{
 					pcount++;
 					ptotal += z;
+				}
+			}
+		}
 
-					if (z > pmax ||
-						(z == pmax && PRNG.nextInt(4) == 0))
-					{
-						pmax = z;
-						pollutionMaxLocationX = 2*x;
-						pollutionMaxLocationY = 2*y;
-					}
+		// ties for the maximum are broken at random, so which
+		// location wins depends on the order of the search
+		int pmax = 0;
+		if (scanOrder == ScanOrder.ROWS)
+		{
+			for (int y = 0; y < HWLDY; y++)
+			{
+				for (int x = 0; x < HWLDX; x++)
+				{
+					pmax = checkPollutionMax(pmax, x, y, tem[y][x]);
+				}
+			}
+		}
+		else
+		{
+			for (int x = 0; x < HWLDX; x++)
+			{
+				for (int y = 0; y < HWLDY; y++)
+				{
+					pmax = checkPollutionMax(pmax, x, y, tem[y][x]);
 				}
 			}
 		}
 
 		pollutionAverage = pcount != 0 ? (ptotal / pcount) : 0;
 
-		terrainMem = smoothTerrain(qtem);
+		smoothTerrain(qtem, terrainMem);
 
-		fireMapOverlayDataChanged(MapState.POLLUTE_OVERLAY);   //PLMAP
-		fireMapOverlayDataChanged(MapState.LANDVALUE_OVERLAY); //LVMAP
+		updateOverlay(MapState.POLLUTE_OVERLAY);   //PLMAP
+		updateOverlay(MapState.LANDVALUE_OVERLAY); //LVMAP
+	}
+
+	private int checkPollutionMax(int pmax, int x, int y, int z)
+	{
+		if (z != 0 && (z > pmax ||
+			(z == pmax && PRNG.nextInt(4) == 0)))
+		{
+			pollutionMaxLocationX = 2*x;
+			pollutionMaxLocationY = 2*y;
+			return z;
+		}
+		return pmax;
 	}
 
 	public CityLocation getLocationOfMaxPollution()
@@ -1275,15 +1435,22 @@ public class Micropolis
 	public static class History
 	{
 		public int cityTime;
-		public int [] res = new int[240];
-		public int [] com = new int[240];
-		public int [] ind = new int[240];
-		public int [] money = new int[240];
-		public int [] pollution = new int[240];
-		public int [] crime = new int[240];
-		int resMax;
-		int comMax;
-		int indMax;
+		public final HistorySeries res = new HistorySeries();
+		public final HistorySeries com = new HistorySeries();
+		public final HistorySeries ind = new HistorySeries();
+		public final HistorySeries money = new HistorySeries();
+		public final HistorySeries pollution = new HistorySeries();
+		public final HistorySeries crime = new HistorySeries();
+
+		/**
+		 * Every census sample since this was set, for full-lifetime
+		 * graphs. Null (the default) to not keep one; the game itself
+		 * never sets it, leaving it to programs using the engine.
+		 */
+		public HistoryArchive archive;
+
+		/** The sample being added to the archive, reused each census. */
+		final int [] archiveRow = new int[HistoryArchive.NUM_COLUMNS];
 	}
 	public History history = new History();
 
@@ -1295,7 +1462,7 @@ public class Micropolis
 		double employment;
 		if (normResPop != 0.0)
 		{
-			employment = (history.com[1] + history.ind[1]) / normResPop;
+			employment = (history.com.get(1) + history.ind.get(1)) / normResPop;
 		}
 		else
 		{
@@ -1307,11 +1474,11 @@ public class Micropolis
 		double births = (double)normResPop * BIRTH_RATE;
 		double projectedResPop = normResPop + migration + births;
 
-		double temp = (history.com[1] + history.ind[1]);
+		double temp = (history.com.get(1) + history.ind.get(1));
 		double laborBase;
 		if (temp != 0.0)
 		{
-			laborBase = history.res[1] / temp;
+			laborBase = history.res.get(1) / temp;
 		}
 		else
 		{
@@ -1415,29 +1582,26 @@ public class Micropolis
 		fireDemandChanged();
 	}
 
-	int [][] smoothTerrain(int [][] qtem)
+	void smoothTerrain(int [][] qtem, short [][] mem)
 	{
 		final int QWX = qtem[0].length;
 		final int QWY = qtem.length;
+		final int [] zeros = smallZeros;
 
-		int [][] mem = new int[QWY][QWX];
 		for (int y = 0; y < QWY; y++)
 		{
+			final int [] src = qtem[y];
+			final int [] up = y > 0 ? qtem[y-1] : zeros;
+			final int [] down = y+1 < QWY ? qtem[y+1] : zeros;
+			final short [] dest = mem[y];
 			for (int x = 0; x < QWX; x++)
 			{
-				int z = 0;
-				if (x > 0)
-					z += qtem[y][x-1];
-				if (x+1 < QWX)
-					z += qtem[y][x+1];
-				if (y > 0)
-					z += qtem[y-1][x];
-				if (y+1 < QWY)
-					z += qtem[y+1][x];
-				mem[y][x] = z / 4 + qtem[y][x] / 2;
+				int z = up[x] + down[x] +
+					(x > 0 ? src[x-1] : 0) +
+					(x+1 < QWX ? src[x+1] : 0);
+				dest[x] = (short) (z / 4 + src[x] / 2);
 			}
 		}
-		return mem;
 	}
 
 	// calculate manhatten distance (in 2-units) from center of city
@@ -1485,6 +1649,24 @@ public class Micropolis
 		this.tileBehaviors = bb;
 	}
 
+	/**
+	 * Processes one of the eight bands of the map, so that the whole
+	 * map is processed once per simulation cycle. Bands are columns or
+	 * rows, depending on scanOrder.
+	 * @param band 0 to 7
+	 */
+	void mapScanBand(int band)
+	{
+		if (scanOrder == ScanOrder.ROWS) {
+			final int size = getHeight() / 8;
+			mapScanRows(band * size, band == 7 ? getHeight() : (band + 1) * size);
+		}
+		else {
+			final int size = getWidth() / 8;
+			mapScan(band * size, band == 7 ? getWidth() : (band + 1) * size);
+		}
+	}
+
 	void mapScan(int x0, int x1)
 	{
 		for (int x = x0; x < x1; x++)
@@ -1496,6 +1678,18 @@ public class Micropolis
 		}
 	}
 
+	void mapScanRows(int y0, int y1)
+	{
+		final int width = getWidth();
+		for (int y = y0; y < y1; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				mapScanTile(x, y);
+			}
+		}
+	}
+
 	void mapScanTile(int xpos, int ypos)
 	{
 		int tile = getTile(xpos, ypos);
@@ -1596,7 +1790,8 @@ public class Micropolis
 		}
 	}
 
-	Stack<CityLocation> powerPlants = new Stack<CityLocation>();
+	/** Locations (see CityLocation.pack()) where powerScan() starts. */
+	IntStack powerPlants = new IntStack();
 
 	// counts the population in a certain type of residential zone
 	int doFreePop(int xpos, int ypos)
@@ -1624,49 +1819,34 @@ public class Micropolis
 	//
 	void takeCensus()
 	{
-		int resMax = 0;
-		int comMax = 0;
-		int indMax = 0;
-
-		for (int i = 118; i >= 0; i--)
-		{
-			if (history.res[i] > resMax)
-				resMax = history.res[i];
-			if (history.com[i] > comMax)
-				comMax = history.res[i];
-			if (history.ind[i] > indMax)
-				indMax = history.ind[i];
-
-			history.res[i + 1] = history.res[i];
-			history.com[i + 1] = history.com[i];
-			history.ind[i + 1] = history.ind[i];
-			history.crime[i + 1] = history.crime[i];
-			history.pollution[i + 1] = history.pollution[i];
-			history.money[i + 1] = history.money[i];
-		}
-
-		history.resMax = resMax;
-		history.comMax = comMax;
-		history.indMax = indMax;
-
-		//graph10max = Math.max(resMax, Math.max(comMax, indMax));
-
-		history.res[0] = resPop / 8;
-		history.com[0] = comPop;
-		history.ind[0] = indPop;
+		history.res.addShortTerm(resPop / 8);
+		history.com.addShortTerm(comPop);
+		history.ind.addShortTerm(indPop);
 
 		crimeRamp += (crimeAverage - crimeRamp) / 4;
-		history.crime[0] = Math.min(255, crimeRamp);
+		history.crime.addShortTerm(Math.min(255, crimeRamp));
 
 		polluteRamp += (pollutionAverage - polluteRamp) / 4;
-		history.pollution[0] = Math.min(255, polluteRamp);
+		history.pollution.addShortTerm(Math.min(255, polluteRamp));
 
 		int moneyScaled = cashFlow / 20 + 128;
 		if (moneyScaled < 0)
 			moneyScaled = 0;
 		if (moneyScaled > 255)
 			moneyScaled = 255;
-		history.money[0] = moneyScaled;
+		history.money.addShortTerm(moneyScaled);
+
+		if (history.archive != null) {
+			int [] row = history.archiveRow;
+			row[HistoryArchive.TIME] = cityTime;
+			row[HistoryArchive.RES] = history.res.get(0);
+			row[HistoryArchive.COM] = history.com.get(0);
+			row[HistoryArchive.IND] = history.ind.get(0);
+			row[HistoryArchive.MONEY] = history.money.get(0);
+			row[HistoryArchive.POLLUTION] = history.pollution.get(0);
+			row[HistoryArchive.CRIME] = history.crime.get(0);
+			history.archive.add(row);
+		}
 
 		history.cityTime = cityTime;
 
@@ -1700,33 +1880,12 @@ public class Micropolis
 	void takeCensus2()
 	{
 		// update long term graphs
-		int resMax = 0;
-		int comMax = 0;
-		int indMax = 0;
-
-		for (int i = 238; i >= 120; i--)
-		{
-			if (history.res[i] > resMax)
-				resMax = history.res[i];
-			if (history.com[i] > comMax)
-				comMax = history.res[i];
-			if (history.ind[i] > indMax)
-				indMax = history.ind[i];
-
-			history.res[i + 1] = history.res[i];
-			history.com[i + 1] = history.com[i];
-			history.ind[i + 1] = history.ind[i];
-			history.crime[i + 1] = history.crime[i];
-			history.pollution[i + 1] = history.pollution[i];
-			history.money[i + 1] = history.money[i];
-		}
-
-		history.res[120] = resPop / 8;
-		history.com[120] = comPop;
-		history.ind[120] = indPop;
-		history.crime[120] = history.crime[0];
-		history.pollution[120] = history.pollution[0];
-		history.money[120] = history.money[0];
+		history.res.addLongTerm(resPop / 8);
+		history.com.addLongTerm(comPop);
+		history.ind.addLongTerm(indPop);
+		history.crime.addLongTerm(history.crime.get(0));
+		history.pollution.addLongTerm(history.pollution.get(0));
+		history.money.addLongTerm(history.money.get(0));
 	}
 
 	/** Road/rail maintenance cost multiplier, for various difficulty settings.
@@ -1771,7 +1930,31 @@ public class Micropolis
 		public int taxIncome;
 		public int operatingExpenses;
 	}
-	public ArrayList<FinancialHistory> financialHistory = new ArrayList<FinancialHistory>();
+
+	/** Number of years of financial history kept. */
+	static final int FINANCIAL_HISTORY_YEARS = 10;
+
+	/** Recent financial history, as a ring buffer. */
+	final FinancialHistory [] financialHistory = new FinancialHistory[FINANCIAL_HISTORY_YEARS];
+	int financialHistoryHead;
+	int financialHistoryCount;
+
+	/** Gets the number of years of financial history available. */
+	public int getFinancialHistoryCount()
+	{
+		return financialHistoryCount;
+	}
+
+	/**
+	 * Gets the financial history for a past year.
+	 * @param yearsAgo 0 for the most recent year, 1 for the one
+	 * before that, and so on
+	 */
+	public FinancialHistory getFinancialHistory(int yearsAgo)
+	{
+		assert yearsAgo >= 0 && yearsAgo < financialHistoryCount;
+		return financialHistory[(financialHistoryHead - yearsAgo + FINANCIAL_HISTORY_YEARS) % FINANCIAL_HISTORY_YEARS];
+	}
 
 	void collectTax()
 	{
@@ -1787,7 +1970,9 @@ public class Micropolis
 		spend(-cashFlow);
 
 		hist.totalFunds = budget.totalFunds;
-		financialHistory.add(0,hist);
+		financialHistoryHead = (financialHistoryHead + 1) % FINANCIAL_HISTORY_YEARS;
+		financialHistory[financialHistoryHead] = hist;
+		financialHistoryCount = Math.min(financialHistoryCount + 1, FINANCIAL_HISTORY_YEARS);
 
 		budget.taxFund = 0;
 		budget.roadFundEscrow = 0;
@@ -1916,18 +2101,21 @@ public class Micropolis
 
 	static final int [] MltdwnTab = { 30000, 20000, 10000 };
 
-	void loadHistoryArray_v1(int [] array, DataInputStream dis)
+	void loadHistoryArray_v1(HistorySeries series, DataInputStream dis)
 		throws IOException
 	{
+		int [] array = new int[240];
 		for (int i = 0; i < 240; i++)
 		{
 			array[i] = dis.readShort();
 		}
+		series.load(array);
 	}
 
-	void loadHistoryArray_v2(int [] array, XMLStreamReader in)
+	void loadHistoryArray_v2(HistorySeries series, XMLStreamReader in)
 		throws XMLStreamException
 	{
+		int [] array = new int[240];
 		Reader r = XML_Helper.readElementText(in);
 		Scanner s = new Scanner(r);
 		for (int i = 0; i < 240; i++)
@@ -1935,11 +2123,13 @@ public class Micropolis
 			array[i] = s.nextShort();
 		}
 		s.close();
+		series.load(array);
 	}
 
-	void writeHistoryArray(String tagName, int [] array, XMLStreamWriter out)
+	void writeHistoryArray(String tagName, HistorySeries series, XMLStreamWriter out)
 		throws XMLStreamException
 	{
+		int [] array = series.toArray();
 		out.writeStartElement(tagName);
 		out.writeStartElement("shortTerm");
 		for (int i = 0; i < 120; i++)
@@ -2133,11 +2323,17 @@ public class Micropolis
 	void loadMap_v1(DataInputStream dis)
 		throws IOException
 	{
-		for (int x = 0; x < DEFAULT_WIDTH; x++)
+		// the file stores the map column by column; read it all at
+		// once and fill the map row by row
+		byte [] buf = new byte[2 * DEFAULT_WIDTH * DEFAULT_HEIGHT];
+		dis.readFully(buf);
+
+		for (int y = 0; y < DEFAULT_HEIGHT; y++)
 		{
-			for (int y = 0; y < DEFAULT_HEIGHT; y++)
+			for (int x = 0; x < DEFAULT_WIDTH; x++)
 			{
-				int z = dis.readShort();
+				int i = 2 * (x * DEFAULT_HEIGHT + y);
+				int z = (short) ((buf[i] << 8) | (buf[i+1] & 0xff));
 				z &= ~(1024 | 2048 | 4096 | 8192 | 16384); // clear ZONEBIT,ANIMBIT,BULLBIT,BURNBIT,CONDBIT on import
 				map[y][x] = (char) ((z & (~LOMASK)) | Tiles.loadByOrdinal(z & LOMASK).tileNumber);
 			}
@@ -2276,11 +2472,11 @@ public class Micropolis
 				int tile = getTile(x,y);
 				if (tile == NUCLEAR) {
 					nuclearCount++;
-					powerPlants.add(new CityLocation(x,y));
+					powerPlants.push(CityLocation.pack(x, y));
 				}
 				else if (tile == POWERPLANT) {
 					coalCount++;
-					powerPlants.add(new CityLocation(x,y));
+					powerPlants.push(CityLocation.pack(x, y));
 				}
 			}
 		}
@@ -2289,6 +2485,62 @@ public class Micropolis
 		newPower = true;
 	}
 
+	/**
+	 * Computes the overlays from the map as it stands, without moving
+	 * the simulation forward: power, population density, pollution,
+	 * land value, crime, and police and fire station coverage. Their
+	 * arrays are not saved with a city, so this is for showing the
+	 * overlays of a city just loaded. Traffic and the growth rate,
+	 * which come only from running the simulation, are left as they are.
+	 */
+	public void computeOverlays()
+	{
+		checkPowerMap();
+		updateOverlay(MapState.POWER_OVERLAY);
+
+		// the map scan adds the stations' coverage during each cycle
+		for (int y = 0; y < fireStMap.length; y++) {
+			Arrays.fill(fireStMap[y], 0);
+			Arrays.fill(policeMap[y], 0);
+		}
+		TrafficGen traffic = new TrafficGen(this);
+		for (int y = 0; y < map.length; y++) {
+			for (int x = 0; x < map[y].length; x++) {
+				int tile = getTile(x, y);
+				if (tile == FIRESTATION) {
+					fireStMap[y/8][x/8] += getStationCoverage(x, y, fireEffect, traffic);
+				}
+				else if (tile == POLICESTATION) {
+					policeMap[y/8][x/8] += getStationCoverage(x, y, policeEffect, traffic);
+				}
+			}
+		}
+
+		// in the order the simulation runs them, except that the
+		// population density is needed first, having no earlier cycle
+		popDenScan();
+		ptlScan();
+		crimeScan();
+		fireAnalysis();
+	}
+
+	/**
+	 * Gets the coverage a fire or police station adds to its part of
+	 * the map.
+	 * @param effect fireEffect or policeEffect, from the funding ratio
+	 */
+	int getStationCoverage(int xpos, int ypos, int effect, TrafficGen traffic)
+	{
+		int z = hasPower(xpos, ypos) ? effect : effect / 2;
+
+		traffic.mapX = xpos;
+		traffic.mapY = ypos;
+		if (!traffic.findPerimeterRoad()) {
+			z /= 2;
+		}
+		return z;
+	}
+
 	public void load_v2(InputStream inStream)
 		throws IOException
 	{
@@ -2455,12 +2707,26 @@ public class Micropolis
 
 	public void animate()
 	{
-		this.acycle = (this.acycle+1) % 960;
-		if (this.acycle % 2 == 0) {
-			step();
+		if (recorder != null) {
+			recorder.beginTick();
+		}
+
+		events.begin();
+		try {
+			this.acycle = (this.acycle+1) % 960;
+			if (this.acycle % 2 == 0) {
+				step();
+			}
+			moveObjects();
+			animateTiles();
+		}
+		finally {
+			events.end();
+		}
+
+		if (recorder != null) {
+			recorder.endTick();
 		}
-		moveObjects();
-		animateTiles();
 	}
 
 	public Sprite [] allSprites()
@@ -2511,6 +2777,10 @@ public class Micropolis
 
 	public void makeEarthquake()
 	{
+		if (recorder != null) {
+			recorder.recordDisaster(Disaster.EARTHQUAKE);
+		}
+
 		makeSound(centerMassX, centerMassY, Sound.EXPLOSION_LOW);
 		fireEarthquakeStarted();
 
@@ -2546,6 +2816,10 @@ public class Micropolis
 
 	public void makeFire()
 	{
+		if (recorder != null) {
+			recorder.recordDisaster(Disaster.FIRE);
+		}
+
 		// forty attempts at finding place to start fire
 		for (int t = 0; t < 40; t++)
 		{
@@ -2569,6 +2843,10 @@ public class Micropolis
 	 */
 	public boolean makeMeltdown()
 	{
+		if (recorder != null) {
+			recorder.recordDisaster(Disaster.MELTDOWN);
+		}
+
 		ArrayList<CityLocation> candidates = new ArrayList<CityLocation>();
 		for (int y = 0; y < map.length; y++) {
 			for (int x = 0; x < map[y].length; x++) {
@@ -2591,6 +2869,10 @@ public class Micropolis
 
 	public void makeMonster()
 	{
+		if (recorder != null) {
+			recorder.recordDisaster(Disaster.MONSTER);
+		}
+
 		MonsterSprite monster = (MonsterSprite) getSprite(SpriteKind.GOD);
 		if (monster != null) {
 			// already have a monster in town
@@ -2626,6 +2908,10 @@ public class Micropolis
 
 	public void makeTornado()
 	{
+		if (recorder != null) {
+			recorder.recordDisaster(Disaster.TORNADO);
+		}
+
 		TornadoSprite tornado = (TornadoSprite) getSprite(SpriteKind.TOR);
 		if (tornado != null) {
 			// already have a tornado, so extend the length of the
@@ -2643,6 +2929,10 @@ public class Micropolis
 
 	public void makeFlood()
 	{
+		if (recorder != null) {
+			recorder.recordDisaster(Disaster.FLOOD);
+		}
+
 		final int [] DX = { 0, 1, 0, -1 };
 		final int [] DY = { -1, 0, 1, 0 };
 
@@ -2922,28 +3212,12 @@ public class Micropolis
 
 	public ZoneStatus queryZoneStatus(int xpos, int ypos)
 	{
-		ZoneStatus zs = new ZoneStatus();
-		zs.building = getDescriptionNumber(getTile(xpos, ypos));
-
-		int z;
-		z = (popDensity[ypos/2][xpos/2] / 64) % 4;
-		zs.popDensity = z + 1;
-
-		z = landValueMem[ypos/2][xpos/2];
-		z = z < 30 ? 4 : z < 80 ? 5 : z < 150 ? 6 : 7;
-		zs.landValue = z + 1;
-
-		z = ((crimeMem[ypos/2][xpos/2] / 64) % 4) + 8;
-		zs.crimeLevel = z + 1;
-
-		z = Math.max(13,((pollutionMem[ypos/2][xpos/2] / 64) % 4) + 12);
-		zs.pollution = z + 1;
-
-		z = rateOGMem[ypos/8][xpos/8];
-		z = z < 0 ? 16 : z == 0 ? 17 : z <= 100 ? 18 : 19;
-		zs.growthRate = z + 1;
-
-		return zs;
+		return ZoneStatus.make(getTile(xpos, ypos),
+			popDensity[ypos/2][xpos/2],
+			landValueMem[ypos/2][xpos/2] & 0xff,
+			crimeMem[ypos/2][xpos/2] & 0xff,
+			pollutionMem[ypos/2][xpos/2] & 0xff,
+			rateOGMem[ypos/8][xpos/8]);
 	}
 
 	public int getResValve()
@@ -0,0 +1,312 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.io.*;
+
+import static micropolisj.engine.ObserverServer.*;
+
+/**
+ * Reads the stream sent by an ObserverServer, and keeps a copy of the
+ * observed city up to date from it.
+ * <p>
+ * The copy is an ordinary Micropolis object, which is never simulated;
+ * the frames change its tiles, sprites and census values, and fire the
+ * same events the real city would, so views such as
+ * MicropolisDrawingArea can show it. Frames are read with readFrame(),
+ * which blocks, and applied with apply() on the thread the views use.
+ */
+public class ObserverClient
+{
+	final DataInputStream in;
+	final OutputStream out;
+	Micropolis city;
+	final int [] overlayVersions = new int[MapState.values().length];
+
+	/**
+	 * One frame of the stream, read but not yet applied.
+	 */
+	public static class Frame
+	{
+		final byte [] data;
+
+		Frame(byte [] data)
+		{
+			this.data = data;
+		}
+
+		/** Gets the size of the frame as sent, in bytes. */
+		public int getSize()
+		{
+			return data.length;
+		}
+	}
+
+	/**
+	 * A stand-in for a sprite of the observed city.
+	 */
+	static class MirrorSprite extends Sprite
+	{
+		MirrorSprite(Micropolis city, SpriteKind kind)
+		{
+			super(city, kind);
+		}
+
+		@Override
+		protected void moveImpl()
+		{
+			// moved only by apply()
+		}
+	}
+
+	/**
+	 * Reads the stream's header.
+	 * @param outStream where to acknowledge the frames applied
+	 */
+	public ObserverClient(InputStream inStream, OutputStream outStream)
+		throws IOException
+	{
+		this.in = new DataInputStream(inStream);
+		this.out = outStream;
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not an observer stream");
+		}
+		if (in.readInt() != VERSION) {
+			throw new IOException("unsupported observer stream version");
+		}
+	}
+
+	/**
+	 * Gets the copy of the observed city, or null if no keyframe has
+	 * been applied yet. A keyframe that changes the map's size replaces
+	 * the copy with a new one (see apply()).
+	 */
+	public Micropolis getCity()
+	{
+		return city;
+	}
+
+	/**
+	 * Gets the version last reported for an overlay layer of the
+	 * observed city. The version changes whenever the layer is
+	 * recomputed.
+	 */
+	public int getOverlayVersion(MapState state)
+	{
+		return overlayVersions[state.ordinal()];
+	}
+
+	/**
+	 * Reads the next frame, waiting for it if necessary.
+	 * @return the frame, or null at the end of the stream
+	 */
+	public Frame readFrame()
+		throws IOException
+	{
+		int length;
+		try {
+			length = in.readInt();
+		}
+		catch (EOFException e) {
+			return null;
+		}
+		if (length < 0) {
+			throw new IOException("bad frame length");
+		}
+		byte [] data = new byte[length];
+		in.readFully(data);
+		return new Frame(data);
+	}
+
+	/**
+	 * Applies a frame to the copy of the city, and acknowledges it.
+	 * The server sends only a few frames ahead of the acknowledgements,
+	 * so it sends fewer, larger frames to a client slow to apply them.
+	 * @return true if the copy was replaced by a new Micropolis object
+	 * (see getCity())
+	 */
+	public boolean apply(Frame frame)
+		throws IOException
+	{
+		DataInputStream fin = new DataInputStream(new ByteArrayInputStream(frame.data));
+		boolean replaced = false;
+
+		int type = fin.readUnsignedByte();
+		if (type == KEYFRAME) {
+			int width = fin.readUnsignedShort();
+			int height = fin.readUnsignedShort();
+			if (city == null || city.getWidth() != width || city.getHeight() != height) {
+				city = new Micropolis(width, height);
+				replaced = true;
+			}
+		}
+		else if (type != DELTA) {
+			throw new IOException("bad frame type " + type);
+		}
+		else if (city == null) {
+			throw new IOException("delta before first keyframe");
+		}
+
+		city.events.begin();
+		try {
+			if (type == KEYFRAME) {
+				readKeyframeTiles(fin);
+			}
+			else {
+				readDeltaTiles(fin);
+			}
+			readTrailer(fin);
+		}
+		finally {
+			city.events.end();
+		}
+
+		out.write(ACK);
+		out.flush();
+		return replaced;
+	}
+
+	void readKeyframeTiles(DataInputStream fin)
+		throws IOException
+	{
+		final int width = city.getWidth();
+		final int count = width * city.getHeight();
+		int cell = 0;
+		while (cell < count) {
+			int runLength = readVarInt(fin);
+			char tile = fin.readChar();
+			if (runLength > count - cell) {
+				throw new IOException("tile run past end of map");
+			}
+			for (int end = cell + runLength; cell < end; cell++) {
+				city.map[cell / width][cell % width] = tile;
+			}
+		}
+		city.fireWholeMapChanged();
+	}
+
+	void readDeltaTiles(DataInputStream fin)
+		throws IOException
+	{
+		final int width = city.getWidth();
+		final int count = width * city.getHeight();
+		int spans = readVarInt(fin);
+		int cell = 0;
+		for (int i = 0; i < spans; i++) {
+			cell += readVarInt(fin);
+			int length = readVarInt(fin);
+			if (length > count - cell) {
+				throw new IOException("tile span past end of map");
+			}
+			for (int end = cell + length; cell < end; cell++) {
+				char tile = fin.readChar();
+				int x = cell % width;
+				int y = cell / width;
+				if (city.map[y][x] != tile) {
+					city.map[y][x] = tile;
+					city.fireTileChanged(x, y);
+				}
+			}
+		}
+	}
+
+	void readTrailer(DataInputStream fin)
+		throws IOException
+	{
+		int acycle = fin.readUnsignedShort();
+		if (city.acycle != acycle) {
+			city.acycle = acycle;
+			city.fireMapAnimation();
+		}
+
+		int parts = fin.readUnsignedByte();
+		if ((parts & SPRITES) != 0) {
+			readSprites(fin);
+		}
+
+		if ((parts & OVERLAYS) != 0) {
+			MapState [] states = MapState.values();
+			int count = fin.readUnsignedByte();
+			for (int i = 0; i < count; i++) {
+				int state = fin.readUnsignedByte();
+				if (state >= states.length) {
+					throw new IOException("bad overlay " + state);
+				}
+				overlayVersions[state] = fin.readInt();
+			}
+		}
+
+		if ((parts & CENSUS) != 0) {
+			city.cityTime = fin.readInt();
+			city.budget.totalFunds = fin.readInt();
+			city.lastCityPop = fin.readInt();
+			city.resPop = fin.readInt();
+			city.comPop = fin.readInt();
+			city.indPop = fin.readInt();
+			city.fireCensusChanged();
+			city.fireFundsChanged();
+		}
+	}
+
+	void readSprites(DataInputStream fin)
+		throws IOException
+	{
+		SpriteKind [] kinds = SpriteKind.values();
+		int count = readVarInt(fin);
+		for (int i = 0; i < count; i++) {
+			int kind = fin.readUnsignedByte();
+			if (kind >= kinds.length) {
+				throw new IOException("bad sprite kind " + kind);
+			}
+
+			Sprite sprite = i < city.sprites.size() ? city.sprites.get(i) : null;
+			boolean isNew = sprite == null || sprite.kind != kinds[kind];
+			if (isNew) {
+				// a different sprite; erase the one it replaces
+				if (sprite != null) {
+					removeSprite(sprite);
+				}
+				sprite = new MirrorSprite(city, kinds[kind]);
+				if (i < city.sprites.size()) {
+					city.sprites.set(i, sprite);
+				}
+				else {
+					city.sprites.add(sprite);
+				}
+			}
+
+			sprite.frame = fin.readUnsignedByte();
+			int x = fin.readInt();
+			int y = fin.readInt();
+			sprite.lastX = isNew ? x : sprite.x;
+			sprite.lastY = isNew ? y : sprite.y;
+			sprite.x = x;
+			sprite.y = y;
+			sprite.offx = fin.readShort();
+			sprite.offy = fin.readShort();
+			sprite.width = fin.readShort();
+			sprite.height = fin.readShort();
+			city.fireSpriteMoved(sprite);
+		}
+		while (city.sprites.size() > count) {
+			removeSprite(city.sprites.remove(city.sprites.size() - 1));
+		}
+	}
+
+	/**
+	 * Hides a sprite, so that views erase it where it last was.
+	 */
+	void removeSprite(Sprite sprite)
+	{
+		sprite.frame = 0;
+		sprite.lastX = sprite.x;
+		sprite.lastY = sprite.y;
+		city.fireSpriteMoved(sprite);
+	}
+}
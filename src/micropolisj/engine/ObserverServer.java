@@ -0,0 +1,538 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.io.*;
+import java.net.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams a running city to remote observers (see ObserverClient).
+ * <p>
+ * Each client is sent a keyframe (the whole map) when it connects, and
+ * then, once per tick, a delta holding only what changed: runs of
+ * changed tiles, the sprites if any moved, the versions of any overlay
+ * layers that were recomputed, and the census values if they changed.
+ * Every so often another keyframe is sent, so that a client which has
+ * gone wrong comes right again; one is also sent when the whole map
+ * changes, or the server is given another city (see setCity()).
+ * Frames go out at the end of each tick, so while the simulation is
+ * paused, observers see no changes.
+ * <p>
+ * Frames are encoded on the simulation's thread, and written by a
+ * thread of each client's own. A client still busy with an earlier
+ * frame, or waiting to acknowledge one, gets no new frame that tick;
+ * its changes are kept and merged into the next frame it can take. So a slow client skips
+ * intermediate frames, and never holds up the simulation or the
+ * other clients.
+ * <p>
+ * Stream format: the int MAGIC and VERSION, then frames, each an
+ * int byte count followed by:
+ * <pre>
+ * byte       KEYFRAME or DELTA
+ * KEYFRAME:  short width, short height, then runs of equal tiles
+ *            (varint count, short tile) covering the map row by row
+ * DELTA:     varint number of spans, then for each: varint cells
+ *            skipped since the end of the previous span, varint
+ *            length, and length shorts of tiles
+ * short      animation cycle
+ * byte       which of SPRITES, OVERLAYS, CENSUS follow
+ * SPRITES:   varint count, then for each: byte kind, byte frame,
+ *            int x, int y, short offx, offy, width, height
+ * OVERLAYS:  byte count, then for each: byte MapState, int version
+ * CENSUS:    int cityTime, funds, population, resPop, comPop, indPop
+ * </pre>
+ * Tiles are sent as stored in the map, power bit included.
+ * <p>
+ * The client sends back the byte ACK as it finishes with each frame.
+ * No more than WINDOW frames are sent ahead of these, so a slow client
+ * is found out by its acknowledgements, rather than only once the
+ * network's buffers have filled up with frames it will be late for.
+ */
+public class ObserverServer implements MapListener
+{
+	static final int MAGIC = 0x4d504f42; // "MPOB"
+	static final int VERSION = 1;
+
+	static final int KEYFRAME = 1;
+	static final int DELTA = 2;
+
+	static final int SPRITES = 1;
+	static final int OVERLAYS = 2;
+	static final int CENSUS = 4;
+
+	static final int ACK = 1;
+
+	/** Number of frames that may be sent but not yet acknowledged. */
+	static final int WINDOW = 2;
+
+	/** Number of frames sent to a client between keyframes. */
+	static final int KEYFRAME_INTERVAL = 1000;
+
+	static final int CENSUS_SIZE = 6;
+
+	Micropolis city;
+	final ServerSocket serverSocket;
+	final Thread acceptor;
+
+	final List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+	/** Set when any sprite has moved since the last tick. */
+	boolean spritesMoved;
+
+	final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	final DataOutputStream out = new DataOutputStream(buffer);
+
+	/**
+	 * The state of one connected observer. Except where noted, fields
+	 * are used only on the simulation's thread.
+	 */
+	class Client
+	{
+		final Socket socket;
+		final Thread sender;
+
+		/** Holds the frame waiting to be written, if any. */
+		final BlockingQueue<byte[]> outbox = new ArrayBlockingQueue<byte[]>(1);
+
+		/** Set by either thread, once the client is gone. */
+		volatile boolean closed;
+
+		/**
+		 * Set by the sender thread when it is waiting for a frame it
+		 * could send at once; cleared by the simulation as it gives
+		 * it one.
+		 */
+		volatile boolean ready;
+
+		boolean needsKeyframe = true;
+		int framesSinceKeyframe;
+		int framesSkipped;
+
+		/** Cells (y * width + x) changed since the last frame sent. */
+		final IntStack dirty = new IntStack();
+		MapBitSet dirtySeen;
+
+		boolean spritesDirty;
+		final int [] lastCensus = new int[CENSUS_SIZE];
+		final int [] lastVersions = new int[MapState.values().length];
+
+		Client(Socket socket)
+		{
+			this.socket = socket;
+			this.sender = new Thread("ObserverServer-" + socket.getRemoteSocketAddress()) {
+				public void run() {
+					writeFrames();
+				}};
+			sender.setDaemon(true);
+		}
+
+		void markTile(int xpos, int ypos)
+		{
+			if (needsKeyframe) {
+				// the keyframe will have it anyway
+				return;
+			}
+			if (dirtySeen.add(xpos, ypos)) {
+				dirty.push(ypos * dirtySeen.width + xpos);
+			}
+		}
+
+		void clearDirty()
+		{
+			if (dirtySeen == null || dirtySeen.width != city.getWidth() ||
+				dirtySeen.height != city.getHeight())
+			{
+				dirtySeen = new MapBitSet(city.getWidth(), city.getHeight());
+			}
+			else {
+				for (int i = 0; i < dirty.size(); i++) {
+					int cell = dirty.get(i);
+					dirtySeen.clear(cell % dirtySeen.width, cell / dirtySeen.width);
+				}
+			}
+			dirty.clear();
+		}
+
+		void writeFrames()
+		{
+			try {
+				DataOutputStream sout = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+				sout.writeInt(MAGIC);
+				sout.writeInt(VERSION);
+				sout.flush();
+
+				// no frame is encoded while waiting here for
+				// acknowledgements, so the changes made meanwhile
+				// all go into the frame sent once one arrives
+				InputStream acks = socket.getInputStream();
+				int unacked = 0;
+				while (!closed) {
+					while (unacked >= WINDOW) {
+						int b = acks.read();
+						if (b != ACK) {
+							throw new EOFException();
+						}
+						unacked--;
+					}
+					ready = true;
+					byte [] frame = outbox.take();
+					sout.writeInt(frame.length);
+					sout.write(frame);
+					sout.flush();
+					unacked++;
+				}
+			}
+			catch (IOException e) {
+				// the observer went away
+			}
+			catch (InterruptedException e) {
+				// closing
+			}
+			finally {
+				close();
+			}
+		}
+
+		void close()
+		{
+			closed = true;
+			sender.interrupt();
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Starts accepting observers. Must be called on the simulation's
+	 * thread.
+	 * @param port the port to listen on, on the loopback interface
+	 * only; or 0 for any free port (see getPort())
+	 */
+	public ObserverServer(Micropolis city, int port)
+		throws IOException
+	{
+		this.city = city;
+		this.serverSocket = new ServerSocket(port, 0, InetAddress.getByName(null));
+		this.acceptor = new Thread("ObserverServer") {
+			public void run() {
+				acceptClients();
+			}};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		city.addMapListener(this);
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	public int getClientCount()
+	{
+		return clients.size();
+	}
+
+	/**
+	 * Disconnects all observers and stops listening. Must be called on
+	 * the simulation's thread.
+	 */
+	public void close()
+	{
+		city.removeMapListener(this);
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e) {
+			// ignore
+		}
+		for (Client c : clients) {
+			c.close();
+		}
+		clients.clear();
+	}
+
+	/**
+	 * Streams another city, such as one just loaded, to the connected
+	 * observers, which are sent it whole at its next tick. Must be
+	 * called on the simulation's thread.
+	 */
+	public void setCity(Micropolis newCity)
+	{
+		city.removeMapListener(this);
+		city = newCity;
+		city.addMapListener(this);
+
+		for (Client c : clients) {
+			c.needsKeyframe = true;
+		}
+	}
+
+	void acceptClients()
+	{
+		try {
+			for (;;) {
+				Socket s = serverSocket.accept();
+				s.setTcpNoDelay(true);
+				Client c = new Client(s);
+				clients.add(c);
+				c.sender.start();
+			}
+		}
+		catch (IOException e) {
+			// server socket closed
+		}
+	}
+
+	/**
+	 * Called once per tick, after the tick's other map events.
+	 */
+	void sendFrames()
+	{
+		for (Client c : clients) {
+			if (c.closed) {
+				clients.remove(c);
+				continue;
+			}
+			if (spritesMoved) {
+				c.spritesDirty = true;
+			}
+			if (!c.ready) {
+				// still busy; its changes carry over to the next frame
+				c.framesSkipped++;
+				continue;
+			}
+
+			try {
+				if (c.needsKeyframe || c.framesSinceKeyframe >= KEYFRAME_INTERVAL) {
+					encodeKeyframe(c);
+				}
+				else {
+					encodeDelta(c);
+				}
+			}
+			catch (IOException e) {
+				// not expected when writing to memory
+				throw new Error("unexpected", e);
+			}
+			c.ready = false;
+			c.outbox.offer(buffer.toByteArray());
+		}
+		spritesMoved = false;
+	}
+
+	void encodeKeyframe(Client c)
+		throws IOException
+	{
+		final int width = city.getWidth();
+		final int height = city.getHeight();
+
+		buffer.reset();
+		out.writeByte(KEYFRAME);
+		out.writeShort(width);
+		out.writeShort(height);
+
+		int runLength = 0;
+		char runTile = 0;
+		for (int y = 0; y < height; y++) {
+			char [] row = city.map[y];
+			for (int x = 0; x < width; x++) {
+				if (runLength != 0 && row[x] != runTile) {
+					writeVarInt(out, runLength);
+					out.writeShort(runTile);
+					runLength = 0;
+				}
+				runTile = row[x];
+				runLength++;
+			}
+		}
+		if (runLength != 0) {
+			writeVarInt(out, runLength);
+			out.writeShort(runTile);
+		}
+
+		c.needsKeyframe = false;
+		c.framesSinceKeyframe = 0;
+		c.clearDirty();
+		encodeTrailer(c, true);
+	}
+
+	void encodeDelta(Client c)
+		throws IOException
+	{
+		final int width = city.getWidth();
+		IntStack dirty = c.dirty;
+		Arrays.sort(dirty.data, 0, dirty.size());
+
+		buffer.reset();
+		out.writeByte(DELTA);
+
+		int spans = 0;
+		for (int i = 0; i < dirty.size(); i++) {
+			if (i == 0 || dirty.get(i) != dirty.get(i-1) + 1) {
+				spans++;
+			}
+		}
+		writeVarInt(out, spans);
+
+		int end = 0;
+		for (int i = 0; i < dirty.size(); ) {
+			int start = dirty.get(i);
+			int j = i + 1;
+			while (j < dirty.size() && dirty.get(j) == start + (j - i)) {
+				j++;
+			}
+			writeVarInt(out, start - end);
+			writeVarInt(out, j - i);
+			for (int cell = start; cell < start + (j - i); cell++) {
+				out.writeShort(city.map[cell / width][cell % width]);
+			}
+			end = start + (j - i);
+			i = j;
+		}
+
+		c.framesSinceKeyframe++;
+		c.clearDirty();
+		encodeTrailer(c, false);
+	}
+
+	/**
+	 * Writes the parts of a frame that follow the tiles.
+	 * @param all whether to write every part, changed or not
+	 */
+	void encodeTrailer(Client c, boolean all)
+		throws IOException
+	{
+		out.writeShort(city.acycle);
+
+		int [] census = {
+			city.cityTime,
+			city.budget.totalFunds,
+			city.getCityPopulation(),
+			city.resPop,
+			city.comPop,
+			city.indPop
+			};
+		MapState [] states = MapState.values();
+		int changedLayers = 0;
+		for (MapState state : states) {
+			OverlayLayer layer = city.overlayLayers.get(state);
+			if (layer != null && (all || layer.version != c.lastVersions[state.ordinal()])) {
+				changedLayers++;
+			}
+		}
+
+		boolean sendSprites = all || c.spritesDirty;
+		boolean sendCensus = all || !Arrays.equals(census, c.lastCensus);
+		out.writeByte((sendSprites ? SPRITES : 0) |
+			(changedLayers != 0 ? OVERLAYS : 0) |
+			(sendCensus ? CENSUS : 0));
+
+		if (sendSprites) {
+			Sprite [] sprites = city.allSprites();
+			writeVarInt(out, sprites.length);
+			for (Sprite sprite : sprites) {
+				out.writeByte(sprite.kind.ordinal());
+				out.writeByte(sprite.frame);
+				out.writeInt(sprite.x);
+				out.writeInt(sprite.y);
+				out.writeShort(sprite.offx);
+				out.writeShort(sprite.offy);
+				out.writeShort(sprite.width);
+				out.writeShort(sprite.height);
+			}
+			c.spritesDirty = false;
+		}
+
+		if (changedLayers != 0) {
+			out.writeByte(changedLayers);
+			for (MapState state : states) {
+				OverlayLayer layer = city.overlayLayers.get(state);
+				if (layer != null && (all || layer.version != c.lastVersions[state.ordinal()])) {
+					out.writeByte(state.ordinal());
+					out.writeInt(layer.version);
+					c.lastVersions[state.ordinal()] = layer.version;
+				}
+			}
+		}
+
+		if (sendCensus) {
+			for (int i = 0; i < census.length; i++) {
+				out.writeInt(census[i]);
+			}
+			System.arraycopy(census, 0, c.lastCensus, 0, census.length);
+		}
+	}
+
+	static void writeVarInt(DataOutput out, int value)
+		throws IOException
+	{
+		assert value >= 0;
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(DataInput in)
+		throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("bad varint");
+	}
+
+	//implements MapListener
+	public void mapAnimation()
+	{
+		sendFrames();
+	}
+
+	//implements MapListener
+	public void mapOverlayDataChanged(MapState overlayDataType, CityRect changedArea) {}
+
+	//implements MapListener
+	public void spriteMoved(Sprite sprite)
+	{
+		spritesMoved = true;
+	}
+
+	//implements MapListener
+	public void tileChanged(int xpos, int ypos)
+	{
+		for (Client c : clients) {
+			c.markTile(xpos, ypos);
+		}
+	}
+
+	//implements MapListener
+	public void wholeMapChanged()
+	{
+		for (Client c : clients) {
+			c.needsKeyframe = true;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+/**
+ * Keeps track of changes to one of the city's overlay arrays.
+ * The simulator calls update() after each scan that recomputes the
+ * array; the layer compares the array to a copy taken the last time,
+ * and reports the part of the map (if any) that changed.
+ */
+class OverlayLayer
+{
+	/** Number of map tiles, in each direction, covered by one array cell. */
+	final int scale;
+
+	/** Incremented each time the contents of the array change. */
+	int version;
+
+	// copy of the array as of the last update; only the one matching
+	// the array's type is used
+	byte [][] lastBytes;
+	short [][] lastShorts;
+	int [][] lastInts;
+	long [] lastBits;
+
+	// bounds, in array cells, of the changes found by an update
+	private int minX, minY, maxX, maxY;
+
+	OverlayLayer(int scale)
+	{
+		this.scale = scale;
+	}
+
+	/**
+	 * Gets the value of a cell, in array coordinates, as of the last
+	 * update. Byte arrays are read as unsigned.
+	 */
+	int get(int x, int y)
+	{
+		if (lastBytes != null) {
+			return lastBytes[y][x] & 0xff;
+		}
+		else if (lastShorts != null) {
+			return lastShorts[y][x];
+		}
+		else if (lastInts != null) {
+			return lastInts[y][x];
+		}
+		else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Gets the size, in bytes, of each cell of the array: 1 for bytes
+	 * and bits, 2 for shorts, 4 for ints.
+	 */
+	int getCellSize()
+	{
+		return lastShorts != null ? 2 : lastInts != null ? 4 : 1;
+	}
+
+	/**
+	 * Copies the cells, as of the last update, row by row into a new
+	 * array. Cells outside of the array read as zero.
+	 */
+	int [] copyCells(int width, int height)
+	{
+		int [] cells = new int[width * height];
+		if (lastBits != null) {
+			// a bit set covers the whole map, at scale 1
+			for (int i = 0; i < cells.length && (i >> 6) < lastBits.length; i++) {
+				cells[i] = (int) (lastBits[i >> 6] >>> i) & 1;
+			}
+			return cells;
+		}
+
+		for (int y = 0; y < height; y++) {
+			int rowWidth = lastBytes != null ? (y < lastBytes.length ? lastBytes[y].length : 0) :
+				lastShorts != null ? (y < lastShorts.length ? lastShorts[y].length : 0) :
+				lastInts != null ? (y < lastInts.length ? lastInts[y].length : 0) : 0;
+			for (int x = 0; x < Math.min(width, rowWidth); x++) {
+				cells[y * width + x] = get(x, y);
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Compares the given array to its previous contents.
+	 * @return the changed area, in map coordinates (before clipping to
+	 * the map), or null if nothing changed
+	 */
+	CityRect update(byte [][] data)
+	{
+		if (lastBytes == null || lastBytes.length != data.length ||
+			(data.length != 0 && lastBytes[0].length != data[0].length))
+		{
+			lastBytes = new byte[data.length][];
+			for (int y = 0; y < data.length; y++) {
+				lastBytes[y] = data[y].clone();
+			}
+			return changedAll(data.length, data.length != 0 ? data[0].length : 0);
+		}
+
+		startUpdate();
+		for (int y = 0; y < data.length; y++) {
+			byte [] row = data[y];
+			byte [] last = lastBytes[y];
+			for (int x = 0; x < row.length; x++) {
+				if (row[x] != last[x]) {
+					last[x] = row[x];
+					markChanged(x, y);
+				}
+			}
+		}
+		return changed();
+	}
+
+	/**
+	 * Compares the given array to its previous contents.
+	 * @see #update(byte[][])
+	 */
+	CityRect update(short [][] data)
+	{
+		if (lastShorts == null || lastShorts.length != data.length ||
+			(data.length != 0 && lastShorts[0].length != data[0].length))
+		{
+			lastShorts = new short[data.length][];
+			for (int y = 0; y < data.length; y++) {
+				lastShorts[y] = data[y].clone();
+			}
+			return changedAll(data.length, data.length != 0 ? data[0].length : 0);
+		}
+
+		startUpdate();
+		for (int y = 0; y < data.length; y++) {
+			short [] row = data[y];
+			short [] last = lastShorts[y];
+			for (int x = 0; x < row.length; x++) {
+				if (row[x] != last[x]) {
+					last[x] = row[x];
+					markChanged(x, y);
+				}
+			}
+		}
+		return changed();
+	}
+
+	/**
+	 * Compares the given array to its previous contents.
+	 * @see #update(byte[][])
+	 */
+	CityRect update(int [][] data)
+	{
+		if (lastInts == null || lastInts.length != data.length ||
+			(data.length != 0 && lastInts[0].length != data[0].length))
+		{
+			lastInts = new int[data.length][];
+			for (int y = 0; y < data.length; y++) {
+				lastInts[y] = data[y].clone();
+			}
+			return changedAll(data.length, data.length != 0 ? data[0].length : 0);
+		}
+
+		startUpdate();
+		for (int y = 0; y < data.length; y++) {
+			int [] row = data[y];
+			int [] last = lastInts[y];
+			for (int x = 0; x < row.length; x++) {
+				if (row[x] != last[x]) {
+					last[x] = row[x];
+					markChanged(x, y);
+				}
+			}
+		}
+		return changed();
+	}
+
+	/**
+	 * Compares the given set to its previous contents, a word
+	 * (64 cells) at a time.
+	 * @see #update(byte[][])
+	 */
+	CityRect update(MapBitSet data)
+	{
+		if (lastBits == null || lastBits.length != data.words.length) {
+			lastBits = data.words.clone();
+			return changedAll(data.height, data.width);
+		}
+
+		startUpdate();
+		for (int i = 0; i < lastBits.length; i++) {
+			long diff = lastBits[i] ^ data.words[i];
+			if (diff != 0) {
+				lastBits[i] = data.words[i];
+				do {
+					int index = i * 64 + Long.numberOfTrailingZeros(diff);
+					markChanged(index % data.width, index / data.width);
+					diff &= diff - 1;
+				}
+				while (diff != 0);
+			}
+		}
+		return changed();
+	}
+
+	private void startUpdate()
+	{
+		minX = minY = Integer.MAX_VALUE;
+		maxX = maxY = -1;
+	}
+
+	private void markChanged(int x, int y)
+	{
+		if (x < minX) { minX = x; }
+		if (x > maxX) { maxX = x; }
+		if (y < minY) { minY = y; }
+		if (y > maxY) { maxY = y; }
+	}
+
+	private CityRect changedAll(int height, int width)
+	{
+		minX = minY = 0;
+		maxX = width - 1;
+		maxY = height - 1;
+		return changed();
+	}
+
+	private CityRect changed()
+	{
+		if (maxX < 0 || maxY < 0) {
+			return null;
+		}
+
+		version++;
+		return new CityRect(
+			minX * scale,
+			minY * scale,
+			(maxX - minX + 1) * scale,
+			(maxY - minY + 1) * scale
+			);
+	}
+}
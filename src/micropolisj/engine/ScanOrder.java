@@ -0,0 +1,30 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+/**
+ * Lists the orders in which the simulator can visit the map's tiles.
+ * Either way, one eighth of the map is processed at each of the eight
+ * map-scan steps of a simulation cycle.
+ * <p>
+ * Tile behaviors change their neighbors and draw random numbers, so
+ * the order affects how a city develops. Only CLASSIC reproduces
+ * cities, recordings and benchmark results made by earlier versions.
+ */
+public enum ScanOrder
+{
+	/** Column by column, left to right, as the original game does. */
+	CLASSIC,
+
+	/**
+	 * Row by row, top to bottom, following the layout of the map
+	 * arrays in memory. Faster on large maps.
+	 */
+	ROWS;
+}
@@ -0,0 +1,332 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.io.*;
+
+/**
+ * Records a play session so that it can be reproduced exactly by
+ * SessionReplayer.
+ * <p>
+ * The log holds the initial city (in the saved-city format), the seed
+ * given to the random number generator, and every input from outside
+ * the simulator (tool strokes, budget and option changes, disasters),
+ * each tagged with the number of animate() calls made before it.
+ * A hash of the city's state (see StateHash) is written every
+ * CHECKPOINT_INTERVAL ticks, so a replay can confirm that it is still
+ * following the recording.
+ * <p>
+ * Recording must start with a freshly created or freshly loaded
+ * engine, since the saved-city format does not hold all of the
+ * simulator's working state.
+ */
+public class SessionRecorder
+{
+	static final int MAGIC = 0x4d505352; // "MPSR"
+	static final int VERSION = 3;
+
+	/** Number of ticks (calls to animate()) between checkpoints. */
+	public static final int CHECKPOINT_INTERVAL = 960;
+
+	// event types
+	static final int EV_END = 0;
+	static final int EV_TOOL = 1;
+	static final int EV_DISASTER = 2;
+	static final int EV_CHECKPOINT = 3;
+	static final int EV_CITY_TAX = 4;
+	static final int EV_ROAD_PERCENT = 5;
+	static final int EV_POLICE_PERCENT = 6;
+	static final int EV_FIRE_PERCENT = 7;
+	static final int EV_AUTO_BUDGET = 8;
+	static final int EV_AUTO_BULLDOZE = 9;
+	static final int EV_NO_DISASTERS = 10;
+	static final int EV_GAME_LEVEL = 11;
+	static final int EV_SPEED = 12;
+	static final int EV_SCAN_ORDER = 13;
+
+	final Micropolis engine;
+	final DataOutputStream out;
+
+	/** Number of calls to animate() since recording started. */
+	int ticks;
+	int lastEventTick;
+
+	/** True while the engine is inside animate(). */
+	boolean simulating;
+
+	/** The write error that stopped recording, if any. */
+	IOException failure;
+
+	// settings as of the last recorded change
+	int cityTax;
+	double roadPercent;
+	double policePercent;
+	double firePercent;
+	boolean autoBudget;
+	boolean autoBulldoze;
+	boolean noDisasters;
+	int gameLevel;
+	Speed simSpeed;
+	ScanOrder scanOrder;
+
+	/**
+	 * Starts recording. The engine is given a random number generator
+	 * of its own, freshly seeded, so that the session can be reproduced
+	 * without disturbing any other engine.
+	 */
+	public SessionRecorder(Micropolis engine, File logFile)
+		throws IOException
+	{
+		assert engine.recorder == null;
+
+		this.engine = engine;
+		this.out = new DataOutputStream(
+			new BufferedOutputStream(
+				new FileOutputStream(logFile)
+			));
+
+		long seed = System.nanoTime();
+		try {
+			ByteArrayOutputStream city = new ByteArrayOutputStream();
+			engine.save(city);
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(seed);
+			out.writeInt(city.size());
+			city.writeTo(out);
+
+			writeAllSettings();
+		}
+		catch (IOException e) {
+			try {
+				out.close();
+			}
+			catch (IOException e2) {
+				// ignore; report the first error
+			}
+			throw e;
+		}
+		if (failure != null) {
+			// writeAllSettings() met an error, and closed the file
+			throw failure;
+		}
+
+		engine.setRandom(new SimRandom(seed));
+		engine.recorder = this;
+	}
+
+	/**
+	 * Stops recording, writing a final checkpoint.
+	 * @throws IOException if writing failed, now or earlier
+	 */
+	public void close()
+		throws IOException
+	{
+		if (engine.recorder != this) {
+			// already stopped by a write error; report it now
+			if (failure != null) {
+				throw failure;
+			}
+			return;
+		}
+
+		checkSettings();
+		engine.recorder = null;
+		writeEvent(EV_CHECKPOINT);
+		out.writeLong(StateHash.compute(engine));
+		writeEvent(EV_END);
+		out.close();
+	}
+
+	void beginTick()
+	{
+		checkSettings();
+		simulating = true;
+	}
+
+	void endTick()
+	{
+		simulating = false;
+		ticks++;
+
+		if (ticks % CHECKPOINT_INTERVAL == 0) {
+			try {
+				writeEvent(EV_CHECKPOINT);
+				out.writeLong(StateHash.compute(engine));
+			}
+			catch (IOException e) {
+				stopOnError(e);
+			}
+		}
+	}
+
+	void recordTool(MicropolisTool tool, int xpos, int ypos, int xdest, int ydest)
+	{
+		if (simulating) {
+			return;
+		}
+
+		checkSettings();
+		try {
+			writeEvent(EV_TOOL);
+			out.writeByte(tool.ordinal());
+			writeVarInt(zigzag(xpos));
+			writeVarInt(zigzag(ypos));
+			writeVarInt(zigzag(xdest));
+			writeVarInt(zigzag(ydest));
+		}
+		catch (IOException e) {
+			stopOnError(e);
+		}
+	}
+
+	void recordDisaster(Disaster disaster)
+	{
+		if (simulating) {
+			// the simulator's own disasters
+			return;
+		}
+
+		checkSettings();
+		try {
+			writeEvent(EV_DISASTER);
+			out.writeByte(disaster.ordinal());
+		}
+		catch (IOException e) {
+			stopOnError(e);
+		}
+	}
+
+	/**
+	 * Records any settings changed since they were last recorded.
+	 * Settings are plain fields that the front-end assigns directly,
+	 * so they are compared rather than intercepted; this is done
+	 * before every tick and every other input.
+	 */
+	void checkSettings()
+	{
+		try {
+			if (cityTax != engine.cityTax) {
+				cityTax = engine.cityTax;
+				writeEvent(EV_CITY_TAX);
+				writeVarInt(zigzag(cityTax));
+			}
+			if (Double.compare(roadPercent, engine.roadPercent) != 0) {
+				roadPercent = engine.roadPercent;
+				writeEvent(EV_ROAD_PERCENT);
+				out.writeDouble(roadPercent);
+			}
+			if (Double.compare(policePercent, engine.policePercent) != 0) {
+				policePercent = engine.policePercent;
+				writeEvent(EV_POLICE_PERCENT);
+				out.writeDouble(policePercent);
+			}
+			if (Double.compare(firePercent, engine.firePercent) != 0) {
+				firePercent = engine.firePercent;
+				writeEvent(EV_FIRE_PERCENT);
+				out.writeDouble(firePercent);
+			}
+			if (autoBudget != engine.autoBudget) {
+				autoBudget = engine.autoBudget;
+				writeEvent(EV_AUTO_BUDGET);
+				out.writeBoolean(autoBudget);
+			}
+			if (autoBulldoze != engine.autoBulldoze) {
+				autoBulldoze = engine.autoBulldoze;
+				writeEvent(EV_AUTO_BULLDOZE);
+				out.writeBoolean(autoBulldoze);
+			}
+			if (noDisasters != engine.noDisasters) {
+				noDisasters = engine.noDisasters;
+				writeEvent(EV_NO_DISASTERS);
+				out.writeBoolean(noDisasters);
+			}
+			if (gameLevel != engine.gameLevel) {
+				gameLevel = engine.gameLevel;
+				writeEvent(EV_GAME_LEVEL);
+				out.writeByte(gameLevel);
+			}
+			if (simSpeed != engine.simSpeed) {
+				simSpeed = engine.simSpeed;
+				writeEvent(EV_SPEED);
+				out.writeByte(simSpeed.ordinal());
+			}
+			if (scanOrder != engine.scanOrder) {
+				scanOrder = engine.scanOrder;
+				writeEvent(EV_SCAN_ORDER);
+				out.writeByte(scanOrder.ordinal());
+			}
+		}
+		catch (IOException e) {
+			stopOnError(e);
+		}
+	}
+
+	private void writeAllSettings()
+		throws IOException
+	{
+		// make every setting differ from the engine's, so that
+		// checkSettings() writes them all
+		cityTax = ~engine.cityTax;
+		roadPercent = -1.0;
+		policePercent = -1.0;
+		firePercent = -1.0;
+		autoBudget = !engine.autoBudget;
+		autoBulldoze = !engine.autoBulldoze;
+		noDisasters = !engine.noDisasters;
+		gameLevel = ~engine.gameLevel;
+		simSpeed = null;
+		scanOrder = null;
+		checkSettings();
+	}
+
+	private void writeEvent(int type)
+		throws IOException
+	{
+		writeVarInt(ticks - lastEventTick);
+		lastEventTick = ticks;
+		out.writeByte(type);
+	}
+
+	private void writeVarInt(int v)
+		throws IOException
+	{
+		while ((v & ~0x7f) != 0) {
+			out.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	static int zigzag(int v)
+	{
+		return (v << 1) ^ (v >> 31);
+	}
+
+	/**
+	 * A recording that cannot be written is of no use, but it must not
+	 * interrupt the game; so just stop recording.
+	 */
+	private void stopOnError(IOException e)
+	{
+		// the error is thrown from close(), where the front-end
+		// reports its other recording failures
+		failure = e;
+		if (engine.recorder == this) {
+			engine.recorder = null;
+		}
+		try {
+			out.close();
+		}
+		catch (IOException e2) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,281 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.io.*;
+
+import static micropolisj.engine.SessionRecorder.*;
+
+/**
+ * Plays back a session written by SessionRecorder, on an engine with
+ * no user interface, as fast as the machine allows. The hash of the
+ * city's state is compared at every checkpoint in the recording.
+ * <p>
+ * Can also be run from the command line:
+ * <pre>
+ * java micropolisj.engine.SessionReplayer SESSIONFILE...
+ * </pre>
+ * which replays each recording and reports its checkpoints and speed,
+ * exiting with a nonzero status if any of them diverged.
+ */
+public class SessionReplayer
+{
+	final DataInputStream in;
+	final Micropolis engine;
+
+	/** Number of calls to animate() made so far. */
+	int ticks;
+
+	int checkpointsPassed;
+
+	/** The tick of the first failed checkpoint, or -1 if none failed. */
+	int divergedAt = -1;
+
+	public SessionReplayer(File logFile)
+		throws IOException
+	{
+		this.in = new DataInputStream(
+			new BufferedInputStream(
+				new FileInputStream(logFile)
+			));
+
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a session recording");
+		}
+		int version = in.readInt();
+		// version 2 differs only in lacking EV_SCAN_ORDER
+		if (version < 2 || version > VERSION) {
+			throw new IOException("Unsupported session recording version: "+version);
+		}
+		long seed = in.readLong();
+		byte [] city = new byte[in.readInt()];
+		in.readFully(city);
+
+		engine = new Micropolis(Micropolis.DEFAULT_WIDTH, Micropolis.DEFAULT_HEIGHT,
+			new SimRandom(seed));
+		engine.load_v2(new ByteArrayInputStream(city));
+	}
+
+	/** Gets the engine the session is played on. */
+	public Micropolis getEngine()
+	{
+		return engine;
+	}
+
+	public int getTicks()
+	{
+		return ticks;
+	}
+
+	public int getCheckpointsPassed()
+	{
+		return checkpointsPassed;
+	}
+
+	/**
+	 * Gets the tick at which the replay first disagreed with the
+	 * recording, or -1 if it has not.
+	 */
+	public int getDivergedAt()
+	{
+		return divergedAt;
+	}
+
+	/**
+	 * Plays the whole session.
+	 * @param stopOnDivergence whether to stop at the first failed
+	 * checkpoint, rather than play the rest of the inputs anyway
+	 * @return true if every checkpoint matched
+	 */
+	public boolean run(boolean stopOnDivergence)
+		throws IOException
+	{
+		try {
+			for (;;) {
+				int eventTick = ticks + readVarInt();
+				int type = in.readUnsignedByte();
+
+				while (ticks < eventTick) {
+					engine.animate();
+					ticks++;
+				}
+
+				if (type == EV_END) {
+					break;
+				}
+				if (!apply(type) && stopOnDivergence) {
+					break;
+				}
+			}
+		}
+		catch (EOFException e) {
+			// the recording was cut short (e.g. the game crashed);
+			// everything up to that point has been replayed
+		}
+		finally {
+			in.close();
+		}
+
+		return divergedAt == -1;
+	}
+
+	/**
+	 * @return false if the event was a checkpoint that failed
+	 */
+	private boolean apply(int type)
+		throws IOException
+	{
+		switch (type) {
+		case EV_TOOL: {
+			MicropolisTool tool = MicropolisTool.values()[in.readUnsignedByte()];
+			int xpos = unzigzag(readVarInt());
+			int ypos = unzigzag(readVarInt());
+			int xdest = unzigzag(readVarInt());
+			int ydest = unzigzag(readVarInt());
+			ToolStroke stroke = tool.beginStroke(engine, xpos, ypos);
+			stroke.dragTo(xdest, ydest);
+			stroke.apply();
+			return true;
+			}
+
+		case EV_DISASTER:
+			makeDisaster(Disaster.values()[in.readUnsignedByte()]);
+			return true;
+
+		case EV_CHECKPOINT: {
+			long expected = in.readLong();
+			if (expected == StateHash.compute(engine)) {
+				checkpointsPassed++;
+				return true;
+			}
+			if (divergedAt == -1) {
+				divergedAt = ticks;
+			}
+			return false;
+			}
+
+		case EV_CITY_TAX:
+			engine.cityTax = unzigzag(readVarInt());
+			return true;
+
+		case EV_ROAD_PERCENT:
+			engine.roadPercent = in.readDouble();
+			return true;
+
+		case EV_POLICE_PERCENT:
+			engine.policePercent = in.readDouble();
+			return true;
+
+		case EV_FIRE_PERCENT:
+			engine.firePercent = in.readDouble();
+			return true;
+
+		case EV_AUTO_BUDGET:
+			engine.autoBudget = in.readBoolean();
+			return true;
+
+		case EV_AUTO_BULLDOZE:
+			engine.autoBulldoze = in.readBoolean();
+			return true;
+
+		case EV_NO_DISASTERS:
+			engine.noDisasters = in.readBoolean();
+			return true;
+
+		case EV_GAME_LEVEL:
+			engine.gameLevel = in.readUnsignedByte();
+			return true;
+
+		case EV_SPEED:
+			// does not affect the outcome; kept for reference only
+			engine.simSpeed = Speed.values()[in.readUnsignedByte()];
+			return true;
+
+		case EV_SCAN_ORDER:
+			engine.scanOrder = ScanOrder.values()[in.readUnsignedByte()];
+			return true;
+
+		default:
+			throw new IOException("Invalid session event type: "+type);
+		}
+	}
+
+	private void makeDisaster(Disaster disaster)
+	{
+		switch (disaster) {
+		case FIRE:
+			engine.makeFire();
+			break;
+		case FLOOD:
+			engine.makeFlood();
+			break;
+		case MONSTER:
+			engine.makeMonster();
+			break;
+		case MELTDOWN:
+			engine.makeMeltdown();
+			break;
+		case TORNADO:
+			engine.makeTornado();
+			break;
+		case EARTHQUAKE:
+			engine.makeEarthquake();
+			break;
+		default:
+			assert false; //unknown disaster
+		}
+	}
+
+	private int readVarInt()
+		throws IOException
+	{
+		int v = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			v |= (b & 0x7f) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+		return v;
+	}
+
+	static int unzigzag(int v)
+	{
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	public static void main(String [] args)
+		throws Exception
+	{
+		if (args.length == 0) {
+			System.err.println("Usage: java "+SessionReplayer.class.getName()+" SESSIONFILE...");
+			System.exit(2);
+		}
+
+		boolean allPassed = true;
+		for (String arg : args) {
+			SessionReplayer r = new SessionReplayer(new File(arg));
+			long start = System.nanoTime();
+			boolean passed = r.run(false);
+			long elapsed = System.nanoTime() - start;
+
+			System.out.printf("%s: %d ticks, %d checkpoints passed, %s, %.0f ticks/s\n",
+				arg,
+				r.getTicks(),
+				r.getCheckpointsPassed(),
+				passed ? "OK" : "DIVERGED at tick "+r.getDivergedAt(),
+				r.getTicks() * 1.0e9 / Math.max(1, elapsed)
+				);
+			allPassed &= passed;
+		}
+		System.exit(allPassed ? 0 : 1);
+	}
+}
@@ -0,0 +1,63 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.util.Random;
+
+/**
+ * A random number generator producing exactly the same sequence as
+ * java.util.Random (whose algorithm is fixed by its specification),
+ * but whose internal state can be read, so that it can be included
+ * in a checksum of the simulation (see StateHash).
+ * <p>
+ * Unlike java.util.Random, it is not safe for use by several threads.
+ */
+public class SimRandom extends Random
+{
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+
+	// note: no initializer, since the superclass constructor
+	// calls setSeed() before this class's initializers would run
+	private long state;
+
+	public SimRandom()
+	{
+		super();
+	}
+
+	public SimRandom(long seed)
+	{
+		super(seed);
+	}
+
+	@Override
+	public void setSeed(long seed)
+	{
+		super.setSeed(seed); //discards any saved nextGaussian() value
+		state = (seed ^ MULTIPLIER) & MASK;
+	}
+
+	@Override
+	protected int next(int bits)
+	{
+		state = (state * MULTIPLIER + ADDEND) & MASK;
+		return (int)(state >>> (48 - bits));
+	}
+
+	/**
+	 * Gets the generator's current state. Two generators with the
+	 * same state will produce the same numbers from then on.
+	 */
+	public long getState()
+	{
+		return state;
+	}
+}
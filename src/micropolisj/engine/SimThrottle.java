@@ -0,0 +1,113 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+/**
+ * Drives the simulation as fast as the machine allows (Speed.MAX).
+ * The front-end calls runFrame() once per display frame; each call
+ * performs as many animation steps as fit in a share of the frame
+ * budget. The share shrinks whenever frames start arriving late, so
+ * that the user interface keeps up.
+ */
+public class SimThrottle
+{
+	final Micropolis engine;
+
+	/** Length of one display frame, in nanoseconds. */
+	final long frameNanos;
+
+	/** Fraction of each frame given to the simulation. */
+	double simShare = 0.75;
+
+	static final double MIN_SHARE = 0.10;
+	static final double MAX_SHARE = 0.90;
+
+	/** Moving average of the cost of one call to animate(), in nanoseconds. */
+	long avgStepNanos;
+
+	long lastFrameStart;
+
+	// for measuring simulation steps per second
+	long windowStart;
+	int windowSteps;
+	int stepsPerSecond;
+
+	public SimThrottle(Micropolis engine, int frameMillis)
+	{
+		assert frameMillis > 0;
+
+		this.engine = engine;
+		this.frameNanos = frameMillis * 1000000L;
+	}
+
+	/**
+	 * Runs the simulation for (roughly) the current frame budget.
+	 * @return true if it stopped early because the yearly budget
+	 * is due and must be presented to the player.
+	 */
+	public boolean runFrame()
+	{
+		long frameStart = System.nanoTime();
+		if (lastFrameStart != 0) {
+			long interval = frameStart - lastFrameStart;
+			if (interval > frameNanos * 3 / 2) {
+				// missed a frame; give the UI more room
+				simShare = Math.max(MIN_SHARE, simShare * 0.8);
+			}
+			else {
+				simShare = Math.min(MAX_SHARE, simShare + 0.02);
+			}
+		}
+		lastFrameStart = frameStart;
+
+		long deadline = frameStart + (long)(frameNanos * simShare);
+		long now = frameStart;
+		boolean stoppedForBudget = false;
+
+		do
+		{
+			engine.animate();
+			if (engine.acycle % 2 == 0) {
+				windowSteps++;
+			}
+
+			long t = System.nanoTime();
+			long cost = t - now;
+			avgStepNanos = avgStepNanos == 0 ? cost :
+				(avgStepNanos * 7 + cost) / 8;
+			now = t;
+
+			if (!engine.autoBudget && engine.isBudgetTime()) {
+				stoppedForBudget = true;
+				break;
+			}
+		}
+		while (now + avgStepNanos < deadline);
+
+		if (windowStart == 0) {
+			windowStart = frameStart;
+		}
+		else if (now - windowStart >= 1000000000L) {
+			stepsPerSecond = (int)(windowSteps * 1000000000L / (now - windowStart));
+			windowStart = now;
+			windowSteps = 0;
+		}
+
+		return stoppedForBudget;
+	}
+
+	/**
+	 * Gets the number of simulation steps (i.e. calls to step())
+	 * performed during the most recent one-second interval.
+	 */
+	public int getStepsPerSecond()
+	{
+		return stepsPerSecond;
+	}
+}
@@ -0,0 +1,347 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.*;
+
+/**
+ * A long-running performance test of the simulator. It generates a
+ * set of cities from fixed seeds at several map sizes, lays out a grid
+ * of roads, zones and power plants on each with the ordinary tools,
+ * and then runs each city, with no user interface, for a number of
+ * simulated years.
+ * <p>
+ * For each simulated year it records the simulation speed, the memory
+ * allocated, the garbage collections, and the size of the heap after
+ * the most recent collection (which exposes unbounded growth). The
+ * results are written to an XML report so that builds can be compared.
+ * <p>
+ * Usage:
+ * <pre>
+ * java micropolisj.engine.SoakBenchmark [-years N] [-seeds N] [-sizes WxH,...] [-scanorder ORDER] REPORTFILE
+ * </pre>
+ */
+public class SoakBenchmark
+{
+	int years = 10;
+	int seeds = 3;
+	List<CityDimension> sizes = new ArrayList<CityDimension>();
+	ScanOrder scanOrder = ScanOrder.CLASSIC;
+
+	static final int WEEKS_PER_YEAR = 48;
+
+	/** Calls to animate() per simulated week. */
+	static final int TICKS_PER_WEEK = 32;
+
+	/** Spacing of the road grid laid out on each city. */
+	static final int BLOCK = 8;
+
+	final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+	final List<MemoryPoolMXBean> memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+
+	/** HotSpot's per-thread allocation counter, if available. */
+	Method allocatedBytesMethod;
+
+	public SoakBenchmark()
+	{
+		try {
+			Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+			if (c.isInstance(threadBean)) {
+				allocatedBytesMethod = c.getMethod("getThreadAllocatedBytes", long.class);
+			}
+		}
+		catch (Exception e) {
+			// not available on this VM; allocation will not be reported
+		}
+	}
+
+	/**
+	 * Creates a city and lays out the same pattern of development
+	 * that every city in the benchmark gets.
+	 */
+	static Micropolis makeCity(CityDimension size, long seed)
+	{
+		Micropolis engine = new Micropolis(size.width, size.height, new SimRandom(seed));
+		MapGenerator gen = new MapGenerator(engine);
+		gen.createIsland = MapGenerator.CreateIsland.NEVER;
+		gen.generateSomeCity(seed);
+
+		engine.setFunds(Integer.MAX_VALUE / 2);
+		engine.autoBudget = true;
+		engine.noDisasters = true;
+
+		// the developed area: the middle of the map, in whole blocks
+		int bx = (size.width / 4) / BLOCK * BLOCK + BLOCK;
+		int by = (size.height / 4) / BLOCK * BLOCK + BLOCK;
+		int bw = (size.width / 2) / BLOCK * BLOCK;
+		int bh = (size.height / 2) / BLOCK * BLOCK;
+
+		stroke(engine, MicropolisTool.BULLDOZER, bx, by, bx + bw, by + bh);
+
+		for (int y = by; y <= by + bh; y += BLOCK) {
+			stroke(engine, MicropolisTool.ROADS, bx, y, bx + bw, y);
+		}
+		for (int x = bx; x <= bx + bw; x += BLOCK) {
+			stroke(engine, MicropolisTool.ROADS, x, by, x, by + bh);
+		}
+
+		// zones in each block, with a power plant in every ninth block
+		int n = 0;
+		for (int y = by; y < by + bh; y += BLOCK) {
+			for (int x = bx; x < bx + bw; x += BLOCK) {
+				if (n % 9 == 4) {
+					MicropolisTool.POWERPLANT.apply(engine, x + 4, y + 4);
+				}
+				else {
+					MicropolisTool [] zones = {
+						MicropolisTool.RESIDENTIAL,
+						MicropolisTool.RESIDENTIAL,
+						n % 3 == 0 ? MicropolisTool.INDUSTRIAL : MicropolisTool.COMMERCIAL,
+						n % 5 == 0 ? MicropolisTool.PARK : MicropolisTool.RESIDENTIAL
+						};
+					zones[0].apply(engine, x + 2, y + 2);
+					zones[1].apply(engine, x + 5, y + 2);
+					zones[2].apply(engine, x + 2, y + 5);
+					zones[3].apply(engine, x + 5, y + 5);
+				}
+				n++;
+			}
+		}
+
+		// a grid of power lines just inside the roads
+		for (int y = by + BLOCK - 1; y < by + bh; y += BLOCK) {
+			stroke(engine, MicropolisTool.WIRE, bx + 1, y, bx + bw - 1, y);
+		}
+		for (int x = bx + BLOCK - 1; x < bx + bw; x += BLOCK) {
+			stroke(engine, MicropolisTool.WIRE, x, by + 1, x, by + bh - 1);
+		}
+
+		return engine;
+	}
+
+	static void stroke(Micropolis engine, MicropolisTool tool, int x0, int y0, int x1, int y1)
+	{
+		ToolStroke s = tool.beginStroke(engine, x0, y0);
+		s.dragTo(x1, y1);
+		s.apply();
+	}
+
+	long getAllocatedBytes()
+	{
+		if (allocatedBytesMethod == null) {
+			return -1;
+		}
+		try {
+			return (Long) allocatedBytesMethod.invoke(threadBean, Thread.currentThread().getId());
+		}
+		catch (Exception e) {
+			return -1;
+		}
+	}
+
+	long getGcCount()
+	{
+		long total = 0;
+		for (GarbageCollectorMXBean gc : gcBeans) {
+			total += Math.max(0, gc.getCollectionCount());
+		}
+		return total;
+	}
+
+	long getGcMillis()
+	{
+		long total = 0;
+		for (GarbageCollectorMXBean gc : gcBeans) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the amount of heap in use just after the most recent
+	 * garbage collection of each heap pool; i.e. (roughly) the amount
+	 * of live data, without forcing a collection.
+	 */
+	long getLiveHeap()
+	{
+		long total = 0;
+		for (MemoryPoolMXBean pool : memoryPools) {
+			if (pool.getType() == MemoryType.HEAP) {
+				MemoryUsage u = pool.getCollectionUsage();
+				if (u != null) {
+					total += u.getUsed();
+				}
+			}
+		}
+		return total;
+	}
+
+	void runCity(CityDimension size, long seed, XMLStreamWriter out)
+		throws XMLStreamException
+	{
+		long setupStart = System.nanoTime();
+		Micropolis engine = makeCity(size, seed);
+		engine.scanOrder = scanOrder;
+		long setupNanos = System.nanoTime() - setupStart;
+
+		out.writeStartElement("city");
+		out.writeAttribute("seed", Long.toString(seed));
+		out.writeAttribute("width", Integer.toString(size.width));
+		out.writeAttribute("height", Integer.toString(size.height));
+		out.writeAttribute("setupMillis", Long.toString(setupNanos / 1000000));
+
+		long totalNanos = 0;
+		long totalWeeks = 0;
+		long firstLiveHeap = -1;
+		long lastLiveHeap = -1;
+
+		for (int year = 1; year <= years; year++) {
+			long alloc0 = getAllocatedBytes();
+			long gcCount0 = getGcCount();
+			long gcMillis0 = getGcMillis();
+			int time0 = engine.cityTime;
+			long t0 = System.nanoTime();
+
+			for (int i = 0; i < WEEKS_PER_YEAR * TICKS_PER_WEEK; i++) {
+				engine.animate();
+			}
+
+			long elapsed = System.nanoTime() - t0;
+			long alloc = getAllocatedBytes() - alloc0;
+			int weeks = engine.cityTime - time0;
+			long liveHeap = getLiveHeap();
+
+			totalNanos += elapsed;
+			totalWeeks += weeks;
+			if (firstLiveHeap <= 0) {
+				// (zero until the first collection)
+				firstLiveHeap = liveHeap;
+			}
+			lastLiveHeap = liveHeap;
+
+			out.writeEmptyElement("year");
+			out.writeAttribute("n", Integer.toString(year));
+			out.writeAttribute("weeksPerSecond", String.format("%.1f", weeks * 1.0e9 / elapsed));
+			if (alloc0 >= 0) {
+				out.writeAttribute("allocBytesPerSecond", Long.toString((long)(alloc * 1.0e9 / elapsed)));
+				out.writeAttribute("allocBytesPerWeek", Long.toString(alloc / Math.max(1, weeks)));
+			}
+			out.writeAttribute("gcCount", Long.toString(getGcCount() - gcCount0));
+			out.writeAttribute("gcMillis", Long.toString(getGcMillis() - gcMillis0));
+			out.writeAttribute("liveHeapBytes", Long.toString(liveHeap));
+			out.writeAttribute("population", Integer.toString(engine.getCityPopulation()));
+			out.writeAttribute("funds", Integer.toString(engine.budget.totalFunds));
+		}
+
+		double weeksPerSecond = totalWeeks * 1.0e9 / totalNanos;
+		out.writeEmptyElement("summary");
+		out.writeAttribute("weeksPerSecond", String.format("%.1f", weeksPerSecond));
+		out.writeAttribute("liveHeapGrowthBytes", Long.toString(lastLiveHeap - firstLiveHeap));
+		out.writeAttribute("stateHash", Long.toHexString(StateHash.compute(engine)));
+		out.writeEndElement(); //city
+
+		System.out.printf("%dx%d seed %d: %.1f weeks/s, population %d, live heap %+d KB\n",
+			size.width, size.height, seed, weeksPerSecond,
+			engine.getCityPopulation(),
+			(lastLiveHeap - firstLiveHeap) / 1024);
+	}
+
+	void run(File reportFile)
+		throws IOException, XMLStreamException
+	{
+		OutputStream os = new FileOutputStream(reportFile);
+		try {
+			XMLStreamWriter out = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+			out.writeStartDocument();
+			out.writeStartElement("soak-benchmark");
+			out.writeAttribute("years", Integer.toString(years));
+			out.writeAttribute("scanOrder", scanOrder.name());
+			out.writeAttribute("java.version", System.getProperty("java.version"));
+			out.writeAttribute("java.vm.name", System.getProperty("java.vm.name"));
+			out.writeAttribute("os.arch", System.getProperty("os.arch"));
+			out.writeAttribute("processors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+			out.writeAttribute("maxHeapBytes", Long.toString(Runtime.getRuntime().maxMemory()));
+
+			for (CityDimension size : sizes) {
+				for (int i = 0; i < seeds; i++) {
+					runCity(size, 1000 + i, out);
+				}
+			}
+
+			out.writeEndElement(); //soak-benchmark
+			out.writeEndDocument();
+			out.close();
+		}
+		finally {
+			os.close();
+		}
+	}
+
+	static CityDimension parseSize(String s)
+	{
+		int x = s.indexOf('x');
+		if (x == -1) {
+			throw new IllegalArgumentException("invalid size: "+s);
+		}
+		return new CityDimension(
+			Integer.parseInt(s.substring(0, x)),
+			Integer.parseInt(s.substring(x+1))
+			);
+	}
+
+	public static void main(String [] args)
+		throws Exception
+	{
+		SoakBenchmark b = new SoakBenchmark();
+		File reportFile = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-years") && i + 1 < args.length) {
+				b.years = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-seeds") && i + 1 < args.length) {
+				b.seeds = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-sizes") && i + 1 < args.length) {
+				for (String s : args[++i].split(",")) {
+					b.sizes.add(parseSize(s));
+				}
+			}
+			else if (args[i].equals("-scanorder") && i + 1 < args.length) {
+				b.scanOrder = ScanOrder.valueOf(args[++i].toUpperCase());
+			}
+			else if (reportFile == null && !args[i].startsWith("-")) {
+				reportFile = new File(args[i]);
+			}
+			else {
+				reportFile = null;
+				break;
+			}
+		}
+
+		if (reportFile == null) {
+			System.err.println("Usage: java "+SoakBenchmark.class.getName()+" [-years N] [-seeds N] [-sizes WxH,...] [-scanorder ORDER] REPORTFILE");
+			System.exit(2);
+		}
+		if (b.sizes.isEmpty()) {
+			// (the map generator needs at least 80x67)
+			b.sizes.add(new CityDimension(Micropolis.DEFAULT_WIDTH, Micropolis.DEFAULT_HEIGHT));
+			b.sizes.add(new CityDimension(Micropolis.DEFAULT_WIDTH * 3 / 2, Micropolis.DEFAULT_HEIGHT * 3 / 2));
+			b.sizes.add(new CityDimension(Micropolis.DEFAULT_WIDTH * 2, Micropolis.DEFAULT_HEIGHT * 2));
+		}
+
+		b.run(reportFile);
+	}
+}
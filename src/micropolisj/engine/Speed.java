@@ -13,6 +13,8 @@ package micropolisj.engine;
  * Contains properties identifying how often the animation timer fires,
  * and how many animation steps are fired at each interval.
  * Note: for every 2 animation steps, one simulation step is triggered.
+ * The MAX speed has no fixed step count; it runs as many steps as fit
+ * in each frame (see SimThrottle).
  */
 public enum Speed
 {
@@ -20,7 +22,8 @@ public enum Speed
 	SLOW      ( 625,  1),   //one sim step every 1250 ms
 	NORMAL    ( 125,  1),   //one sim step every 250 ms
 	FAST      (  25,  1),   //one sim step every 50 ms
-	SUPER_FAST(  25,  5);   //one sim step every 10 ms
+	SUPER_FAST(  25,  5),   //one sim step every 10 ms
+	MAX       (  16,  0);   //as many sim steps as fit in each 16 ms frame
 
 	/** The animation speed, expressed as an interval in milliseconds. */
 	public final int animationDelay;
@@ -29,6 +32,13 @@ public enum Speed
 	 * update to the screen. */
 	public final int simStepsPerUpdate;
 
+	/** Whether this speed is driven by SimThrottle rather than a fixed
+	 * number of steps per update. */
+	public boolean isUnthrottled()
+	{
+		return this == MAX;
+	}
+
 	private Speed(int delay, int simSteps)
 	{
 		this.animationDelay = delay;
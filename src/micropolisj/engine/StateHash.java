@@ -0,0 +1,313 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+/**
+ * Computes a hash of a city's complete simulation state, for checking
+ * that two engines (e.g. the reference engine and an optimized variant)
+ * are doing exactly the same thing.
+ * <p>
+ * The map, which dominates the state, is hashed incrementally: each
+ * tile contributes independently to a running sum, which is adjusted
+ * whenever the engine reports a tile change. The smaller arrays and the
+ * counters are rehashed on each query. Together this is cheap enough
+ * to query after every tick.
+ */
+public class StateHash implements MapListener
+{
+	/** The parts of the state that are hashed separately. */
+	public enum Part
+	{
+		MAP,
+		OVERLAYS,
+		CENSUS,
+		BUDGET,
+		SPRITES,
+
+		/** The state of the engine's generator, if it is a SimRandom
+		 * (see Micropolis(int,int,Random)); otherwise always zero. */
+		RANDOM;
+	}
+
+	/** Names of the arrays hashed for Part.OVERLAYS, in order. */
+	static final String [] OVERLAY_NAMES = {
+		"landValueMem", "pollutionMem", "crimeMem", "popDensity",
+		"trfDensity", "terrainMem", "rateOGMem", "fireStMap", "fireRate",
+		"policeMap", "policeMapEffect", "comRate"
+		};
+
+	final Micropolis engine;
+
+	/** The map as of the last change notification, row by row. */
+	char [] shadow;
+	int width;
+	long mapHash;
+
+	public StateHash(Micropolis engine)
+	{
+		this.engine = engine;
+		rehashMap();
+		engine.addMapListener(this);
+	}
+
+	/**
+	 * Computes the hash of a city's state once, without tracking
+	 * further changes.
+	 */
+	public static long compute(Micropolis engine)
+	{
+		StateHash h = new StateHash(engine);
+		h.dispose();
+		return h.getHash();
+	}
+
+	/** Stops tracking changes to the city. */
+	public void dispose()
+	{
+		engine.removeMapListener(this);
+	}
+
+	/** Gets the hash of the whole state. */
+	public long getHash()
+	{
+		long h = 0;
+		for (Part part : Part.values()) {
+			h = h * 0x9E3779B97F4A7C15L + getHash(part);
+		}
+		return mix(h);
+	}
+
+	/** Gets the hash of one part of the state. */
+	public long getHash(Part part)
+	{
+		switch (part) {
+		case MAP:      return mapHash;
+		case OVERLAYS: return hashOverlays();
+		case CENSUS:   return hashCensus();
+		case BUDGET:   return hashBudget();
+		case SPRITES:  return hashSprites();
+		case RANDOM:
+			return engine.PRNG instanceof SimRandom ?
+				((SimRandom) engine.PRNG).getState() : 0;
+		default:
+			throw new Error("unexpected part "+part);
+		}
+	}
+
+	/**
+	 * Gets the arrays hashed for Part.OVERLAYS, in the same order
+	 * as OVERLAY_NAMES, widened to ints. This copies the byte and
+	 * short arrays, so is meant for finding where two engines differ,
+	 * not for hashing.
+	 */
+	static int [][][] getOverlayArrays(Micropolis engine)
+	{
+		return new int[][][] {
+			toInts(engine.landValueMem), toInts(engine.pollutionMem), toInts(engine.crimeMem),
+			toInts(engine.popDensity), toInts(engine.trfDensity), toInts(engine.terrainMem),
+			toInts(engine.rateOGMem), engine.fireStMap, engine.fireRate,
+			engine.policeMap, engine.policeMapEffect, engine.comRate
+			};
+	}
+
+	/** Copies an array of unsigned bytes into an array of ints. */
+	static int [][] toInts(byte [][] a)
+	{
+		int [][] rv = new int[a.length][];
+		for (int y = 0; y < a.length; y++) {
+			rv[y] = new int[a[y].length];
+			for (int x = 0; x < a[y].length; x++) {
+				rv[y][x] = a[y][x] & 0xff;
+			}
+		}
+		return rv;
+	}
+
+	static int [][] toInts(short [][] a)
+	{
+		int [][] rv = new int[a.length][];
+		for (int y = 0; y < a.length; y++) {
+			rv[y] = new int[a[y].length];
+			for (int x = 0; x < a[y].length; x++) {
+				rv[y][x] = a[y][x];
+			}
+		}
+		return rv;
+	}
+
+	private void rehashMap()
+	{
+		char [][] map = engine.map;
+		width = map.length != 0 ? map[0].length : 0;
+		shadow = new char[map.length * width];
+
+		long h = 0;
+		for (int y = 0; y < map.length; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				shadow[i] = map[y][x];
+				h += cellHash(i, shadow[i]);
+			}
+		}
+		mapHash = h;
+	}
+
+	private static long cellHash(int index, char tile)
+	{
+		return mix(((long)index << 16) | tile);
+	}
+
+	/** The finalizer of the SplitMix64 generator. */
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private long hashOverlays()
+	{
+		// in the order of OVERLAY_NAMES, reading the arrays in place
+		// as getOverlayArrays() would widen them
+		Micropolis c = engine;
+		long h = 0;
+		h = hashArray(h, c.landValueMem);
+		h = hashArray(h, c.pollutionMem);
+		h = hashArray(h, c.crimeMem);
+		h = hashArray(h, c.popDensity);
+		h = hashArray(h, c.trfDensity);
+		h = hashArray(h, c.terrainMem);
+		h = hashArray(h, c.rateOGMem);
+		h = hashArray(h, c.fireStMap);
+		h = hashArray(h, c.fireRate);
+		h = hashArray(h, c.policeMap);
+		h = hashArray(h, c.policeMapEffect);
+		h = hashArray(h, c.comRate);
+
+		MapBitSet power = engine.powerMap;
+		for (int y = 0; y < power.height; y++) {
+			for (int x = 0; x < power.width; x++) {
+				h = h * 31 + (power.get(x, y) ? 1 : 0);
+			}
+		}
+		return mix(h);
+	}
+
+	/** Adds an array of unsigned bytes to a hash. */
+	private static long hashArray(long h, byte [][] a)
+	{
+		for (byte [] row : a) {
+			for (byte v : row) {
+				h = h * 31 + (v & 0xff);
+			}
+		}
+		return mix(h);
+	}
+
+	private static long hashArray(long h, short [][] a)
+	{
+		for (short [] row : a) {
+			for (short v : row) {
+				h = h * 31 + v;
+			}
+		}
+		return mix(h);
+	}
+
+	private static long hashArray(long h, int [][] a)
+	{
+		for (int [] row : a) {
+			for (int v : row) {
+				h = h * 31 + v;
+			}
+		}
+		return mix(h);
+	}
+
+	private long hashCensus()
+	{
+		Micropolis c = engine;
+		int [] values = {
+			c.cityTime, c.scycle, c.fcycle, c.acycle,
+			c.poweredZoneCount, c.unpoweredZoneCount,
+			c.roadTotal, c.railTotal, c.firePop,
+			c.resZoneCount, c.comZoneCount, c.indZoneCount,
+			c.resPop, c.comPop, c.indPop,
+			c.hospitalCount, c.churchCount, c.policeCount,
+			c.fireStationCount, c.stadiumCount, c.coalCount,
+			c.nuclearCount, c.seaportCount, c.airportCount,
+			c.totalPop, c.lastCityPop,
+			c.crimeAverage, c.pollutionAverage, c.landValueAverage,
+			c.trafficAverage,
+			c.resValve, c.comValve, c.indValve,
+			c.crimeRamp, c.polluteRamp,
+			c.evaluation.cityScore, c.evaluation.cityClass
+			};
+
+		long h = 0;
+		for (int v : values) {
+			h = h * 31 + v;
+		}
+		return mix(h);
+	}
+
+	private long hashBudget()
+	{
+		Micropolis c = engine;
+		long h = 0;
+		h = h * 31 + c.budget.totalFunds;
+		h = h * 31 + c.budget.taxFund;
+		h = h * 31 + c.budget.roadFundEscrow;
+		h = h * 31 + c.budget.fireFundEscrow;
+		h = h * 31 + c.budget.policeFundEscrow;
+		h = h * 31 + c.cityTax;
+		h = h * 31 + Double.doubleToLongBits(c.roadPercent);
+		h = h * 31 + Double.doubleToLongBits(c.policePercent);
+		h = h * 31 + Double.doubleToLongBits(c.firePercent);
+		h = h * 31 + c.taxEffect;
+		h = h * 31 + c.roadEffect;
+		h = h * 31 + c.policeEffect;
+		h = h * 31 + c.fireEffect;
+		h = h * 31 + c.cashFlow;
+		return mix(h);
+	}
+
+	private long hashSprites()
+	{
+		long h = 0;
+		for (Sprite s : engine.sprites) {
+			h = h * 31 + s.kind.ordinal();
+			h = h * 31 + s.x;
+			h = h * 31 + s.y;
+			h = h * 31 + s.frame;
+			h = h * 31 + s.dir;
+		}
+		return mix(h);
+	}
+
+	//implements MapListener
+	public void tileChanged(int xpos, int ypos)
+	{
+		int i = ypos * width + xpos;
+		char tile = engine.map[ypos][xpos];
+		mapHash += cellHash(i, tile) - cellHash(i, shadow[i]);
+		shadow[i] = tile;
+	}
+
+	//implements MapListener
+	public void wholeMapChanged()
+	{
+		rehashMap();
+	}
+
+	//implements MapListener
+	public void mapAnimation() {}
+	public void mapOverlayDataChanged(MapState overlayDataType, CityRect changedArea) {}
+	public void spriteMoved(Sprite sprite) {}
+}
@@ -0,0 +1,376 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static micropolisj.engine.TileConstants.*;
+
+/**
+ * Generates many candidate terrains in parallel, scores each one, and
+ * keeps the seeds of the best. A seed found this way gives the same
+ * terrain when passed to MapGenerator.generateSomeCity() on a city of
+ * the same size.
+ * <p>
+ * Each worker thread generates into its own map buffer, which it reuses
+ * for every seed it tries, so memory use depends on the number of
+ * threads, not the number of candidates.
+ * <p>
+ * Can also be run from the command line:
+ * <pre>
+ * java micropolisj.engine.TerrainBatch [-threads N] [-target B,W,C] WxH COUNT K [FIRSTSEED]
+ * </pre>
+ */
+public class TerrainBatch
+{
+	final int width;
+	final int height;
+	int threads = Runtime.getRuntime().availableProcessors();
+	Scorer scorer = targetScorer(0.75, 0.10, 0.90);
+	MapGenerator.CreateIsland createIsland = MapGenerator.CreateIsland.SELDOM;
+
+	/**
+	 * The measurements of one generated terrain.
+	 */
+	public static class Candidate
+	{
+		public final long seed;
+
+		/** Fraction of the map that is land (dirt or trees). */
+		public final double buildableRatio;
+
+		/** Number of land tiles next to water. */
+		public final int waterfront;
+
+		/** Fraction of the land tiles that are next to water. */
+		public final double waterfrontRatio;
+
+		/**
+		 * Fraction of the water tiles that belong to the largest
+		 * connected body of water; zero if there is no water.
+		 */
+		public final double riverConnectivity;
+
+		/** Assigned by the batch's scorer; higher is better. */
+		public double score;
+
+		Candidate(long seed, int tiles, int land, int waterfront, int water, int largestWater)
+		{
+			this.seed = seed;
+			this.buildableRatio = (double) land / tiles;
+			this.waterfront = waterfront;
+			this.waterfrontRatio = land != 0 ? (double) waterfront / land : 0.0;
+			this.riverConnectivity = water != 0 ? (double) largestWater / water : 0.0;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%d score=%.4f buildable=%.4f waterfront=%d (%.4f) connectivity=%.4f",
+				seed, score, buildableRatio, waterfront, waterfrontRatio, riverConnectivity);
+		}
+	}
+
+	/**
+	 * Decides how good a candidate terrain is. Called from the worker
+	 * threads, so must be safe to call concurrently.
+	 */
+	public interface Scorer
+	{
+		double score(Candidate c);
+	}
+
+	/**
+	 * Orders candidates from worst to best: by score, then preferring
+	 * the lower seed, so the result does not depend on which thread
+	 * finished first.
+	 */
+	static final Comparator<Candidate> WORST_FIRST = new Comparator<Candidate>() {
+		public int compare(Candidate a, Candidate b)
+		{
+			int c = Double.compare(a.score, b.score);
+			if (c != 0) {
+				return c;
+			}
+			return a.seed < b.seed ? 1 : a.seed > b.seed ? -1 : 0;
+		}};
+
+	public TerrainBatch(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+	}
+
+	public void setThreads(int threads)
+	{
+		assert threads > 0;
+		this.threads = threads;
+	}
+
+	public void setScorer(Scorer scorer)
+	{
+		this.scorer = scorer;
+	}
+
+	void setCreateIsland(MapGenerator.CreateIsland createIsland)
+	{
+		this.createIsland = createIsland;
+	}
+
+	/**
+	 * Creates a scorer preferring terrains close to the given
+	 * characteristics. Each characteristic counts equally; the score is
+	 * zero for a perfect match and negative otherwise.
+	 */
+	public static Scorer targetScorer(final double buildableRatio,
+			final double waterfrontRatio, final double riverConnectivity)
+	{
+		return new Scorer() {
+			public double score(Candidate c)
+			{
+				return -(Math.abs(c.buildableRatio - buildableRatio) +
+					Math.abs(c.waterfrontRatio - waterfrontRatio) +
+					Math.abs(c.riverConnectivity - riverConnectivity));
+			}};
+	}
+
+	/**
+	 * Generates and scores the terrains for seeds firstSeed to
+	 * firstSeed+count-1.
+	 * @return the best topK candidates, best first
+	 */
+	public List<Candidate> run(long firstSeed, int count, int topK)
+		throws InterruptedException
+	{
+		final AtomicInteger next = new AtomicInteger();
+		int nthreads = Math.max(1, Math.min(threads, count));
+		List<Callable<PriorityQueue<Candidate>>> tasks = new ArrayList<Callable<PriorityQueue<Candidate>>>();
+		for (int i = 0; i < nthreads; i++) {
+			tasks.add(new Worker(firstSeed, count, topK, next));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(topK + 1, WORST_FIRST);
+		try {
+			for (Future<PriorityQueue<Candidate>> f : pool.invokeAll(tasks)) {
+				for (Candidate c : f.get()) {
+					offer(best, c, topK);
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		List<Candidate> rv = new ArrayList<Candidate>(best);
+		Collections.sort(rv, Collections.reverseOrder(WORST_FIRST));
+		return rv;
+	}
+
+	static void offer(PriorityQueue<Candidate> best, Candidate c, int topK)
+	{
+		if (best.size() < topK) {
+			best.add(c);
+		}
+		else if (topK > 0 && WORST_FIRST.compare(c, best.peek()) > 0) {
+			best.poll();
+			best.add(c);
+		}
+	}
+
+	/**
+	 * Takes seeds from a shared counter until they run out, keeping
+	 * its own best candidates.
+	 */
+	class Worker implements Callable<PriorityQueue<Candidate>>
+	{
+		final long firstSeed;
+		final int count;
+		final int topK;
+		final AtomicInteger next;
+
+		final char [][] map = new char[height][width];
+		final MapBitSet visited = new MapBitSet(width, height);
+		final IntStack stack = new IntStack();
+
+		Worker(long firstSeed, int count, int topK, AtomicInteger next)
+		{
+			this.firstSeed = firstSeed;
+			this.count = count;
+			this.topK = topK;
+			this.next = next;
+		}
+
+		public PriorityQueue<Candidate> call()
+		{
+			PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(topK + 1, WORST_FIRST);
+			MapGenerator gen = new MapGenerator(map);
+			gen.createIsland = createIsland;
+
+			int i;
+			while ((i = next.getAndIncrement()) < count) {
+				long seed = firstSeed + i;
+				gen.generateMap(seed);
+				Candidate c = measure(seed);
+				c.score = scorer.score(c);
+				offer(best, c, topK);
+			}
+			return best;
+		}
+
+		Candidate measure(long seed)
+		{
+			int land = 0;
+			int water = 0;
+			int waterfront = 0;
+			for (int y = 0; y < height; y++) {
+				char [] row = map[y];
+				for (int x = 0; x < width; x++) {
+					if (isWater(row[x])) {
+						water++;
+					}
+					else {
+						land++;
+						if ((x > 0 && isWater(row[x-1])) ||
+							(x + 1 < width && isWater(row[x+1])) ||
+							(y > 0 && isWater(map[y-1][x])) ||
+							(y + 1 < height && isWater(map[y+1][x])))
+						{
+							waterfront++;
+						}
+					}
+				}
+			}
+
+			int largest = 0;
+			if (water != 0) {
+				visited.clear();
+				for (int y = 0; y < height && largest * 2 < water; y++) {
+					for (int x = 0; x < width; x++) {
+						if (isWater(map[y][x]) && !visited.get(x, y)) {
+							largest = Math.max(largest, fillWater(x, y));
+						}
+					}
+				}
+			}
+
+			return new Candidate(seed, width * height, land, waterfront, water, largest);
+		}
+
+		/**
+		 * Marks a connected body of water as visited.
+		 * @return the number of tiles in it
+		 */
+		int fillWater(int x0, int y0)
+		{
+			int size = 0;
+			visited.set(x0, y0);
+			stack.push(CityLocation.pack(x0, y0));
+			while (!stack.isEmpty()) {
+				int loc = stack.pop();
+				int x = CityLocation.unpackX(loc);
+				int y = CityLocation.unpackY(loc);
+				size++;
+
+				if (x > 0) { visitWater(x-1, y); }
+				if (x + 1 < width) { visitWater(x+1, y); }
+				if (y > 0) { visitWater(x, y-1); }
+				if (y + 1 < height) { visitWater(x, y+1); }
+			}
+			return size;
+		}
+
+		void visitWater(int x, int y)
+		{
+			if (isWater(map[y][x]) && visited.add(x, y)) {
+				stack.push(CityLocation.pack(x, y));
+			}
+		}
+	}
+
+	static boolean isWater(char tile)
+	{
+		return tile >= RIVER && tile <= LASTRIVEDGE;
+	}
+
+	public static void main(String [] args)
+		throws Exception
+	{
+		int threads = 0;
+		double [] target = null;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			}
+			else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i+1]);
+			}
+			else if (args[i].equals("-target")) {
+				String [] parts = args[i+1].split(",");
+				if (parts.length != 3) {
+					usage();
+				}
+				target = new double[3];
+				for (int j = 0; j < 3; j++) {
+					target[j] = Double.parseDouble(parts[j]);
+				}
+			}
+			else {
+				usage();
+			}
+		}
+		if (args.length - i < 3 || args.length - i > 4) {
+			usage();
+		}
+
+		String [] size = args[i].split("x");
+		if (size.length != 2) {
+			usage();
+		}
+		TerrainBatch batch = new TerrainBatch(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+		int count = Integer.parseInt(args[i+1]);
+		int topK = Integer.parseInt(args[i+2]);
+		long firstSeed = args.length - i > 3 ? Long.parseLong(args[i+3]) : 0;
+
+		if (threads > 0) {
+			batch.setThreads(threads);
+		}
+		if (target != null) {
+			batch.setScorer(targetScorer(target[0], target[1], target[2]));
+		}
+
+		long startTime = System.nanoTime();
+		List<Candidate> best = batch.run(firstSeed, count, topK);
+		long elapsed = System.nanoTime() - startTime;
+
+		for (Candidate c : best) {
+			System.out.println(c);
+		}
+		System.err.printf("%d terrains in %.2f s%n", count, elapsed / 1e9);
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: java "+TerrainBatch.class.getName()+" [-threads N] [-target B,W,C] WxH COUNT K [FIRSTSEED]");
+		System.exit(2);
+	}
+}
@@ -231,6 +231,33 @@ class TerrainBehavior extends TileBehavior
 		}
 	}
 
+	// tiles changed when a drawbridge opens or closes
+	static final int HDx[] = { -2,  2, -2, -1,  0,  1,  2 };
+	static final int HDy[] = { -1, -1,  0,  0,  0,  0,  0 };
+	static final char HBRTAB[] = {
+		HBRDG1,       HBRDG3,
+		HBRDG0,       RIVER,
+		BRWH,         RIVER,
+		HBRDG2 };
+	static final char HBRTAB2[] = {
+		RIVER,        RIVER,
+		HBRIDGE,      HBRIDGE,
+		HBRIDGE,      HBRIDGE,
+		HBRIDGE };
+
+	static final int VDx[] = {  0,  1,  0,  0,  0,  0,  1 };
+	static final int VDy[] = { -2, -2, -1,  0,  1,  2,  2 };
+	static final char VBRTAB[] = {
+		VBRDG0,       VBRDG1,
+		RIVER,        BRWV,
+		RIVER,        VBRDG2,
+		VBRDG3 };
+	static final char VBRTAB2[] = {
+		VBRIDGE,      RIVER,
+		VBRIDGE,      VBRIDGE,
+		VBRIDGE,      VBRIDGE,
+		RIVER };
+
 	/**
 	 * Called when the current tile is a road bridge over water.
 	 * Handles the draw bridge. For the draw bridge to appear,
@@ -244,32 +271,6 @@ class TerrainBehavior extends TileBehavior
 	 */
 	boolean doBridge()
 	{
-		final int HDx[] = { -2,  2, -2, -1,  0,  1,  2 };
-		final int HDy[] = { -1, -1,  0,  0,  0,  0,  0 };
-		final char HBRTAB[] = {
-			HBRDG1,       HBRDG3,
-			HBRDG0,       RIVER,
-			BRWH,         RIVER,
-			HBRDG2 };
-		final char HBRTAB2[] = {
-			RIVER,        RIVER,
-			HBRIDGE,      HBRIDGE,
-			HBRIDGE,      HBRIDGE,
-			HBRIDGE };
-
-		final int VDx[] = {  0,  1,  0,  0,  0,  0,  1 };
-		final int VDy[] = { -2, -2, -1,  0,  1,  2,  2 };
-		final char VBRTAB[] = {
-			VBRDG0,       VBRDG1,
-			RIVER,        BRWV,
-			RIVER,        VBRDG2,
-			VBRDG3 };
-		final char VBRTAB2[] = {
-			VBRIDGE,      RIVER,
-			VBRIDGE,      VBRIDGE,
-			VBRIDGE,      VBRIDGE,
-			RIVER };
-
 		if (tile == BRWV) {
 			// vertical bridge, open
 			if (PRNG.nextInt(4) == 0 && getBoatDis() > 340/16) {
@@ -0,0 +1,184 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.engine;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the precompiled tile catalog (tiles.bin), a binary
+ * copy of the tile specifications in tiles.rc with all references
+ * between tiles already resolved. Loading it avoids parsing tiles.rc
+ * at startup.
+ * <p>
+ * tiles.rc remains the source of truth: the catalog records a checksum
+ * of the tiles.rc it was made from, and is ignored if that does not
+ * match the tiles.rc actually present.
+ */
+public class TileCatalog
+{
+	static final int MAGIC = 0x4d544346; // "MTCF"
+	static final int VERSION = 1;
+
+	static final int NONE = -1;
+
+	private TileCatalog() {}
+
+	/**
+	 * Computes the checksum a catalog records for its tiles.rc.
+	 */
+	public static long checksum(byte [] recipe)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(recipe);
+		return crc.getValue();
+	}
+
+	/**
+	 * Reads the rest of a stream, and closes it.
+	 */
+	public static byte [] readFully(InputStream in)
+		throws IOException
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte [] buf = new byte[8192];
+			int nread;
+			while ((nread = in.read(buf)) != -1) {
+				bytes.write(buf, 0, nread);
+			}
+			return bytes.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a catalog of the given tiles.
+	 * @param checksum checksum of the tiles.rc the tiles were parsed from
+	 */
+	public static void write(TileSpec [] tiles, long checksum, OutputStream outStream)
+		throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outStream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(checksum);
+		out.writeInt(tiles.length);
+
+		// the tiles themselves, then the references between them
+		for (TileSpec ts : tiles) {
+			out.writeUTF(ts.name);
+			out.writeShort(ts.attributes.size());
+			for (Map.Entry<String,String> e : ts.attributes.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeUTF(e.getValue());
+			}
+			out.writeShort(ts.images.size());
+			for (String image : ts.images) {
+				out.writeUTF(image);
+			}
+		}
+
+		for (TileSpec ts : tiles) {
+			writeRef(out, ts.animNext);
+			writeRef(out, ts.onPower);
+			writeRef(out, ts.onShutdown);
+			writeRef(out, ts.owner);
+			out.writeByte(ts.ownerOffsetX);
+			out.writeByte(ts.ownerOffsetY);
+
+			TileSpec.BuildingInfo bi = ts.buildingInfo;
+			if (bi != null) {
+				out.writeByte(bi.width);
+				out.writeByte(bi.height);
+				for (TileSpec m : bi.members) {
+					writeRef(out, m);
+				}
+			}
+			else {
+				out.writeByte(0);
+				out.writeByte(0);
+			}
+		}
+		out.flush();
+	}
+
+	static void writeRef(DataOutputStream out, TileSpec ts)
+		throws IOException
+	{
+		out.writeShort(ts != null ? ts.tileNumber : NONE);
+	}
+
+	/**
+	 * Reads a catalog.
+	 * @param checksum checksum of the tiles.rc in use
+	 * @return the tiles, indexed by tile number, or null if the catalog
+	 * was not made by this version or not from the given tiles.rc
+	 */
+	static TileSpec [] read(InputStream inStream, long checksum)
+		throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(inStream));
+		if (in.readInt() != MAGIC ||
+			in.readInt() != VERSION ||
+			in.readLong() != checksum)
+		{
+			return null;
+		}
+
+		TileSpec [] tiles = new TileSpec[in.readInt()];
+		for (int i = 0; i < tiles.length; i++) {
+			TileSpec ts = new TileSpec(i, in.readUTF());
+			int nattrs = in.readUnsignedShort();
+			for (int j = 0; j < nattrs; j++) {
+				String k = in.readUTF();
+				ts.attributes.put(k, in.readUTF());
+			}
+			int nimages = in.readUnsignedShort();
+			for (int j = 0; j < nimages; j++) {
+				ts.images.add(in.readUTF());
+			}
+			ts.initFlags();
+			tiles[i] = ts;
+		}
+
+		for (TileSpec ts : tiles) {
+			ts.animNext = readRef(in, tiles);
+			ts.onPower = readRef(in, tiles);
+			ts.onShutdown = readRef(in, tiles);
+			ts.owner = readRef(in, tiles);
+			ts.ownerOffsetX = in.readByte();
+			ts.ownerOffsetY = in.readByte();
+
+			int width = in.readUnsignedByte();
+			int height = in.readUnsignedByte();
+			if (width != 0) {
+				TileSpec.BuildingInfo bi = new TileSpec.BuildingInfo();
+				bi.width = width;
+				bi.height = height;
+				bi.members = new TileSpec[width * height];
+				for (int j = 0; j < bi.members.length; j++) {
+					bi.members[j] = readRef(in, tiles);
+				}
+				ts.buildingInfo = bi;
+			}
+		}
+		return tiles;
+	}
+
+	static TileSpec readRef(DataInputStream in, TileSpec [] tiles)
+		throws IOException
+	{
+		int n = in.readShort();
+		return n != NONE ? tiles[n] : null;
+	}
+}
@@ -45,6 +45,53 @@ public class TileSpec
 		return ts;
 	}
 
+	/**
+	 * Parses every tile of a tile recipe (tiles.rc), and resolves the
+	 * references between them.
+	 * @return the tiles, indexed by tile number
+	 */
+	public static TileSpec [] parseTiles(Properties tilesRc)
+	{
+		String [] tileNames = generateTileNames(tilesRc);
+		TileSpec [] tiles = new TileSpec[tileNames.length];
+		Map<String,TileSpec> tilesByName = new HashMap<String,TileSpec>();
+
+		for (int i = 0; i < tileNames.length; i++) {
+			String tileName = tileNames[i];
+			String rawSpec = tilesRc.getProperty(tileName);
+			if (rawSpec == null) {
+				break;
+			}
+
+			TileSpec ts = parse(i, tileName, rawSpec, tilesRc);
+			tilesByName.put(tileName, ts);
+			tiles[i] = ts;
+		}
+
+		for (int i = 0; i < tiles.length; i++) {
+			tiles[i].resolveReferences(tilesByName);
+
+			BuildingInfo bi = tiles[i].getBuildingInfo();
+			if (bi != null) {
+				for (int j = 0; j < bi.members.length; j++) {
+					TileSpec memberTile = bi.members[j];
+					int offx = (bi.width >= 3 ? -1 : 0) + j % bi.width;
+					int offy = (bi.height >= 3 ? -1 : 0) + j / bi.width;
+
+					if (memberTile.owner == null &&
+						(offx != 0 || offy != 0)
+						)
+					{
+						memberTile.owner = tiles[i];
+						memberTile.ownerOffsetX = offx;
+						memberTile.ownerOffsetY = offy;
+					}
+				}
+			}
+		}
+		return tiles;
+	}
+
 	public String getAttribute(String key)
 	{
 		return attributes.get(key);
@@ -218,6 +265,14 @@ public class TileSpec
 			}
 		}
 
+		initFlags();
+	}
+
+	/**
+	 * Sets the fields that cache commonly checked attributes.
+	 */
+	void initFlags()
+	{
 		this.canBulldoze = getBooleanAttribute("bulldozable");
 		this.canBurn = !getBooleanAttribute("noburn");
 		this.canConduct = getBooleanAttribute("conducts");
@@ -56,54 +56,46 @@ public class Tiles
 		}
 	}
 
+	static final String TILES_RC = "/tiles.rc";
+	static final String TILES_CATALOG = "/tiles.bin";
+
+	/**
+	 * Loads the tile specifications, from the precompiled catalog if
+	 * there is one matching tiles.rc, otherwise from tiles.rc itself.
+	 */
 	static void readTiles()
 		throws IOException
 	{
-		ArrayList<TileSpec> tilesList = new ArrayList<TileSpec>();
-
-		Properties tilesRc = new Properties();
-		tilesRc.load(
-			new InputStreamReader(
-				Tiles.class.getResourceAsStream("/tiles.rc"),
-				UTF8
-				)
-			);
-
-		String [] tileNames = TileSpec.generateTileNames(tilesRc);
-		tiles = new TileSpec[tileNames.length];
+		InputStream rcStream = Tiles.class.getResourceAsStream(TILES_RC);
+		if (rcStream == null) {
+			throw new FileNotFoundException(TILES_RC);
+		}
+		byte [] recipe = TileCatalog.readFully(rcStream);
 
-		for (int i = 0; i < tileNames.length; i++) {
-			String tileName = tileNames[i];
-			String rawSpec = tilesRc.getProperty(tileName);
-			if (rawSpec == null) {
-				break;
+		InputStream catStream = Tiles.class.getResourceAsStream(TILES_CATALOG);
+		if (catStream != null) {
+			try {
+				tiles = TileCatalog.read(catStream, TileCatalog.checksum(recipe));
+			}
+			finally {
+				catStream.close();
 			}
+		}
 
-			TileSpec ts = TileSpec.parse(i, tileName, rawSpec, tilesRc);
-			tilesByName.put(tileName, ts);
-			tiles[i] = ts;
+		if (tiles == null) {
+			// no catalog, or it was made from a different tiles.rc
+			Properties tilesRc = new Properties();
+			tilesRc.load(
+				new InputStreamReader(
+					new ByteArrayInputStream(recipe),
+					UTF8
+					)
+				);
+			tiles = TileSpec.parseTiles(tilesRc);
 		}
 
-		for (int i = 0; i < tiles.length; i++) {
-			tiles[i].resolveReferences(tilesByName);
-
-			TileSpec.BuildingInfo bi = tiles[i].getBuildingInfo();
-			if (bi != null) {
-				for (int j = 0; j < bi.members.length; j++) {
-					TileSpec memberTile = bi.members[j];
-					int offx = (bi.width >= 3 ? -1 : 0) + j % bi.width;
-					int offy = (bi.height >= 3 ? -1 : 0) + j / bi.width;
-
-					if (memberTile.owner == null &&
-						(offx != 0 || offy != 0)
-						)
-					{
-						memberTile.owner = tiles[i];
-						memberTile.ownerOffsetX = offx;
-						memberTile.ownerOffsetY = offy;
-					}
-				}
-			}
+		for (TileSpec ts : tiles) {
+			tilesByName.put(ts.name, ts);
 		}
 	}
 
@@ -45,9 +45,20 @@ public class ToolStroke
 
 	public final ToolResult apply()
 	{
-		ToolEffect eff = new ToolEffect(city);
-		applyArea(eff);
-		return eff.apply();
+		if (city.recorder != null) {
+			city.recorder.recordTool(tool, xpos, ypos, xdest, ydest);
+		}
+
+		// report the stroke's changes to listeners all at once
+		city.events.begin();
+		try {
+			ToolEffect eff = new ToolEffect(city);
+			applyArea(eff);
+			return eff.apply();
+		}
+		finally {
+			city.events.end();
+		}
 	}
 
 	protected void applyArea(ToolEffectIfc eff)
@@ -8,7 +8,6 @@
 
 package micropolisj.engine;
 
-import java.util.*;
 import static micropolisj.engine.TileConstants.*;
 
 /**
@@ -22,7 +21,7 @@ class TrafficGen
 	ZoneType sourceZone;
 
 	int lastdir;
-	Stack<CityLocation> positions = new Stack<CityLocation>();
+	IntStack positions = new IntStack();  //packed with CityLocation.pack()
 
 	static final int MAX_TRAFFIC_DISTANCE = 30;
 
@@ -55,9 +54,9 @@ class TrafficGen
 	{
 		while (!positions.isEmpty())
 		{
-			CityLocation pos = positions.pop();
-			mapX = pos.x;
-			mapY = pos.y;
+			int pos = positions.pop();
+			mapX = CityLocation.unpackX(pos);
+			mapY = CityLocation.unpackY(pos);
 			assert city.testBounds(mapX, mapY);
 
 			// check for road/rail
@@ -163,7 +162,7 @@ class TrafficGen
 				if (z % 2 == 1)
 				{
 					// save pos every other move
-					positions.push(new CityLocation(mapX, mapY));
+					positions.push(CityLocation.pack(mapX, mapY));
 				}
 
 				return true;
@@ -27,4 +27,36 @@ public class ZoneStatus
 	public int pollution;
 	/** Number from 17 to 20, 17=Declining, 18=Stable, etc. */
 	public int growthRate;
+
+	/**
+	 * Rates a tile from the values the overlays hold for it (see
+	 * Micropolis.queryZoneStatus()). Values of byte arrays are read
+	 * as unsigned.
+	 */
+	static ZoneStatus make(int tile, int popDensity, int landValue,
+			int crime, int pollution, int growthRate)
+	{
+		ZoneStatus zs = new ZoneStatus();
+		zs.building = TileConstants.getDescriptionNumber(tile);
+
+		int z;
+		z = (popDensity / 64) % 4;
+		zs.popDensity = z + 1;
+
+		z = landValue;
+		z = z < 30 ? 4 : z < 80 ? 5 : z < 150 ? 6 : 7;
+		zs.landValue = z + 1;
+
+		z = ((crime / 64) % 4) + 8;
+		zs.crimeLevel = z + 1;
+
+		z = Math.max(13,((pollution / 64) % 4) + 12);
+		zs.pollution = z + 1;
+
+		z = growthRate;
+		z = z < 0 ? 16 : z == 0 ? 17 : z <= 100 ? 18 : 19;
+		zs.growthRate = z + 1;
+
+		return zs;
+	}
 }
@@ -60,6 +60,15 @@ public class Animation extends TileImage
 	}
 
 	public TileImage getFrameByTime(int acycle)
+	{
+		return frames.get(getFrameIndexByTime(acycle)).frame;
+	}
+
+	/**
+	 * Determines which frame is shown at the given animation cycle.
+	 * @return an index into frames
+	 */
+	public int getFrameIndexByTime(int acycle)
 	{
 		assert frames.size() >= 1;
 		assert totalDuration > 0;
@@ -70,10 +79,23 @@ public class Animation extends TileImage
 			Frame f = frames.get(i);
 			t -= f.duration;
 			if (t < 0) {
-				return f.frame;
+				return i;
 			}
 		}
-		return frames.get(nframesLessOne).frame;
+		return nframesLessOne;
+	}
+
+	/**
+	 * Makes a table of the frame shown at each animation cycle,
+	 * from 0 to cycleCount-1.
+	 */
+	public int [] makeFrameTable(int cycleCount)
+	{
+		int [] table = new int[cycleCount];
+		for (int i = 0; i < cycleCount; i++) {
+			table[i] = getFrameIndexByTime(i);
+		}
+		return table;
 	}
 
 	void load(XMLStreamReader in, LoaderContext ctx)
@@ -2,6 +2,7 @@ package micropolisj.graphics;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
 import java.io.IOException;
 import java.util.*;
 import javax.xml.stream.*;
@@ -248,4 +249,41 @@ public abstract class TileImage
 
 		return img;
 	}
+
+	/** First bytes of a binary tile index (tiles.idx.bin): "MTIX". */
+	public static final int BIN_INDEX_MAGIC = 0x4d544958;
+
+	/** Record types of the binary tile index. */
+	public static final int BIN_IMAGE = 0;
+	public static final int BIN_ANIMATION = 1;
+
+	/**
+	 * Reads one image record of a binary tile index: either an image
+	 * at an offset into the default source image, or an animation of
+	 * such records.
+	 */
+	public static TileImage readTileImageBin(DataInput in, LoaderContext ctx)
+		throws IOException
+	{
+		int type = in.readByte();
+		if (type == BIN_IMAGE) {
+			SimpleTileImage img = new SimpleTileImage();
+			img.srcImage = ctx.getDefaultImage();
+			img.offsetX = in.readInt();
+			img.offsetY = in.readInt();
+			return img;
+		}
+		else if (type == BIN_ANIMATION) {
+			Animation a = new Animation();
+			int nframes = in.readUnsignedShort();
+			for (int i = 0; i < nframes; i++) {
+				int duration = in.readInt();
+				a.addFrame(readTileImageBin(in, ctx), duration);
+			}
+			return a;
+		}
+		else {
+			throw new IOException("unrecognized image record: "+type);
+		}
+	}
 }
@@ -352,12 +352,12 @@ public class BudgetDialog extends JDialog
 
 		for (int i = 0; i < 2; i++) {
 
-			if (i + 1 >= engine.financialHistory.size()) {
+			if (i + 1 >= engine.getFinancialHistoryCount()) {
 				break;
 			}
 
-			Micropolis.FinancialHistory f = engine.financialHistory.get(i);
-			Micropolis.FinancialHistory fPrior = engine.financialHistory.get(i+1);
+			Micropolis.FinancialHistory f = engine.getFinancialHistory(i);
+			Micropolis.FinancialHistory fPrior = engine.getFinancialHistory(i+1);
 			int cashFlow = f.totalFunds - fPrior.totalFunds;
 			int capExpenses = -(cashFlow - f.taxIncome + f.operatingExpenses);
 
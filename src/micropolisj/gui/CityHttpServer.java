@@ -0,0 +1,589 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.gui;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+import com.sun.net.httpserver.*;
+
+import micropolisj.engine.*;
+
+/**
+ * Answers queries about a running city over HTTP, for dashboards and
+ * scripts. Paths served (coordinates are in map tiles):
+ * <pre>
+ * /summary                           date, funds, population, etc. (JSON)
+ * /zone?x=X&amp;y=Y                  what the query tool would show (JSON)
+ * /overlay/NAME[?x=&amp;y=&amp;w=&amp;h=]  an overlay's array (raw bytes)
+ * /render[?x=&amp;y=&amp;w=&amp;h=&amp;size=S]   the tiles of part of the map (PNG)
+ * </pre>
+ * where NAME is an overlay, e.g. "landvalue" for LANDVALUE_OVERLAY.
+ * An overlay's cells come as little-endian numbers, row by row; the
+ * X-Cell-Size, X-Scale and X-Cells headers tell their size in bytes,
+ * the map tiles covered by each cell, and which cells were sent.
+ * <p>
+ * Requests are answered from a CitySnapshot, on threads of the
+ * server's own. The simulation's thread only takes a snapshot, at the
+ * end of a tick, when a request wants a newer one than it has. Overlay
+ * and render responses are cached until the overlay or tiles they were
+ * made from change.
+ * <p>
+ * Can also be run from the command line, as a city with no window:
+ * <pre>
+ * java micropolisj.gui.CityHttpServer [-port N] [-bind ADDR] [-speed SPEED] CITYFILE
+ * </pre>
+ * It listens on the loopback interface unless another is given.
+ */
+public class CityHttpServer implements MapListener
+{
+	final Micropolis city;
+	final HttpServer server;
+	final ExecutorService executor;
+
+	/** Snapshots younger than this are not replaced to answer a request. */
+	static final long SNAPSHOT_MAX_AGE = 200;
+
+	/** How long a request waits for a newer snapshot, e.g. while paused. */
+	static final long SNAPSHOT_WAIT = 250;
+
+	/** How often main() looks for wanted snapshots while paused, in ms. */
+	static final long PAUSED_POLL = 10;
+
+	static final int CACHE_SIZE = 64;
+
+	/** Largest image, in pixels, that /render will make. */
+	static final int MAX_RENDER_PIXELS = 4096 * 4096;
+
+	static final int [] TILE_SIZES = { 3, 8, 16, 32 };
+
+	/** Set when tiles have changed since the last snapshot. */
+	boolean tilesChanged;
+
+	volatile CitySnapshot snapshot;
+	volatile long snapshotTime;
+	volatile boolean snapshotWanted;
+	final Object snapshotLock = new Object();
+
+	final Map<String,CachedResponse> cache = new LinkedHashMap<String,CachedResponse>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,CachedResponse> eldest) {
+			return size() > CACHE_SIZE;
+		}};
+
+	final Map<Integer,MapRenderer> renderers = new HashMap<Integer,MapRenderer>();
+
+	static class CachedResponse
+	{
+		final int version;
+		final String contentType;
+		final Map<String,String> headers;
+		final byte [] body;
+
+		CachedResponse(int version, String contentType, Map<String,String> headers, byte [] body)
+		{
+			this.version = version;
+			this.contentType = contentType;
+			this.headers = headers;
+			this.body = body;
+		}
+	}
+
+	/** Reports a bad request, with the given status code. */
+	static class RequestException extends Exception
+	{
+		final int status;
+
+		RequestException(int status, String message)
+		{
+			super(message);
+			this.status = status;
+		}
+	}
+
+	/**
+	 * Starts serving. Must be called on the simulation's thread.
+	 * <p>
+	 * Unless the sun.net.httpserver.nodelay system property is set to
+	 * true before the JDK's first HTTP server is created, small responses
+	 * are held back by Nagle's algorithm until the client's delayed ACK,
+	 * some 40 ms. This is left to the program, since it applies to every
+	 * server in the process; main() sets it.
+	 * @param threads number of requests that may be worked on at once
+	 */
+	public CityHttpServer(Micropolis city, InetSocketAddress address, int threads)
+		throws IOException
+	{
+		this.city = city;
+		this.snapshot = CitySnapshot.take(city, null, true);
+		this.snapshotTime = System.currentTimeMillis();
+		city.addMapListener(this);
+
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CityHttpServer");
+				t.setDaemon(true);
+				return t;
+			}});
+
+		this.server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}});
+		server.start();
+	}
+
+	public InetSocketAddress getAddress()
+	{
+		return server.getAddress();
+	}
+
+	/**
+	 * Stops serving. Must be called on the simulation's thread.
+	 */
+	public void close()
+	{
+		city.removeMapListener(this);
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	/**
+	 * Gets a snapshot recent enough to answer a request with. Waits a
+	 * little for a new one if the last is old, but makes do with the
+	 * last one if the simulation is not running.
+	 */
+	CitySnapshot getSnapshot()
+		throws InterruptedException
+	{
+		CitySnapshot s = snapshot;
+		if (System.currentTimeMillis() - snapshotTime < SNAPSHOT_MAX_AGE) {
+			return s;
+		}
+
+		snapshotWanted = true;
+		long deadline = System.currentTimeMillis() + SNAPSHOT_WAIT;
+		synchronized (snapshotLock) {
+			long remaining;
+			while (snapshot == s && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				snapshotLock.wait(remaining);
+			}
+			return snapshot;
+		}
+	}
+
+	void serve(HttpExchange exchange)
+		throws IOException
+	{
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				throw new RequestException(405, "only GET is supported");
+			}
+
+			String path = exchange.getRequestURI().getPath();
+			Map<String,String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+			CitySnapshot s = getSnapshot();
+
+			if (path.equals("/summary")) {
+				send(exchange, "application/json", null, summary(s).getBytes("UTF-8"));
+			}
+			else if (path.equals("/zone")) {
+				int x = getInt(params, "x", -1);
+				int y = getInt(params, "y", -1);
+				if (!s.testBounds(x, y)) {
+					throw new RequestException(400, "x and y must be within the map");
+				}
+				send(exchange, "application/json", null, zoneStatus(s, x, y).getBytes("UTF-8"));
+			}
+			else if (path.startsWith("/overlay/")) {
+				MapState state = parseOverlay(s, path.substring("/overlay/".length()));
+				CityRect area = getArea(s, params);
+				send(exchange, overlay(s, state, area, exchange.getRequestURI().toString()));
+			}
+			else if (path.equals("/render")) {
+				CityRect area = getArea(s, params);
+				int size = getInt(params, "size", 8);
+				send(exchange, render(s, area, size, exchange.getRequestURI().toString()));
+			}
+			else {
+				throw new RequestException(404, "not found: " + path);
+			}
+		}
+		catch (RequestException e) {
+			send(exchange, e.status, "text/plain; charset=UTF-8", null,
+				(e.getMessage() + "\n").getBytes("UTF-8"));
+		}
+		catch (InterruptedException e) {
+			send(exchange, 503, "text/plain; charset=UTF-8", null,
+				"shutting down\n".getBytes("UTF-8"));
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace(System.err);
+			send(exchange, 500, "text/plain; charset=UTF-8", null,
+				(e + "\n").getBytes("UTF-8"));
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	static String summary(CitySnapshot s)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{");
+		sb.append("\"width\":").append(s.width);
+		sb.append(",\"height\":").append(s.height);
+		sb.append(",\"cityTime\":").append(s.cityTime);
+		sb.append(",\"year\":").append(1900 + s.cityTime / 48);
+		sb.append(",\"month\":").append((s.cityTime % 48) / 4 + 1);
+		sb.append(",\"funds\":").append(s.funds);
+		sb.append(",\"population\":").append(s.population);
+		sb.append(",\"resPop\":").append(s.resPop);
+		sb.append(",\"comPop\":").append(s.comPop);
+		sb.append(",\"indPop\":").append(s.indPop);
+		sb.append(",\"resValve\":").append(s.resValve);
+		sb.append(",\"comValve\":").append(s.comValve);
+		sb.append(",\"indValve\":").append(s.indValve);
+		sb.append(",\"cityScore\":").append(s.cityScore);
+		sb.append(",\"tilesVersion\":").append(s.getTilesVersion());
+		sb.append(",\"overlays\":{");
+		boolean first = true;
+		for (MapState state : MapState.values()) {
+			if (s.hasOverlay(state)) {
+				sb.append(first ? "" : ",");
+				sb.append("\"").append(getOverlayName(state)).append("\":");
+				sb.append(s.getOverlayVersion(state));
+				first = false;
+			}
+		}
+		sb.append("}}\n");
+		return sb.toString();
+	}
+
+	static String zoneStatus(CitySnapshot s, int x, int y)
+	{
+		ZoneStatus zs = s.queryZoneStatus(x, y);
+		StringBuilder sb = new StringBuilder();
+		sb.append("{");
+		sb.append("\"x\":").append(x);
+		sb.append(",\"y\":").append(y);
+		sb.append(",\"tile\":").append((int) s.getTile(x, y));
+		sb.append(",\"building\":").append(zs.building);
+		sb.append(",\"popDensity\":").append(zs.popDensity);
+		sb.append(",\"landValue\":").append(zs.landValue);
+		sb.append(",\"crimeLevel\":").append(zs.crimeLevel);
+		sb.append(",\"pollution\":").append(zs.pollution);
+		sb.append(",\"growthRate\":").append(zs.growthRate);
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	CachedResponse overlay(CitySnapshot s, MapState state, CityRect area, String key)
+	{
+		int version = s.getOverlayVersion(state);
+		CachedResponse r = getCached(key, version);
+		if (r != null) {
+			return r;
+		}
+
+		CityRect cells = s.getOverlayCells(state, area);
+		Map<String,String> headers = new LinkedHashMap<String,String>();
+		headers.put("X-Overlay-Version", Integer.toString(version));
+		headers.put("X-Cell-Size", Integer.toString(s.getOverlayCellSize(state)));
+		headers.put("X-Scale", Integer.toString(s.getOverlayScale(state)));
+		headers.put("X-Cells", cells.x + "," + cells.y + "," + cells.width + "," + cells.height);
+
+		r = new CachedResponse(version, "application/octet-stream", headers,
+			s.readOverlay(state, area));
+		putCached(key, r);
+		return r;
+	}
+
+	CachedResponse render(CitySnapshot s, CityRect area, int size, String key)
+		throws RequestException
+	{
+		if (Arrays.binarySearch(TILE_SIZES, size) < 0) {
+			throw new RequestException(400, "size must be one of " + Arrays.toString(TILE_SIZES));
+		}
+		if ((long) area.width * area.height * size * size > MAX_RENDER_PIXELS) {
+			throw new RequestException(400, "area too large at this size");
+		}
+
+		int version = s.getTilesVersion();
+		CachedResponse r = getCached(key, version);
+		if (r != null) {
+			return r;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(getRenderer(size).render(
+				s.copyTiles(area), area.width, area.height, s.acycle),
+				"png", bytes);
+		}
+		catch (IOException e) {
+			// not expected when writing to memory
+			throw new Error("unexpected", e);
+		}
+
+		Map<String,String> headers = new LinkedHashMap<String,String>();
+		headers.put("X-Tiles-Version", Integer.toString(version));
+		r = new CachedResponse(version, "image/png", headers, bytes.toByteArray());
+		putCached(key, r);
+		return r;
+	}
+
+	MapRenderer getRenderer(int size)
+	{
+		synchronized (renderers) {
+			MapRenderer renderer = renderers.get(size);
+			if (renderer == null) {
+				// requests are already handled in parallel
+				renderer = new MapRenderer(size);
+				renderer.setThreads(1);
+				renderers.put(size, renderer);
+			}
+			return renderer;
+		}
+	}
+
+	CachedResponse getCached(String key, int version)
+	{
+		synchronized (cache) {
+			CachedResponse r = cache.get(key);
+			return r != null && r.version == version ? r : null;
+		}
+	}
+
+	void putCached(String key, CachedResponse r)
+	{
+		synchronized (cache) {
+			cache.put(key, r);
+		}
+	}
+
+	static String getOverlayName(MapState state)
+	{
+		return state.name().replace("_OVERLAY", "").toLowerCase();
+	}
+
+	static MapState parseOverlay(CitySnapshot s, String name)
+		throws RequestException
+	{
+		StringBuilder names = new StringBuilder();
+		for (MapState state : MapState.values()) {
+			if (s.hasOverlay(state)) {
+				if (getOverlayName(state).equals(name)) {
+					return state;
+				}
+				names.append(names.length() != 0 ? ", " : "").append(getOverlayName(state));
+			}
+		}
+		throw new RequestException(404, "no overlay " + name + "; try one of: " + names);
+	}
+
+	static Map<String,String> parseQuery(String query)
+		throws RequestException
+	{
+		Map<String,String> params = new HashMap<String,String>();
+		if (query == null) {
+			return params;
+		}
+		try {
+			for (String pair : query.split("&")) {
+				int eq = pair.indexOf('=');
+				if (eq > 0) {
+					params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+				}
+			}
+		}
+		catch (IllegalArgumentException e) {
+			throw new RequestException(400, "bad query: " + query);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new Error("unexpected", e);
+		}
+		return params;
+	}
+
+	static int getInt(Map<String,String> params, String name, int defaultValue)
+		throws RequestException
+	{
+		String v = params.get(name);
+		if (v == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(v);
+		}
+		catch (NumberFormatException e) {
+			throw new RequestException(400, name + " must be a number");
+		}
+	}
+
+	/**
+	 * Gets the part of the map named by the x, y, w and h parameters;
+	 * by default, the whole map.
+	 */
+	static CityRect getArea(CitySnapshot s, Map<String,String> params)
+		throws RequestException
+	{
+		int x = getInt(params, "x", 0);
+		int y = getInt(params, "y", 0);
+		int w = getInt(params, "w", s.width - x);
+		int h = getInt(params, "h", s.height - y);
+		if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > s.width || y + h > s.height) {
+			throw new RequestException(400, "area must be within the map, which is " +
+				s.width + "x" + s.height);
+		}
+		return new CityRect(x, y, w, h);
+	}
+
+	static void send(HttpExchange exchange, CachedResponse r)
+		throws IOException
+	{
+		send(exchange, 200, r.contentType, r.headers, r.body);
+	}
+
+	static void send(HttpExchange exchange, String contentType, Map<String,String> headers, byte [] body)
+		throws IOException
+	{
+		send(exchange, 200, contentType, headers, body);
+	}
+
+	static void send(HttpExchange exchange, int status, String contentType, Map<String,String> headers, byte [] body)
+		throws IOException
+	{
+		Headers h = exchange.getResponseHeaders();
+		h.set("Content-Type", contentType);
+		if (headers != null) {
+			for (Map.Entry<String,String> e : headers.entrySet()) {
+				h.set(e.getKey(), e.getValue());
+			}
+		}
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	//implements MapListener
+	public void mapAnimation()
+	{
+		takeSnapshotIfWanted();
+	}
+
+	/**
+	 * Takes a new snapshot if a request is waiting for one. Called at
+	 * the end of each tick; while the simulation is paused, call it
+	 * from the simulation's thread now and then, so requests get a
+	 * current snapshot rather than waiting SNAPSHOT_WAIT for one.
+	 */
+	public void takeSnapshotIfWanted()
+	{
+		if (snapshotWanted) {
+			snapshotWanted = false;
+			CitySnapshot s = CitySnapshot.take(city, snapshot, tilesChanged);
+			tilesChanged = false;
+			synchronized (snapshotLock) {
+				snapshot = s;
+				snapshotTime = System.currentTimeMillis();
+				snapshotLock.notifyAll();
+			}
+		}
+	}
+
+	//implements MapListener
+	public void mapOverlayDataChanged(MapState overlayDataType, CityRect changedArea) {}
+
+	//implements MapListener
+	public void spriteMoved(Sprite sprite) {}
+
+	//implements MapListener
+	public void tileChanged(int xpos, int ypos)
+	{
+		tilesChanged = true;
+	}
+
+	//implements MapListener
+	public void wholeMapChanged()
+	{
+		tilesChanged = true;
+	}
+
+	public static void main(String [] args)
+		throws Exception
+	{
+		int port = 8080;
+		String bind = null;
+		Speed speed = Speed.NORMAL;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			}
+			else if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[i+1]);
+			}
+			else if (args[i].equals("-bind")) {
+				bind = args[i+1];
+			}
+			else if (args[i].equals("-speed")) {
+				speed = Speed.valueOf(args[i+1].toUpperCase());
+			}
+			else {
+				usage();
+			}
+		}
+		if (args.length - i != 1) {
+			usage();
+		}
+
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+
+		Micropolis city = new Micropolis();
+		city.load(new File(args[i]));
+
+		InetAddress addr = bind != null ? InetAddress.getByName(bind) : InetAddress.getByName(null);
+		CityHttpServer server = new CityHttpServer(city, new InetSocketAddress(addr, port),
+			Runtime.getRuntime().availableProcessors());
+		System.err.println("Serving on http://" + addr.getHostAddress() + ":" + server.getAddress().getPort() + "/summary");
+
+		// runs the city as MainWindow's timer does, each update
+		// taking animationDelay ms, with MAX paced by a SimThrottle;
+		// while paused, only snapshots are taken
+		SimThrottle throttle = new SimThrottle(city, speed.animationDelay);
+		long interval = speed == Speed.PAUSED ? PAUSED_POLL : speed.animationDelay;
+		for (;;) {
+			long start = System.currentTimeMillis();
+			if (speed == Speed.PAUSED) {
+				server.takeSnapshotIfWanted();
+			}
+			else if (speed.isUnthrottled()) {
+				throttle.runFrame();
+			}
+			else {
+				for (int j = 0; j < speed.simStepsPerUpdate; j++) {
+					city.animate();
+				}
+			}
+			Thread.sleep(Math.max(0, interval - (System.currentTimeMillis() - start)));
+		}
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: java "+CityHttpServer.class.getName()+" [-port N] [-bind ADDR] [-speed SPEED] CITYFILE");
+		System.exit(2);
+	}
+}
@@ -263,7 +263,7 @@ public class EvaluationPane extends JPanel
 
 		for (int i = 0; i < voterProblemLbl.length; i++) {
 			CityProblem p = i < engine.evaluation.problemOrder.length ? engine.evaluation.problemOrder[i] : null;
-			int numVotes = p != null ? engine.evaluation.problemVotes.get(p) : 0;
+			int numVotes = p != null ? engine.evaluation.problemVotes[p.ordinal()] : 0;
 
 			if (numVotes != 0) {
 				voterProblemLbl[i].setText(cstrings.getString("problem."+p.name()));
@@ -197,12 +197,12 @@ public class GraphsPane extends JPanel
 	{
 		assert pos >= 0 && pos < 240;
 		switch(graph) {
-		case RESPOP: return engine.history.res[pos];
-		case COMPOP: return engine.history.com[pos];
-		case INDPOP: return engine.history.ind[pos];
-		case MONEY: return engine.history.money[pos];
-		case CRIME: return engine.history.crime[pos];
-		case POLLUTION: return engine.history.pollution[pos];
+		case RESPOP: return engine.history.res.get(pos);
+		case COMPOP: return engine.history.com.get(pos);
+		case INDPOP: return engine.history.ind.get(pos);
+		case MONEY: return engine.history.money.get(pos);
+		case CRIME: return engine.history.crime.get(pos);
+		case POLLUTION: return engine.history.pollution.get(pos);
 		default: throw new Error("unexpected");
 		}
 	}
@@ -41,6 +41,8 @@ public class MainWindow extends JFrame
 	JLabel dateLbl;
 	JLabel fundsLbl;
 	JLabel popLbl;
+	JLabel stepRateCaptionLbl;
+	JLabel stepRateLbl;
 	JLabel currentToolLbl;
 	JLabel currentToolCostLbl;
 	Map<MicropolisTool,JToggleButton> toolBtns;
@@ -52,6 +54,36 @@ public class MainWindow extends JFrame
 	boolean dirty2 = false;  //indicates if simulator took a step since last save
 	long lastSavedTime = 0;  //real-time clock of when file was last saved
 	boolean autoBudgetPending;
+	SessionRecorder recorder;
+
+	/**
+	 * Directory in which to record each city played, for reproducing
+	 * problems later (see SessionReplayer). Set with the
+	 * micropolisj.record_dir system property.
+	 */
+	static final String RECORD_DIR = System.getProperty("micropolisj.record_dir");
+
+	CensusExporter censusExporter;
+
+	/**
+	 * If set, the statistics of each census of each city played are
+	 * written to a CSV file in this directory (see CensusExporter).
+	 * Set with the micropolisj.census_dir system property.
+	 */
+	static final String CENSUS_DIR = System.getProperty("micropolisj.census_dir");
+
+	TimelapseRecorder timelapse;
+
+	/** If set, a timelapse GIF of each city played is saved here. */
+	static final String TIMELAPSE_DIR = System.getProperty("micropolisj.timelapse_dir");
+
+	ObserverServer observerServer;
+
+	/**
+	 * If set, the city played is streamed to observers (see
+	 * ObserverWindow) connecting to this port on the loopback interface.
+	 */
+	static final Integer OBSERVER_PORT = Integer.getInteger("micropolisj.observer_port");
 
 	static ImageIcon appIcon;
 	static {
@@ -288,6 +320,10 @@ public class MainWindow extends JFrame
 
 	public void setEngine(Micropolis newEngine)
 	{
+		stopRecording();
+		stopCensusExport();
+		stopTimelapse();
+
 		if (engine != null) { // old engine
 			engine.removeListener(this);
 			engine.removeEarthquakeListener(this);
@@ -298,6 +334,17 @@ public class MainWindow extends JFrame
 		if (engine != null) { // new engine
 			engine.addListener(this);
 			engine.addEarthquakeListener(this);
+			startRecording();
+			startCensusExport();
+			startTimelapse();
+
+			// keep the observers connected across a change of city
+			if (observerServer != null) {
+				observerServer.setCity(engine);
+			}
+			else {
+				startObserverServer();
+			}
 		}
 
 		boolean timerEnabled = isTimerActive();
@@ -373,9 +420,144 @@ public class MainWindow extends JFrame
 	{
 		if (maybeSaveCity()) {
 			dispose();
+			stopRecording();
+			stopCensusExport();
+			stopTimelapse();
+			stopObserverServer();
+		}
+	}
+
+	private void startRecording()
+	{
+		if (RECORD_DIR == null) {
+			return;
+		}
+
+		String fileName = "session-" +
+			new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) +
+			".mpr";
+		try {
+			recorder = new SessionRecorder(engine, new File(RECORD_DIR, fileName));
+		}
+		catch (IOException e) {
+			// recording is a diagnostic aid; play on without it
+			e.printStackTrace(System.err);
 		}
 	}
 
+	private void stopRecording()
+	{
+		if (recorder == null) {
+			return;
+		}
+
+		try {
+			recorder.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+		recorder = null;
+	}
+
+	private void startCensusExport()
+	{
+		if (CENSUS_DIR == null) {
+			return;
+		}
+
+		String fileName = "census-" +
+			new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) +
+			".csv";
+		try {
+			censusExporter = new CensusExporter(engine, new File(CENSUS_DIR, fileName));
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	private void stopCensusExport()
+	{
+		if (censusExporter == null) {
+			return;
+		}
+
+		try {
+			censusExporter.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+		censusExporter = null;
+	}
+
+	private void startTimelapse()
+	{
+		if (TIMELAPSE_DIR == null) {
+			return;
+		}
+
+		String fileName = "timelapse-" +
+			new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) +
+			".gif";
+		try {
+			timelapse = new TimelapseRecorder(engine, new File(TIMELAPSE_DIR, fileName),
+				Integer.getInteger("micropolisj.timelapse_interval", 128),
+				Integer.getInteger("micropolisj.timelapse_size", 8));
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	private void stopTimelapse()
+	{
+		if (timelapse == null) {
+			return;
+		}
+
+		// the encoder may be some frames behind; let it finish without
+		// holding up the event thread. The thread is not a daemon, so
+		// the file is completed even if the program is exiting.
+		final TimelapseRecorder t = timelapse;
+		t.stop();
+		new Thread("TimelapseRecorder close") {
+			public void run() {
+				try {
+					t.close();
+				}
+				catch (IOException e) {
+					e.printStackTrace(System.err);
+				}
+			}}.start();
+		timelapse = null;
+	}
+
+	private void startObserverServer()
+	{
+		if (OBSERVER_PORT == null) {
+			return;
+		}
+
+		try {
+			observerServer = new ObserverServer(engine, OBSERVER_PORT);
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	private void stopObserverServer()
+	{
+		if (observerServer == null) {
+			return;
+		}
+
+		observerServer.close();
+		observerServer = null;
+	}
+
 	JComponent makeDateFunds()
 	{
 		JPanel pane = new JPanel(new GridBagLayout());
@@ -406,6 +588,15 @@ public class MainWindow extends JFrame
 		popLbl = new JLabel();
 		pane.add(popLbl, c1);
 
+		c0.gridy = c1.gridy = 3;
+
+		stepRateCaptionLbl = new JLabel(strings.getString("main.step_rate_label"));
+		pane.add(stepRateCaptionLbl, c0);
+		stepRateLbl = new JLabel();
+		pane.add(stepRateLbl, c1);
+		stepRateCaptionLbl.setVisible(false);
+		stepRateLbl.setVisible(false);
+
 		return pane;
 	}
 
@@ -662,6 +853,18 @@ public class MainWindow extends JFrame
 		menuBar.add(priorityMenu);
 
 		priorityMenuItems = new EnumMap<Speed,JMenuItem>(Speed.class);
+		menuItem = new JRadioButtonMenuItem(strings.getString("menu.speed.MAX"));
+		setupKeys(menuItem, "menu.speed.MAX");
+		menuItem.addActionListener(wrapActionListener(
+			new ActionListener() {
+			public void actionPerformed(ActionEvent ev)
+			{
+				onPriorityClicked(Speed.MAX);
+			}
+			}));
+		priorityMenu.add(menuItem);
+		priorityMenuItems.put(Speed.MAX, menuItem);
+
 		menuItem = new JRadioButtonMenuItem(strings.getString("menu.speed.SUPER_FAST"));
 		setupKeys(menuItem, "menu.speed.SUPER_FAST");
 		menuItem.addActionListener(wrapActionListener(
@@ -1340,8 +1543,20 @@ public class MainWindow extends JFrame
 		popLbl.setText(nf.format(getEngine().getCityPopulation()));
 	}
 
+	private void updateStepRateLabel()
+	{
+		boolean show = simThrottle != null;
+		stepRateCaptionLbl.setVisible(show);
+		stepRateLbl.setVisible(show);
+		if (show) {
+			NumberFormat nf = NumberFormat.getInstance();
+			stepRateLbl.setText(nf.format(simThrottle.getStepsPerSecond()));
+		}
+	}
+
 	Timer simTimer;
 	Timer shakeTimer;
+	SimThrottle simThrottle;
 
 	private void startTimer()
 	{
@@ -1369,6 +1584,30 @@ public class MainWindow extends JFrame
 			return;
 		}
 
+		if (engine.simSpeed.isUnthrottled())
+		{
+			// the timer only sets the display rate; the throttle
+			// decides how many steps fit in between
+			final SimThrottle throttle = new SimThrottle(engine, engine.simSpeed.animationDelay);
+			simThrottle = throttle;
+			simTimer = new Timer(engine.simSpeed.animationDelay, wrapActionListener(
+				new ActionListener() {
+				public void actionPerformed(ActionEvent evt)
+				{
+					if (throttle.runFrame())
+					{
+						showAutoBudget();
+						return;
+					}
+					updateDateLabel();
+					updateStepRateLabel();
+					dirty2 = true;
+				}}));
+			simTimer.start();
+			updateStepRateLabel();
+			return;
+		}
+
 		ActionListener taskPerformer = new ActionListener() {
 		public void actionPerformed(ActionEvent evt)
 		{
@@ -1490,6 +1729,8 @@ public class MainWindow extends JFrame
 			shakeTimer.stop();
 			shakeTimer = null;
 		}
+		simThrottle = null;
+		updateStepRateLabel();
 	}
 
 	boolean isTimerActive()
@@ -0,0 +1,529 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.gui;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+
+import micropolisj.engine.*;
+import static micropolisj.engine.TileConstants.*;
+
+/**
+ * Draws a whole city into an image, without any Swing components, so
+ * it can run headless (e.g. with -Djava.awt.headless=true).
+ * <p>
+ * Tile pixels are copied straight into the image's integer raster, and
+ * the map is divided into bands of rows that are drawn on separate
+ * threads. The renderer only reads the city; the city must not change
+ * while render() runs, so call it from the thread that runs the
+ * simulation, or on a city nothing else is using.
+ * <p>
+ * Can also be run from the command line, to render every saved city
+ * (.cty file) in a directory to PNG files:
+ * <pre>
+ * java micropolisj.gui.MapRenderer [-threads N] [-size S] [-overlay STATE] INPUTDIR OUTPUTDIR
+ * </pre>
+ * Tile sizes are 3 (as the mini-map), 8, 16 or 32 pixels.
+ */
+public class MapRenderer
+{
+	final TileImages tileImages;
+	final int tileSize;
+	int threads = Runtime.getRuntime().availableProcessors();
+	boolean drawSprites = true;
+
+	/** Draws the bands, for all calls to render(); made when first needed. */
+	ExecutorService pool;
+
+	/** Height, in map rows, of each band drawn as one task. */
+	static final int BAND_ROWS = 16;
+
+	public MapRenderer(int tileSize)
+	{
+		this.tileImages = tileSize == 3 ?
+			TileImages.getInstance("sm", tileSize) :
+			TileImages.getInstance(tileSize);
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Sets the number of threads each call to render() uses.
+	 */
+	public synchronized void setThreads(int threads)
+	{
+		assert threads > 0;
+		this.threads = threads;
+
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	synchronized ExecutorService getPool()
+	{
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MapRenderer");
+					t.setDaemon(true);
+					return t;
+				}});
+		}
+		return pool;
+	}
+
+	/**
+	 * Sets whether trains, helicopters, etc. are drawn. They are only
+	 * drawn without an overlay, and never at the mini-map's size.
+	 */
+	public void setDrawSprites(boolean drawSprites)
+	{
+		this.drawSprites = drawSprites;
+	}
+
+	/**
+	 * Draws the city.
+	 * @param overlay the data to show, as the mini-map shows it; null
+	 * or MapState.ALL for just the tiles
+	 */
+	public BufferedImage render(Micropolis city, MapState overlay)
+	{
+		BufferedImage image = new BufferedImage(
+			city.getWidth() * tileSize, city.getHeight() * tileSize,
+			BufferedImage.TYPE_INT_RGB);
+		int [] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		render(city, overlay, pixels);
+
+		if (drawSprites && (overlay == null || overlay == MapState.ALL) &&
+			tileImages.spriteImages != null)
+		{
+			Graphics2D gr = image.createGraphics();
+			for (Sprite sprite : city.allSprites()) {
+				if (sprite.isVisible()) {
+					drawSprite(gr, sprite);
+				}
+			}
+			gr.dispose();
+		}
+		return image;
+	}
+
+	/**
+	 * Draws the city's tiles into an integer RGB raster, width*tileSize
+	 * pixels across and height*tileSize pixels down.
+	 */
+	public void render(final Micropolis city, final MapState overlay, final int [] pixels)
+	{
+		assert pixels.length == city.getWidth() * tileSize * city.getHeight() * tileSize;
+
+		paintInBands(city.getHeight(), new RowPainter() {
+			void paintRows(int y0, int y1) {
+				renderRows(city, overlay, pixels, y0, y1);
+			}});
+	}
+
+	/**
+	 * Draws a copy of a city's tiles, as made by Micropolis.copyTiles().
+	 * Sprites and overlays are not drawn.
+	 * @param acycle animation cycle at which to show animated tiles
+	 */
+	public BufferedImage render(final char [] tiles, final int width, int height, final int acycle)
+	{
+		BufferedImage image = new BufferedImage(
+			width * tileSize, height * tileSize,
+			BufferedImage.TYPE_INT_RGB);
+		final int [] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+		paintInBands(height, new RowPainter() {
+			void paintRows(int y0, int y1) {
+				renderRows(tiles, width, acycle, pixels, y0, y1);
+			}});
+		return image;
+	}
+
+	/** Draws a range of map rows; see paintInBands(). */
+	abstract static class RowPainter
+	{
+		abstract void paintRows(int y0, int y1);
+	}
+
+	/**
+	 * Draws all rows of the map, splitting them into bands drawn at
+	 * the same time if this renderer has more than one thread.
+	 */
+	void paintInBands(int height, final RowPainter painter)
+	{
+		int nbands = (height + BAND_ROWS - 1) / BAND_ROWS;
+		if (threads <= 1 || nbands <= 1) {
+			painter.paintRows(0, height);
+			return;
+		}
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < nbands; i++) {
+			final int y0 = i * BAND_ROWS;
+			final int y1 = Math.min(height, y0 + BAND_ROWS);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					painter.paintRows(y0, y1);
+					return null;
+				}});
+		}
+
+		try {
+			for (Future<Object> f : getPool().invokeAll(tasks)) {
+				f.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	void renderRows(Micropolis city, MapState overlay, int [] pixels, int y0, int y1)
+	{
+		final int width = city.getWidth();
+		final int scan = width * tileSize;
+		final int acycle = city.getAnimationCycle();
+
+		for (int y = y0; y < y1; y++) {
+			for (int x = 0; x < width; x++) {
+				int key = overlay != null ? getCellKey(city, overlay, x, y) : city.getTile(x, y);
+				drawCell(pixels, y * tileSize * scan + x * tileSize, scan, key, acycle);
+			}
+		}
+	}
+
+	void renderRows(char [] tiles, int width, int acycle, int [] pixels, int y0, int y1)
+	{
+		final int scan = width * tileSize;
+
+		for (int y = y0; y < y1; y++) {
+			for (int x = 0; x < width; x++) {
+				drawCell(pixels, y * tileSize * scan + x * tileSize, scan, tiles[y * width + x], acycle);
+			}
+		}
+	}
+
+	/**
+	 * Draws one map cell.
+	 * @param key a tile number, or SOLID plus an RGB colour
+	 */
+	void drawCell(int [] pixels, int base, int scan, int key, int acycle)
+	{
+		if ((key & SOLID) != 0) {
+			int pix = key & 0xffffff;
+			for (int yy = 0; yy < tileSize; yy++) {
+				Arrays.fill(pixels, base + yy*scan, base + yy*scan + tileSize, pix);
+			}
+		}
+		else {
+			tileImages.getTileImageInfo(key, acycle).drawToPixels(pixels, base, scan);
+		}
+	}
+
+	void drawSprite(Graphics2D gr, Sprite sprite)
+	{
+		Image img = tileImages.getSpriteImage(sprite.kind, sprite.frame-1);
+		if (img != null) {
+			gr.drawImage(img,
+				(sprite.x + sprite.offx) * tileSize / 16,
+				(sprite.y + sprite.offy) * tileSize / 16,
+				null);
+		}
+	}
+
+	static final Color VAL_LOW       = new Color(0xbfbfbf);
+	static final Color VAL_MEDIUM    = new Color(0xffff00);
+	static final Color VAL_HIGH      = new Color(0xff7f00);
+	static final Color VAL_VERYHIGH  = new Color(0xff0000);
+	static final Color VAL_PLUS      = new Color(0x007f00);
+	static final Color VAL_VERYPLUS  = new Color(0x00e600);
+	static final Color VAL_MINUS     = new Color(0xff7f00);
+	static final Color VAL_VERYMINUS = new Color(0xffff00);
+
+	/**
+	 * Colour table for the getCI() scale, indexed by the overlay
+	 * value (clamped to 0-255). Entries are cell keys; NO_COLOR means
+	 * the tile underneath shows through.
+	 */
+	static final int [] CI_TABLE = new int[256];
+
+	/**
+	 * Colour table for the rate-of-growth scale, indexed by the
+	 * overlay value plus 256 (clamped to -256..255).
+	 */
+	static final int [] CI_ROG_TABLE = new int[512];
+
+	static final int NO_COLOR = -1;
+	static final int SOLID = 0x1000000;
+
+	static {
+		for (int i = 0; i < CI_TABLE.length; i++) {
+			CI_TABLE[i] = colorKey(getCI(i));
+		}
+		for (int i = 0; i < CI_ROG_TABLE.length; i++) {
+			CI_ROG_TABLE[i] = colorKey(getCI_rog(i - 256));
+		}
+	}
+
+	private static int colorKey(Color c)
+	{
+		return c != null ? (SOLID | (c.getRGB() & 0xffffff)) : NO_COLOR;
+	}
+
+	private static Color getCI(int x)
+	{
+		if (x < 50)
+			return null;
+		else if (x < 100)
+			return VAL_LOW;
+		else if (x < 150)
+			return VAL_MEDIUM;
+		else if (x < 200)
+			return VAL_HIGH;
+		else
+			return VAL_VERYHIGH;
+	}
+
+	private static Color getCI_rog(int x)
+	{
+		if (x > 100)
+			return VAL_VERYPLUS;
+		else if (x > 20)
+			return VAL_PLUS;
+		else if (x < -100)
+			return VAL_VERYMINUS;
+		else if (x < -20)
+			return VAL_MINUS;
+		else
+			return null;
+	}
+
+	private static int lookupCI(int x)
+	{
+		return x < 0 ? NO_COLOR : CI_TABLE[Math.min(x, 255)];
+	}
+
+	private static int lookupCI_rog(int x)
+	{
+		return CI_ROG_TABLE[Math.max(-256, Math.min(x, 255)) + 256];
+	}
+
+	static final int UNPOWERED  = 0x6666e6;   //lightblue
+	static final int POWERED    = 0xff0000;   //red
+	static final int CONDUCTIVE = 0xbfbfbf;   //lightgray
+
+	private static int checkPower(Micropolis city, int x, int y, int tile)
+	{
+		if (tile <= 63) {
+			return tile;
+		}
+		else if (isZoneCenter(tile)) {
+			// zone
+			return SOLID | (city.isTilePowered(x, y) ? POWERED : UNPOWERED);
+		}
+		else if (isConductive(tile)) {
+			return SOLID | CONDUCTIVE;
+		}
+		else {
+			return DIRT;
+		}
+	}
+
+	/**
+	 * Determines what the given map cell looks like under the given
+	 * overlay: either a tile number, or SOLID plus an RGB colour.
+	 */
+	static int getCellKey(Micropolis city, MapState state, int x, int y)
+	{
+		int tile = city.getTile(x,y);
+		int c = NO_COLOR;
+
+		switch (state) {
+		case RESIDENTIAL:
+			if (isZoneAny(tile) &&
+				!isResidentialZoneAny(tile))
+			{
+				tile = DIRT;
+			}
+			break;
+		case COMMERCIAL:
+			if (isZoneAny(tile) &&
+				!isCommercialZone(tile))
+			{
+				tile = DIRT;
+			}
+			break;
+		case INDUSTRIAL:
+			if (isZoneAny(tile) &&
+				!isIndustrialZone(tile))
+			{
+				tile = DIRT;
+			}
+			break;
+		case POWER_OVERLAY:
+			return checkPower(city, x, y, tile);
+		case TRANSPORT:
+		case TRAFFIC_OVERLAY:
+			if (isConstructed(tile)
+				&& !isRoad(tile)
+				&& !isRail(tile))
+			{
+				tile = DIRT;
+			}
+			if (state == MapState.TRAFFIC_OVERLAY)
+			{
+				c = lookupCI(city.getOverlayValue(state, x, y));
+			}
+			break;
+		case LANDVALUE_OVERLAY:
+			c = lookupCI(city.getOverlayValue(state, x, y));
+			break;
+		case POLLUTE_OVERLAY:
+			c = lookupCI(10 + city.getOverlayValue(state, x, y));
+			break;
+		case CRIME_OVERLAY:
+			c = lookupCI(city.getOverlayValue(state, x, y));
+			break;
+		case POPDEN_OVERLAY:
+			c = lookupCI(city.getOverlayValue(state, x, y));
+			break;
+		case GROWTHRATE_OVERLAY:
+			c = lookupCI_rog(city.getOverlayValue(state, x, y));
+			break;
+		case FIRE_OVERLAY:
+			c = lookupCI(city.getOverlayValue(state, x, y));
+			break;
+		case POLICE_OVERLAY:
+			c = lookupCI(city.getOverlayValue(state, x, y));
+			break;
+		default:
+		}
+
+		return c != NO_COLOR ? c : tile;
+	}
+
+	public static void main(String [] args)
+		throws Exception
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		int size = 16;
+		MapState overlay = null;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			}
+			else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i+1]);
+			}
+			else if (args[i].equals("-size")) {
+				size = Integer.parseInt(args[i+1]);
+			}
+			else if (args[i].equals("-overlay")) {
+				overlay = MapState.valueOf(args[i+1]);
+			}
+			else {
+				usage();
+			}
+		}
+		if (args.length - i != 2 || threads < 1) {
+			usage();
+		}
+
+		File inputDir = new File(args[i]);
+		final File outputDir = new File(args[i+1]);
+		File [] inputs = inputDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".cty");
+			}});
+		if (inputs == null) {
+			System.err.println(inputDir + ": not a directory");
+			System.exit(1);
+		}
+		Arrays.sort(inputs);
+		outputDir.mkdirs();
+
+		// with many cities, it is quicker to render one city per
+		// thread than to split each city between threads
+		final MapRenderer renderer = new MapRenderer(size);
+		renderer.setThreads(1);
+		final MapState state = overlay;
+
+		long startTime = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		for (final File f : inputs) {
+			results.add(pool.submit(new Callable<File>() {
+				public File call() throws Exception {
+					return renderer.renderFile(f, state, outputDir);
+				}}));
+		}
+		pool.shutdown();
+
+		int failures = 0;
+		for (int j = 0; j < inputs.length; j++) {
+			try {
+				System.out.println(results.get(j).get());
+			}
+			catch (ExecutionException e) {
+				System.err.println(inputs[j] + ": " + e.getCause());
+				failures++;
+			}
+		}
+		long elapsed = System.nanoTime() - startTime;
+		System.err.printf("%d cities in %.2f s%n", inputs.length - failures, elapsed / 1e9);
+		System.exit(failures != 0 ? 1 : 0);
+	}
+
+	/**
+	 * Loads a saved city and writes its image as a PNG file. Overlays
+	 * are computed from the map as saved (see computeOverlays()).
+	 * @return the file written
+	 */
+	File renderFile(File cityFile, MapState overlay, File outputDir)
+		throws IOException
+	{
+		Micropolis city = new Micropolis();
+		city.load(cityFile);
+		if (overlay != null) {
+			// the overlays' arrays are not saved with the city
+			city.computeOverlays();
+		}
+
+		String name = cityFile.getName();
+		File outFile = new File(outputDir, name.substring(0, name.length() - 4) + ".png");
+		ImageIO.write(render(city, overlay), "png", outFile);
+		return outFile;
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: java "+MapRenderer.class.getName()+" [-threads N] [-size S] [-overlay STATE] INPUTDIR OUTPUTDIR");
+		System.exit(2);
+	}
+}
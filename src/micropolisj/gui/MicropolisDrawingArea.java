@@ -18,6 +18,7 @@ import javax.swing.event.*;
 import javax.swing.Timer;
 
 import micropolisj.engine.*;
+import micropolisj.graphics.TileImage;
 import static micropolisj.engine.TileConstants.*;
 import static micropolisj.gui.ColorParser.parseColor;
 
@@ -26,8 +27,6 @@ public class MicropolisDrawingArea extends JComponent
 {
 	Micropolis m;
 	boolean blinkUnpoweredZones = true;
-	HashSet<Point> unpoweredZones = new HashSet<Point>();
-	HashSet<CityLocation> animatedTiles = new HashSet<CityLocation>();
 	boolean blink;
 	Timer blinkTimer;
 	ToolCursor toolCursor;
@@ -101,12 +100,37 @@ public class MicropolisDrawingArea extends JComponent
 		});
 	}
 
-	public void selectTileSize(int newTileSize)
+	/**
+	 * Switches to a different zoom level. If the tiles for that size
+	 * are not in memory yet, the current tiles are rescaled and shown
+	 * until the real ones have been loaded in the background.
+	 */
+	public void selectTileSize(final int newTileSize)
+	{
+		TileImages newImages = TileImages.getLoadedInstance(newTileSize);
+		if (newImages == null && tileImages != null) {
+			newImages = tileImages.makePlaceholder(newTileSize);
+			TileImages.loadInBackground(newTileSize, new Runnable() {
+				public void run() {
+					if (getTileSize() == newTileSize) {
+						setTileImages(TileImages.getInstance(newTileSize));
+					}
+				}});
+		}
+		else if (newImages == null) {
+			newImages = TileImages.getInstance(newTileSize);
+		}
+		setTileImages(newImages);
+		revalidate();
+	}
+
+	private void setTileImages(TileImages newImages)
 	{
-		tileImages = TileImages.getInstance(newTileSize);
+		tileImages = newImages;
 		TILE_WIDTH = tileImages.TILE_WIDTH;
 		TILE_HEIGHT = tileImages.TILE_HEIGHT;
-		revalidate();
+		resetChunks();
+		repaint();
 	}
 
 	public int getTileSize()
@@ -138,6 +162,7 @@ public class MicropolisDrawingArea extends JComponent
 		if (this.m != null) { //new engine
 			this.m.addMapListener(this);
 		}
+		resetChunks();
 
 		// size may have changed
 		invalidate();
@@ -165,29 +190,66 @@ public class MicropolisDrawingArea extends JComponent
 		}
 	}
 
-	public void paintComponent(Graphics gr)
+	/** Width and height, in tiles, of each cached chunk of the tile layer. */
+	static final int CHUNK_SIZE = 16;
+
+	/** Upper bound on the pixels held by cached chunks (4 bytes each). */
+	static final int CHUNK_CACHE_PIXELS = 8 * 1024 * 1024;
+
+	/**
+	 * A pre-rendered square of the tile layer. Tiles are copied into
+	 * the chunk's raster only when the image shown for them changes.
+	 */
+	class Chunk
 	{
-		final int width = m.getWidth();
-		final int height = m.getHeight();
+		final int x0, y0;
+		final int w, h;
+		final BufferedImage image;
+		final int [] pixels;
 
-		Rectangle clipRect = gr.getClipBounds();
-		int minX = Math.max(0, clipRect.x / TILE_WIDTH);
-		int minY = Math.max(0, clipRect.y / TILE_HEIGHT);
-		int maxX = Math.min(width, 1 + (clipRect.x + clipRect.width-1) / TILE_WIDTH);
-		int maxY = Math.min(height, 1 + (clipRect.y + clipRect.height-1) / TILE_HEIGHT);
+		/** The tile frame currently drawn at each cell. */
+		final TileImage.SimpleTileImage [] drawn;
+
+		/** Cells that need to be looked at again before next use. */
+		final BitSet check = new BitSet();
+
+		/** Cells showing an animated tile. */
+		final BitSet animated = new BitSet();
+
+		/** Cells holding an unpowered zone center, i.e. that blink. */
+		final BitSet unpowered = new BitSet();
+
+		int lastUsed;
+
+		Chunk(int x0, int y0, int w, int h)
+		{
+			this.x0 = x0;
+			this.y0 = y0;
+			this.w = w;
+			this.h = h;
+			this.image = new BufferedImage(w*TILE_WIDTH, h*TILE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+			this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			this.drawn = new TileImage.SimpleTileImage[w*h];
+			check.set(0, w*h);
+		}
 
-		for (int y = minY; y < maxY; y++)
+		void update()
 		{
-			for (int x = maxX-1; x >= minX; x--)
+			final int acycle = m.getAnimationCycle();
+			final int scan = w * TILE_WIDTH;
+
+			for (int i = check.nextSetBit(0); i >= 0; i = check.nextSetBit(i+1))
 			{
+				int x = x0 + i % w;
+				int y = y0 + i / w;
+
 				int cell = m.getTile(x,y);
-				if (blinkUnpoweredZones &&
+				boolean isUnpowered = blinkUnpoweredZones &&
 					isZoneCenter(cell) &&
-					!m.isTilePowered(x, y))
-				{
-					unpoweredZones.add(new Point(x,y));
-					if (blink)
-						cell = LIGHTNINGBOLT;
+					!m.isTilePowered(x, y);
+				unpowered.set(i, isUnpowered);
+				if (isUnpowered && blink) {
+					cell = LIGHTNINGBOLT;
 				}
 
 				if (toolPreview != null) {
@@ -197,14 +259,153 @@ public class MicropolisDrawingArea extends JComponent
 					}
 				}
 
-				TileImages.ImageInfo imgInfo = tileImages.getTileImageInfo(cell, m.getAnimationCycle());
-				imgInfo.drawTo(gr,
-					x*TILE_WIDTH + (shakeStep != 0 ? getShakeModifier(y) : 0),
-					y*TILE_HEIGHT
-					);
+				TileImages.ImageInfo imgInfo = tileImages.getTileImageInfo(cell, acycle);
+				animated.set(i, imgInfo.isAnimated());
+				if (drawn[i] != imgInfo.image) {
+					imgInfo.drawToPixels(pixels,
+						(i / w) * TILE_HEIGHT * scan + (i % w) * TILE_WIDTH,
+						scan);
+					drawn[i] = imgInfo.image;
+				}
+			}
+			check.clear();
+		}
+
+		/** Marks the cell at the given map location for re-evaluation. */
+		void touch(int xpos, int ypos)
+		{
+			check.set((ypos - y0) * w + (xpos - x0));
+		}
+
+		/** Repaints the map locations of the given cells of this chunk. */
+		void repaintCells(BitSet cells)
+		{
+			for (int i = cells.nextSetBit(0); i >= 0; i = cells.nextSetBit(i+1)) {
+				repaint(getTileBounds(x0 + i % w, y0 + i / w));
+			}
+		}
+	}
+
+	Chunk [] chunks;
+	int chunksAcross;
+	int chunksDown;
+	int chunkCount;
+	int maxChunks;
+	int paintStamp;
+
+	void resetChunks()
+	{
+		if (m == null || TILE_WIDTH == 0) {
+			return;
+		}
+
+		chunksAcross = (m.getWidth() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		chunksDown = (m.getHeight() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		chunks = new Chunk[chunksAcross * chunksDown];
+		chunkCount = 0;
+
+		int chunkPixels = CHUNK_SIZE * TILE_WIDTH * CHUNK_SIZE * TILE_HEIGHT;
+		maxChunks = Math.max(16, CHUNK_CACHE_PIXELS / chunkPixels);
+	}
 
-				if (imgInfo.isAnimated()) {
-					animatedTiles.add(new CityLocation(x, y));
+	Chunk getChunk(int cx, int cy)
+	{
+		int idx = cy * chunksAcross + cx;
+		Chunk c = chunks[idx];
+		if (c == null) {
+			if (chunkCount >= maxChunks) {
+				evictChunk();
+			}
+			int x0 = cx * CHUNK_SIZE;
+			int y0 = cy * CHUNK_SIZE;
+			c = new Chunk(x0, y0,
+				Math.min(CHUNK_SIZE, m.getWidth() - x0),
+				Math.min(CHUNK_SIZE, m.getHeight() - y0));
+			chunks[idx] = c;
+			chunkCount++;
+		}
+		c.lastUsed = paintStamp;
+		return c;
+	}
+
+	/**
+	 * Drops the least recently painted chunk, never one used in the
+	 * paint that is in progress.
+	 */
+	private void evictChunk()
+	{
+		int victim = -1;
+		for (int i = 0; i < chunks.length; i++) {
+			Chunk c = chunks[i];
+			if (c != null && c.lastUsed != paintStamp &&
+				(victim == -1 || c.lastUsed - chunks[victim].lastUsed < 0))
+			{
+				victim = i;
+			}
+		}
+		if (victim != -1) {
+			chunks[victim] = null;
+			chunkCount--;
+		}
+	}
+
+	/** Gets the cached chunk holding the given map location, or null. */
+	private Chunk findChunk(int xpos, int ypos)
+	{
+		if (chunks == null) {
+			return null;
+		}
+		return chunks[(ypos / CHUNK_SIZE) * chunksAcross + xpos / CHUNK_SIZE];
+	}
+
+	/** Marks all cached cells within the given map area for re-evaluation. */
+	private void touchArea(CityRect b)
+	{
+		for (int y = Math.max(0, b.y); y < Math.min(m.getHeight(), b.y + b.height); y++) {
+			for (int x = Math.max(0, b.x); x < Math.min(m.getWidth(), b.x + b.width); x++) {
+				Chunk c = findChunk(x, y);
+				if (c != null) {
+					c.touch(x, y);
+				}
+			}
+		}
+	}
+
+	public void paintComponent(Graphics gr)
+	{
+		final int width = m.getWidth();
+		final int height = m.getHeight();
+
+		Rectangle clipRect = gr.getClipBounds();
+		int minX = Math.max(0, clipRect.x / TILE_WIDTH);
+		int minY = Math.max(0, clipRect.y / TILE_HEIGHT);
+		int maxX = Math.min(width, 1 + (clipRect.x + clipRect.width-1) / TILE_WIDTH);
+		int maxY = Math.min(height, 1 + (clipRect.y + clipRect.height-1) / TILE_HEIGHT);
+
+		paintStamp++;
+		for (int cy = minY / CHUNK_SIZE; cy * CHUNK_SIZE < maxY; cy++)
+		{
+			for (int cx = minX / CHUNK_SIZE; cx * CHUNK_SIZE < maxX; cx++)
+			{
+				Chunk c = getChunk(cx, cy);
+				c.update();
+
+				int destX = c.x0 * TILE_WIDTH;
+				int destY = c.y0 * TILE_HEIGHT;
+				if (shakeStep == 0) {
+					gr.drawImage(c.image, destX, destY, null);
+					continue;
+				}
+
+				// shaking shifts each row of tiles separately
+				for (int row = Math.max(0, minY - c.y0); row < c.h && c.y0 + row < maxY; row++)
+				{
+					int dx = destX + getShakeModifier(c.y0 + row);
+					int dy = destY + row * TILE_HEIGHT;
+					gr.drawImage(c.image,
+						dx, dy, dx + c.w * TILE_WIDTH, dy + TILE_HEIGHT,
+						0, row * TILE_HEIGHT, c.w * TILE_WIDTH, (row+1) * TILE_HEIGHT,
+						null);
 				}
 			}
 		}
@@ -305,6 +506,7 @@ public class MicropolisDrawingArea extends JComponent
 	{
 		if (toolPreview != null) {
 			CityRect b = toolPreview.getBounds();
+			touchArea(b);
 			Rectangle r = new Rectangle(
 				b.x*TILE_WIDTH,
 				b.y*TILE_HEIGHT,
@@ -318,6 +520,7 @@ public class MicropolisDrawingArea extends JComponent
 		if (toolPreview != null) {
 
 			CityRect b = toolPreview.getBounds();
+			touchArea(b);
 			Rectangle r = new Rectangle(
 				b.x*TILE_WIDTH,
 				b.y*TILE_HEIGHT,
@@ -381,7 +584,7 @@ public class MicropolisDrawingArea extends JComponent
 	}
 
 	//implements MapListener
-	public void mapOverlayDataChanged(MapState overlayDataType)
+	public void mapOverlayDataChanged(MapState overlayDataType, CityRect changedArea)
 	{
 	}
 
@@ -395,21 +598,31 @@ public class MicropolisDrawingArea extends JComponent
 	//implements MapListener
 	public void mapAnimation()
 	{
-		for (CityLocation loc : animatedTiles) {
-			repaint(getTileBounds(loc.x, loc.y));
+		if (chunks == null) {
+			return;
+		}
+		for (Chunk c : chunks) {
+			if (c != null && !c.animated.isEmpty()) {
+				c.check.or(c.animated);
+				c.repaintCells(c.animated);
+			}
 		}
-		animatedTiles.clear();
 	}
 
 	//implements MapListener
 	public void tileChanged(int xpos, int ypos)
 	{
+		Chunk c = findChunk(xpos, ypos);
+		if (c != null) {
+			c.touch(xpos, ypos);
+		}
 		repaint(getTileBounds(xpos, ypos));
 	}
 
 	//implements MapListener
 	public void wholeMapChanged()
 	{
+		resetChunks();
 		repaint();
 	}
 
@@ -436,14 +649,20 @@ public class MicropolisDrawingArea extends JComponent
 	
 	void doBlink()
 	{
-		if (!unpoweredZones.isEmpty())
-		{
-			blink = !blink;
-			for (Point loc : unpoweredZones)
-			{
-				repaint(getTileBounds(loc.x, loc.y));
+		if (chunks == null) {
+			return;
+		}
+
+		boolean any = false;
+		for (Chunk c : chunks) {
+			if (c != null && !c.unpowered.isEmpty()) {
+				c.check.or(c.unpowered);
+				c.repaintCells(c.unpowered);
+				any = true;
 			}
-			unpoweredZones.clear();
+		}
+		if (any) {
+			blink = !blink;
 		}
 	}
 
@@ -10,8 +10,10 @@ package micropolisj.gui;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -20,15 +22,47 @@ import static micropolisj.gui.MainWindow.EXTENSION;
 
 public class NewCityDialog extends JDialog
 {
-	Micropolis engine;
+	MapPreview map;
 	JButton previousMapBtn;
-	Stack<Micropolis> previousMaps = new Stack<Micropolis>();
-	Stack<Micropolis> nextMaps = new Stack<Micropolis>();
-	OverlayMapView mapPane;
+	Stack<MapPreview> previousMaps = new Stack<MapPreview>();
+	Stack<MapPreview> nextMaps = new Stack<MapPreview>();
+	JLabel mapPane;
 	HashMap<Integer,JRadioButton> levelBtns = new HashMap<Integer,JRadioButton>();
 
 	static final ResourceBundle strings = MainWindow.strings;
 
+	/** Number of new maps to have ready ahead of the one shown. */
+	static final int PREGENERATE_COUNT = 3;
+
+	/**
+	 * Generates upcoming maps in the background, while the user
+	 * looks at the current one.
+	 */
+	ExecutorService generator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "NewCityDialog map generator");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}});
+	LinkedList<Future<MapPreview>> pendingMaps = new LinkedList<Future<MapPreview>>();
+
+	/**
+	 * A map the user can browse to. Only the seed is kept; the city
+	 * itself is generated again from it when the user decides to play.
+	 */
+	static class MapPreview
+	{
+		final long seed;
+		final ImageIcon thumbnail;
+
+		MapPreview(long seed, BufferedImage thumbnail)
+		{
+			this.seed = seed;
+			this.thumbnail = new ImageIcon(thumbnail);
+		}
+	}
+
 	public NewCityDialog(MainWindow owner, boolean showCancelOption)
 	{
 		super(owner);
@@ -41,10 +75,9 @@ public class NewCityDialog extends JDialog
 		p1.setBorder(BorderFactory.createEmptyBorder(10,20,10,20));
 		getContentPane().add(p1, BorderLayout.CENTER);
 
-		engine = new Micropolis();
-		new MapGenerator(engine).generateNewCity();
+		map = takeNextMap();
 
-		mapPane = new OverlayMapView(engine);
+		mapPane = new JLabel(map.thumbnail);
 		mapPane.setBorder(BorderFactory.createLoweredBevelBorder());
 		p1.add(mapPane, BorderLayout.WEST);
 
@@ -134,30 +167,86 @@ public class NewCityDialog extends JDialog
 			JComponent.WHEN_IN_FOCUSED_WINDOW);
 	}
 
+	@Override
+	public void dispose()
+	{
+		generator.shutdownNow();
+		super.dispose();
+	}
+
+	/**
+	 * Queues generation of new maps until PREGENERATE_COUNT are
+	 * pending.
+	 */
+	private void pregenerate()
+	{
+		while (pendingMaps.size() < PREGENERATE_COUNT) {
+			// seeds are drawn here, on the event thread, so the
+			// shared generator is never used concurrently
+			final long seed = MapGenerator.newSeed();
+			pendingMaps.add(generator.submit(new Callable<MapPreview>() {
+				public MapPreview call() {
+					return generatePreview(seed);
+				}}));
+		}
+	}
+
+	static MapPreview generatePreview(long seed)
+	{
+		char [][] terrain = new char[Micropolis.DEFAULT_HEIGHT][Micropolis.DEFAULT_WIDTH];
+		new MapGenerator(terrain).generateSomeCity(seed);
+		return new MapPreview(seed, OverlayMapView.renderTerrain(terrain));
+	}
+
+	/**
+	 * Gets the oldest pregenerated map, waiting for it if it is not
+	 * finished yet, and queues up another.
+	 */
+	private MapPreview takeNextMap()
+	{
+		pregenerate();
+		Future<MapPreview> f = pendingMaps.removeFirst();
+		pregenerate();
+
+		try {
+			return f.get();
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private void showMap(MapPreview newMap)
+	{
+		map = newMap;
+		mapPane.setIcon(map.thumbnail);
+	}
+
 	private void onPreviousMapClicked()
 	{
 		if (previousMaps.isEmpty())
 			return;
 
-		nextMaps.push(engine);
-		engine = previousMaps.pop();
-		mapPane.setEngine(engine);
+		nextMaps.push(map);
+		showMap(previousMaps.pop());
 
 		previousMapBtn.setEnabled(!previousMaps.isEmpty());
 	}
 
 	private void onNextMapClicked()
 	{
-		if (nextMaps.isEmpty())
-		{
-			Micropolis m = new Micropolis();
-			new MapGenerator(m).generateNewCity();
-			nextMaps.add(m);
-		}
-
-		previousMaps.push(engine);
-		engine = nextMaps.pop();
-		mapPane.setEngine(engine);
+		previousMaps.push(map);
+		showMap(nextMaps.isEmpty() ? takeNextMap() : nextMaps.pop());
 
 		previousMapBtn.setEnabled(true);
 	}
@@ -197,6 +286,8 @@ public class NewCityDialog extends JDialog
 
 	private void onPlayClicked()
 	{
+		Micropolis engine = new Micropolis();
+		new MapGenerator(engine).generateSomeCity(map.seed);
 		engine.setGameLevel(getSelectedGameLevel());
 		engine.setFunds(GameLevel.getStartingFunds(engine.gameLevel));
 		startPlaying(engine, null);
@@ -0,0 +1,154 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.gui;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.Socket;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.ResourceBundle;
+import javax.swing.*;
+
+import micropolisj.engine.*;
+import static micropolisj.gui.MainWindow.formatFunds;
+import static micropolisj.gui.MainWindow.formatGameDate;
+
+/**
+ * A window showing a city being played elsewhere, as streamed by an
+ * ObserverServer. Run with:
+ * <pre>
+ * java micropolisj.gui.ObserverWindow [HOST] PORT
+ * </pre>
+ * The game being observed must have been started with the
+ * micropolisj.observer_port system property set to the same port.
+ */
+public class ObserverWindow extends JFrame
+{
+	final ObserverClient client;
+	final MicropolisDrawingArea drawingArea;
+	String caption;
+
+	static final ResourceBundle strings = MainWindow.strings;
+
+	/**
+	 * @param client a client which has applied its first keyframe
+	 */
+	public ObserverWindow(ObserverClient client)
+	{
+		this.client = client;
+		this.drawingArea = new MicropolisDrawingArea(client.getCity());
+		add(new JScrollPane(drawingArea));
+		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		setSize(800, 600);
+		setLocationRelativeTo(null);
+		updateCaption();
+	}
+
+	/**
+	 * Applies a frame from the stream. Must be called on the event
+	 * dispatch thread.
+	 */
+	void applyFrame(ObserverClient.Frame frame)
+		throws IOException
+	{
+		if (client.apply(frame)) {
+			// the map's size changed
+			drawingArea.setEngine(client.getCity());
+		}
+		updateCaption();
+	}
+
+	void updateCaption()
+	{
+		Micropolis city = client.getCity();
+		String newCaption = MessageFormat.format(strings.getString("observer.caption"),
+			formatGameDate(city.cityTime),
+			NumberFormat.getInstance().format(city.getCityPopulation()),
+			formatFunds(city.budget.totalFunds));
+		if (!newCaption.equals(caption)) {
+			caption = newCaption;
+			setTitle(caption);
+		}
+	}
+
+	public static void main(String [] args)
+		throws Exception
+	{
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java "+ObserverWindow.class.getName()+" [HOST] PORT");
+			System.exit(2);
+		}
+		String host = args.length == 2 ? args[0] : null;
+		int port = Integer.parseInt(args[args.length - 1]);
+
+		Socket socket = new Socket(host, port);
+		final ObserverClient client = new ObserverClient(
+			new BufferedInputStream(socket.getInputStream()),
+			socket.getOutputStream());
+		final ObserverClient.Frame first = client.readFrame();
+		if (first == null) {
+			throw new EOFException("no keyframe");
+		}
+
+		final ObserverWindow [] win = new ObserverWindow[1];
+		runOnEventThread(new Callable() {
+			public void call() throws IOException {
+				client.apply(first);
+				win[0] = new ObserverWindow(client);
+				win[0].setVisible(true);
+			}});
+
+		// each frame is shown before the next is read, so a busy
+		// window is sent fewer frames (see ObserverClient.apply())
+		ObserverClient.Frame frame;
+		while ((frame = client.readFrame()) != null) {
+			final ObserverClient.Frame f = frame;
+			runOnEventThread(new Callable() {
+				public void call() throws IOException {
+					win[0].applyFrame(f);
+				}});
+		}
+
+		runOnEventThread(new Callable() {
+			public void call() {
+				win[0].setTitle(MessageFormat.format(
+					strings.getString("observer.caption_disconnected"),
+					win[0].caption));
+			}});
+	}
+
+	interface Callable
+	{
+		void call() throws IOException;
+	}
+
+	static void runOnEventThread(final Callable c)
+		throws IOException, InterruptedException
+	{
+		final IOException [] failure = new IOException[1];
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					try {
+						c.call();
+					}
+					catch (IOException e) {
+						failure[0] = e;
+					}
+				}});
+		}
+		catch (InvocationTargetException e) {
+			throw new IOException(e.getCause());
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+}
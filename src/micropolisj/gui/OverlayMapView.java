@@ -64,6 +64,7 @@ public class OverlayMapView extends JComponent
 		if (engine != null) { //new engine
 			engine.addMapListener(this);
 		}
+		rasters.clear();
 
 		invalidate();  //map size may have changed
 		repaint();
@@ -99,287 +100,167 @@ public class OverlayMapView extends JComponent
 	static final int TILE_OFFSET_Y = 3;
 	static TileImages tileArray = TileImages.getInstance("sm", TILE_HEIGHT);
 
-	static final Color VAL_LOW       = new Color(0xbfbfbf);
-	static final Color VAL_MEDIUM    = new Color(0xffff00);
-	static final Color VAL_HIGH      = new Color(0xff7f00);
-	static final Color VAL_VERYHIGH  = new Color(0xff0000);
-	static final Color VAL_PLUS      = new Color(0x007f00);
-	static final Color VAL_VERYPLUS  = new Color(0x00e600);
-	static final Color VAL_MINUS     = new Color(0xff7f00);
-	static final Color VAL_VERYMINUS = new Color(0xffff00);
-
-	private Color getCI(int x)
+	/**
+	 * Determines what the given map cell looks like under the given
+	 * overlay: either a tile number, or SOLID plus an RGB colour.
+	 */
+	int getCellKey(MapState state, int x, int y)
 	{
-		if (x < 50)
-			return null;
-		else if (x < 100)
-			return VAL_LOW;
-		else if (x < 150)
-			return VAL_MEDIUM;
-		else if (x < 200)
-			return VAL_HIGH;
-		else
-			return VAL_VERYHIGH;
+		return MapRenderer.getCellKey(engine, state, x, y);
 	}
 
-	private Color getCI_rog(int x)
+	/**
+	 * A persistent rendering of the whole map under one overlay.
+	 * Only cells whose appearance changed are redrawn.
+	 */
+	class MapRaster
 	{
-		if (x > 100)
-			return VAL_VERYPLUS;
-		else if (x > 20)
-			return VAL_PLUS;
-		else if (x < -100)
-			return VAL_VERYMINUS;
-		else if (x < -20)
-			return VAL_MINUS;
-		else
-			return null;
-	}
+		final BufferedImage image;
+		final int [] pixels;
 
-	private void drawPollutionMap(Graphics gr)
-	{
-		int [][] A = engine.pollutionMem;
+		/** Cell key last drawn at each map location. */
+		final int [] keys;
 
-		for (int y = 0; y < A.length; y++) {
-			for (int x = 0; x < A[y].length; x++) {
-				maybeDrawRect(gr, getCI(10 + A[y][x]),x*6,y*6,6,6);
-			}
-		}
-	}
+		/** Map locations touched since the last update. */
+		final BitSet dirtyTiles = new BitSet();
 
-	private void drawCrimeMap(Graphics gr)
-	{
-		int [][] A = engine.crimeMem;
+		/** Set when the overlay data behind every cell may have changed. */
+		boolean dataStale = true;
 
-		for (int y = 0; y < A.length; y++) {
-			for (int x = 0; x < A[y].length; x++) {
-				maybeDrawRect(gr, getCI(A[y][x]),x*6,y*6,6,6);
-			}
+		MapRaster(int width, int height)
+		{
+			image = new BufferedImage(width*TILE_WIDTH, height*TILE_HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+			pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			keys = new int[width*height];
+			Arrays.fill(keys, Integer.MIN_VALUE);
 		}
-	}
 
-	private void drawPopDensity(Graphics gr)
-	{
-		int [][] A = engine.popDensity;
+		void update(MapState state)
+		{
+			final int width = engine.getWidth();
+			final int height = engine.getHeight();
 
-		for (int y = 0; y < A.length; y++) {
-			for (int x = 0; x < A[y].length; x++) {
-				maybeDrawRect(gr, getCI(A[y][x]),x*6,y*6,6,6);
+			if (dataStale) {
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						updateCell(state, x, y);
+					}
+				}
+				dataStale = false;
+				dirtyTiles.clear();
 			}
-		}
-	}
-
-	private void drawRateOfGrowth(Graphics gr)
-	{
-		int [][] A = engine.rateOGMem;
-
-		for (int y = 0; y < A.length; y++) {
-			for (int x = 0; x < A[y].length; x++) {
-				maybeDrawRect(gr, getCI_rog(A[y][x]),x*24,y*24,24,24);
+			else {
+				for (int i = dirtyTiles.nextSetBit(0); i >= 0; i = dirtyTiles.nextSetBit(i+1)) {
+					updateCell(state, i % width, i / width);
+				}
+				dirtyTiles.clear();
 			}
 		}
-	}
-
-	private void drawFireRadius(Graphics gr)
-	{
-		int [][] A = engine.fireRate;
 
-		for (int y = 0; y < A.length; y++) {
-			for (int x = 0; x < A[y].length; x++) {
-				maybeDrawRect(gr, getCI(A[y][x]),x*24,y*24,24,24);
+		void updateCell(MapState state, int x, int y)
+		{
+			int i = y * engine.getWidth() + x;
+			int key = getCellKey(state, x, y);
+			if (keys[i] == key) {
+				return;
 			}
-		}
-	}
-
-	private void drawPoliceRadius(Graphics gr)
-	{
-		int [][] A = engine.policeMapEffect;
-
-		for (int y = 0; y < A.length; y++) {
-			for (int x = 0; x < A[y].length; x++) {
-				maybeDrawRect(gr, getCI(A[y][x]),x*24,y*24,24,24);
+			keys[i] = key;
+
+			final int scan = engine.getWidth() * TILE_WIDTH;
+			int base = y * TILE_HEIGHT * scan + x * TILE_WIDTH;
+			if ((key & MapRenderer.SOLID) != 0) {
+				int pix = key & 0xffffff;
+				for (int yy = 0; yy < TILE_HEIGHT; yy++) {
+					Arrays.fill(pixels, base + yy*scan, base + yy*scan + TILE_WIDTH, pix);
+				}
+			}
+			else {
+				int [] src = getTilePixels(key);
+				for (int yy = 0; yy < TILE_HEIGHT; yy++) {
+					System.arraycopy(src, yy*TILE_WIDTH, pixels, base + yy*scan, TILE_WIDTH);
+				}
 			}
 		}
 	}
 
-	private void maybeDrawRect(Graphics gr, Color col, int x, int y, int width, int height)
-	{
-		if (col != null) {
-			gr.setColor(col);
-			gr.fillRect(x,y,width,height);
-		}
-	}
+	EnumMap<MapState,MapRaster> rasters = new EnumMap<MapState,MapRaster>(MapState.class);
 
-	static final int UNPOWERED  = 0x6666e6;   //lightblue
-	static final int POWERED    = 0xff0000;   //red
-	static final int CONDUCTIVE = 0xbfbfbf;   //lightgray
+	/** Pixels of each mini-map tile image, indexed by tile number. */
+	static int [][] tilePixels = new int[Tiles.getTileCount()][];
 
-	private int checkPower(BufferedImage img, int x, int y, int rawTile)
+	static int [] getTilePixels(int tile)
 	{
-		int pix;
-
-		if ((rawTile & LOMASK) <= 63) {
-			return rawTile & LOMASK;
-		}
-		else if (isZoneCenter(rawTile)) {
-			// zone
-			pix = ((rawTile & PWRBIT) != 0) ? POWERED : UNPOWERED;
-		}
-		else if (isConductive(rawTile)) {
-			pix = CONDUCTIVE;
-		}
-		else {
-			return DIRT;
-		}
-
-		for (int yy = 0; yy < TILE_HEIGHT; yy++)
-		{
-			for (int xx = 0; xx < TILE_WIDTH; xx++)
-			{
-				img.setRGB(x*TILE_WIDTH+xx,y*TILE_HEIGHT+yy, pix);
-			}
-		}
-		return -1; //this special value tells caller to skip the tile bitblt,
-		           //since it was performed here
-	}
+		assert tile >= 0;
 
-	private int checkLandValueOverlay(BufferedImage img, int xpos, int ypos, int tile)
-	{
-		int v = engine.getLandValue(xpos, ypos);
-		Color c = getCI(v);
-		if (c == null) {
-			return tile;
+		int [] pix = tilePixels[tile];
+		if (pix == null) {
+			TileImages.ImageInfo tileImg = tileArray.getTileImageInfo(tile);
+			pix = new int[TILE_WIDTH*TILE_HEIGHT];
+			tileImg.getRGB(pix);
+			tilePixels[tile] = pix;
 		}
-
-		int pix = c.getRGB();
-		for (int yy = 0; yy < TILE_HEIGHT; yy++) {
-			for (int xx = 0; xx < TILE_WIDTH; xx++) {
-				img.setRGB(
-					xpos*TILE_WIDTH+xx,
-					ypos*TILE_HEIGHT+yy,
-					pix);
+		return pix;
+	}
+
+	/**
+	 * Draws a bare terrain, as made by MapGenerator, the way the
+	 * mini-map would show it. Safe to call from any thread.
+	 */
+	static BufferedImage renderTerrain(char [][] map)
+	{
+		final int width = map[0].length;
+		final int height = map.length;
+		BufferedImage image = new BufferedImage(width*TILE_WIDTH, height*TILE_HEIGHT,
+			BufferedImage.TYPE_INT_RGB);
+		int [] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+		// the shared tilePixels cache is only for the event thread,
+		// so keep a private one; terrain tiles are all below 64
+		int [][] cache = new int[64][];
+		final int scan = width * TILE_WIDTH;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int tile = map[y][x];
+				int [] src = tile < cache.length ? cache[tile] : null;
+				if (src == null) {
+					src = new int[TILE_WIDTH*TILE_HEIGHT];
+					tileArray.getTileImageInfo(tile).getRGB(src);
+					if (tile < cache.length) {
+						cache[tile] = src;
+					}
+				}
+				int base = y * TILE_HEIGHT * scan + x * TILE_WIDTH;
+				for (int yy = 0; yy < TILE_HEIGHT; yy++) {
+					System.arraycopy(src, yy*TILE_WIDTH, pixels, base + yy*scan, TILE_WIDTH);
+				}
 			}
 		}
-		return CLEAR;
+		return image;
 	}
 
-	private int checkTrafficOverlay(BufferedImage img, int xpos, int ypos, int tile)
+	private MapRaster getRaster(MapState state)
 	{
-		int d = engine.getTrafficDensity(xpos, ypos);
-		Color c = getCI(d);
-		if (c == null) {
-			return tile;
-		}
-
-		int pix = c.getRGB();
-		for (int yy = 0; yy < TILE_HEIGHT; yy++) {
-			for (int xx = 0; xx < TILE_WIDTH; xx++) {
-				img.setRGB(
-					xpos*TILE_WIDTH+xx,
-					ypos*TILE_HEIGHT+yy,
-					pix);
-			}
+		MapRaster r = rasters.get(state);
+		if (r == null) {
+			r = new MapRaster(engine.getWidth(), engine.getHeight());
+			rasters.put(state, r);
 		}
-		return CLEAR;
+		return r;
 	}
 
 	@Override
 	public void paintComponent(Graphics gr)
 	{
-		final int width = engine.getWidth();
-		final int height = engine.getHeight();
-
-		BufferedImage img = new BufferedImage(width*TILE_WIDTH, height*TILE_HEIGHT,
-				BufferedImage.TYPE_INT_RGB);
+		MapRaster raster = getRaster(mapState);
+		raster.update(mapState);
 
 		final Insets INSETS = getInsets();
-		Rectangle clipRect = gr.getClipBounds();
-		int minX = Math.max(0, (clipRect.x - INSETS.left) / TILE_WIDTH);
-		int minY = Math.max(0, (clipRect.y - INSETS.top) / TILE_HEIGHT);
-		int maxX = Math.min(width, 1 + (clipRect.x - INSETS.left + clipRect.width-1) / TILE_WIDTH);
-		int maxY = Math.min(height, 1 + (clipRect.y - INSETS.top + clipRect.height-1) / TILE_HEIGHT);
-
-		for (int y = minY; y < maxY; y++)
-		{
-			for (int x = minX; x < maxX; x++)
-			{
-				int tile = engine.getTile(x,y);
-				switch (mapState) {
-				case RESIDENTIAL:
-					if (isZoneAny(tile) &&
-						!isResidentialZoneAny(tile))
-					{
-						tile = DIRT;
-					}
-					break;
-				case COMMERCIAL:
-					if (isZoneAny(tile) &&
-						!isCommercialZone(tile))
-					{
-						tile = DIRT;
-					}
-					break;
-				case INDUSTRIAL:
-					if (isZoneAny(tile) &&
-						!isIndustrialZone(tile))
-					{
-						tile = DIRT;
-					}
-					break;
-				case POWER_OVERLAY:
-					tile = checkPower(img, x, y, engine.getTile(x,y));
-					break;
-				case TRANSPORT:
-				case TRAFFIC_OVERLAY:
-					if (isConstructed(tile)
-						&& !isRoad(tile)
-						&& !isRail(tile))
-					{
-						tile = DIRT;
-					}
-					if (mapState == MapState.TRAFFIC_OVERLAY)
-					{
-						tile = checkTrafficOverlay(img, x, y, tile);
-					}
-					break;
-
-				case LANDVALUE_OVERLAY:
-					tile = checkLandValueOverlay(img, x, y, tile);
-					break;
-
-				default:
-				}
-
-				// tile == -1 means it's already been drawn
-				// in the checkPower function
-
-				if (tile != -1) {
-					paintTile(img, x, y, tile);
-				}
-			}
-		}
-
-		gr.drawImage(img, INSETS.left, INSETS.top, null);
+		gr.drawImage(raster.image, INSETS.left, INSETS.top, null);
 
 		gr = gr.create();
 		gr.translate(INSETS.left, INSETS.top);
 
-		switch (mapState) {
-		case POLICE_OVERLAY:
-			drawPoliceRadius(gr); break;
-		case FIRE_OVERLAY:
-			drawFireRadius(gr); break;
-		case CRIME_OVERLAY:
-			drawCrimeMap(gr); break;
-		case POLLUTE_OVERLAY:
-			drawPollutionMap(gr); break;
-		case GROWTHRATE_OVERLAY:
-			drawRateOfGrowth(gr); break;
-		case POPDEN_OVERLAY:
-			drawPopDensity(gr); break;
-		default:
-		}
-
 		for (ConnectedView cv : views)
 		{
 			Rectangle rect = getViewRect(cv);
@@ -394,14 +275,6 @@ public class OverlayMapView extends JComponent
 		}
 	}
 
-	void paintTile(BufferedImage img, int x, int y, int tile)
-	{
-		assert tile >= 0;
-
-		TileImages.ImageInfo tileImg = tileArray.getTileImageInfo(tile);
-		tileImg.drawToBytes(img, x*TILE_WIDTH, y*TILE_HEIGHT);
-	}
-
 	Rectangle getViewRect(ConnectedView cv)
 	{
 		Rectangle rawRect = cv.scrollPane.getViewport().getViewRect();
@@ -469,9 +342,23 @@ public class OverlayMapView extends JComponent
 	}
 
 	//implements MapListener
-	public void mapOverlayDataChanged(MapState overlayDataType)
-	{
-		repaint();
+	public void mapOverlayDataChanged(MapState overlayDataType, CityRect changedArea)
+	{
+		MapRaster r = rasters.get(overlayDataType);
+		if (r != null) {
+			final int width = engine.getWidth();
+			for (int y = changedArea.y; y < changedArea.y + changedArea.height; y++) {
+				int i = y * width + changedArea.x;
+				r.dirtyTiles.set(i, i + changedArea.width);
+			}
+		}
+		if (overlayDataType == mapState) {
+			repaint(new Rectangle(
+				changedArea.x * TILE_WIDTH,
+				changedArea.y * TILE_HEIGHT,
+				changedArea.width * TILE_WIDTH,
+				changedArea.height * TILE_HEIGHT));
+		}
 	}
 
 	//implements MapListener
@@ -487,6 +374,11 @@ public class OverlayMapView extends JComponent
 	//implements MapListener
 	public void tileChanged(int xpos, int ypos)
 	{
+		int i = ypos * engine.getWidth() + xpos;
+		for (MapRaster raster : rasters.values()) {
+			raster.dirtyTiles.set(i);
+		}
+
 		Rectangle r = new Rectangle(xpos*TILE_WIDTH, ypos * TILE_HEIGHT, TILE_WIDTH, TILE_HEIGHT);
 		repaint(r);
 	}
@@ -494,6 +386,9 @@ public class OverlayMapView extends JComponent
 	//implements MapListener
 	public void wholeMapChanged()
 	{
+		for (MapRaster raster : rasters.values()) {
+			raster.dataStale = true;
+		}
 		repaint();
 		engine.calculateCenterMass();
 		dragViewToCityCenter();
@@ -29,7 +29,13 @@ public class TileImages
 	final int TILE_WIDTH;
 	final int TILE_HEIGHT;
 	TileImage [] tileImageMap;
-	Map<SpriteKind, Map<Integer, Image> > spriteImages;
+
+	/**
+	 * Sprite frames, indexed by sprite kind ordinal, then frame number.
+	 * Set once, fully loaded, by loadSpriteImages(), possibly on a
+	 * background thread; other threads test it without a lock.
+	 */
+	volatile Image [][] spriteImages;
 
 	private TileImages(String name, int size)
 	{
@@ -40,6 +46,17 @@ public class TileImages
 		initTileImageMap();
 	}
 
+	/**
+	 * Creates an empty tile set, to be filled in by makePlaceholder().
+	 */
+	private TileImages(String name, int size, int tileCount)
+	{
+		this.name = name;
+		this.TILE_WIDTH = size;
+		this.TILE_HEIGHT = size;
+		this.tileImageMap = new TileImage[tileCount];
+	}
+
 	String getResourceName()
 	{
 		return "/" + name + "/tiles.png";
@@ -71,7 +88,7 @@ public class TileImages
 
 	void initTileImageMap()
 	{
-		if (this.spriteImages != null) {
+		if (this.tileImageMap != null) {
 			// already loaded
 			return;
 		}
@@ -81,11 +98,35 @@ public class TileImages
 		try
 		{
 
-		// load tile->image mapping
+		// load tile->image mapping, preferring the binary index
 		this.tileImageMap = new TileImage[Tiles.getTileCount()];
-		String resourceName = "/" + name + "/tiles.idx";
+		InputStream inStream = TileImages.class.getResourceAsStream("/" + name + "/tiles.idx.bin");
+		if (inStream != null) {
+			readBinaryIndex(inStream, ctx);
+		}
+		else {
+			inStream = TileImages.class.getResourceAsStream("/" + name + "/tiles.idx");
+			readIndex(inStream, ctx);
+		}
+		inStream.close();
+
+		}
+		catch (XMLStreamException e) {
+			throw new Error("unexpected: "+e, e);
+		}
+		catch (IOException e) {
+			throw new Error("unexpected: "+e, e);
+		}
 
-		InputStream inStream = TileImages.class.getResourceAsStream(resourceName);
+		initImageInfo();
+	}
+
+	/**
+	 * Reads the tile index (tiles.idx) made by MakeTiles.
+	 */
+	void readIndex(InputStream inStream, LoaderContext ctx)
+		throws IOException, XMLStreamException
+	{
 		XMLStreamReader in = XMLInputFactory.newInstance().createXMLStreamReader(inStream, "UTF-8");
 
 		in.nextTag();
@@ -116,38 +157,360 @@ public class TileImages
 		}
 
 		in.close();
-		inStream.close();
+	}
 
+	/**
+	 * Reads the binary copy of the tile index (tiles.idx.bin) made by
+	 * MakeTiles, which is quicker to load.
+	 */
+	void readBinaryIndex(InputStream inStream, LoaderContext ctx)
+		throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(inStream));
+		if (in.readInt() != BIN_INDEX_MAGIC) {
+			throw new IOException("Unrecognized file format");
 		}
-		catch (XMLStreamException e) {
-			throw new Error("unexpected: "+e, e);
+
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String tileName = in.readUTF();
+			TileImage img = readTileImageBin(in, ctx);
+
+			TileSpec ts = Tiles.load(tileName);
+			tileImageMap[ts.tileNumber] = img;
 		}
-		catch (IOException e) {
-			throw new Error("unexpected: "+e, e);
+	}
+
+	/**
+	 * Number of distinct animation cycles.
+	 * @see Micropolis#getAnimationCycle()
+	 */
+	static final int ANIMATION_CYCLES = 960;
+
+	/**
+	 * The ImageInfo objects handed out by getTileImageInfo(), indexed by
+	 * tile number, then frame number (always 0 for a tile that is not
+	 * animated). Null for a tile number without an image.
+	 */
+	ImageInfo [][] tileInfo;
+
+	/**
+	 * For each animated tile, the frame number shown at each animation
+	 * cycle; null for the other tiles.
+	 */
+	int [][] tileFrames;
+
+	/**
+	 * Flattens the tiles' animations into lookup tables, so that finding
+	 * the image to paint takes no arithmetic and no allocation.
+	 */
+	void initImageInfo()
+	{
+		tileInfo = new ImageInfo[tileImageMap.length][];
+		tileFrames = new int[tileImageMap.length][];
+
+		// tiles sharing an animation share its tables too
+		Map<Animation,ImageInfo[]> animInfo = new IdentityHashMap<Animation,ImageInfo[]>();
+		Map<Animation,int[]> animFrames = new IdentityHashMap<Animation,int[]>();
+
+		for (int i = 0; i < tileImageMap.length; i++) {
+			TileImage ti = tileImageMap[i];
+			if (ti instanceof SimpleTileImage) {
+				tileInfo[i] = new ImageInfo[] {
+					new ImageInfo((SimpleTileImage) ti, false)
+					};
+			}
+			else if (ti instanceof Animation) {
+				Animation anim = (Animation) ti;
+				ImageInfo [] infos = animInfo.get(anim);
+				if (infos == null) {
+					infos = new ImageInfo[anim.frames.size()];
+					for (int j = 0; j < infos.length; j++) {
+						infos[j] = new ImageInfo((SimpleTileImage) anim.frames.get(j).frame, true);
+					}
+					animInfo.put(anim, infos);
+					animFrames.put(anim, anim.makeFrameTable(ANIMATION_CYCLES));
+				}
+				tileInfo[i] = infos;
+				tileFrames[i] = animFrames.get(anim);
+			}
 		}
 	}
 
-	static Map<Integer,TileImages> savedInstances = new HashMap<Integer,TileImages>();
+	/**
+	 * Upper bound, in bytes, on the memory used by cached tile sets.
+	 * Set with the micropolisj.tile_cache_mb system property.
+	 */
+	static final long CACHE_LIMIT = Long.getLong("micropolisj.tile_cache_mb", 16) * 1024 * 1024;
+
+	/** Loaded tile sets, by tile size, least recently used first. */
+	static final LinkedHashMap<Integer,TileImages> savedInstances = new LinkedHashMap<Integer,TileImages>(8, 0.75f, true);
+
+	/** Tile sizes currently being loaded by a background thread. */
+	static final Set<Integer> pendingLoads = new HashSet<Integer>();
 
 	public static TileImages getInstance(int size)
 	{
 		TileImages self = getInstance(String.format("%dx%d", size, size), size);
-		self.loadSpriteImages();
+		if (self.spriteImages == null) {
+			self.loadSpriteImages();
+			trimCache();
+		}
 		return self;
 	}
 
 	public static TileImages getInstance(String name, int size)
 	{
-		if (!savedInstances.containsKey(size)) {
-			savedInstances.put(size, new TileImages(name, size));
+		synchronized (TileImages.class) {
+			TileImages self = savedInstances.get(size);
+			if (self != null) {
+				return self;
+			}
+		}
+
+		// load without holding the lock, so that other threads
+		// can still look up tile sets that are already loaded
+		TileImages self = new TileImages(name, size);
+
+		synchronized (TileImages.class) {
+			TileImages other = savedInstances.get(size);
+			if (other != null) {
+				return other;
+			}
+			savedInstances.put(size, self);
+			trimCache();
+			return self;
+		}
+	}
+
+	/**
+	 * Gets the tile set for the given size if it is already in memory.
+	 * @return the tile set, or null if it would have to be loaded
+	 */
+	public static synchronized TileImages getLoadedInstance(int size)
+	{
+		TileImages self = savedInstances.get(size);
+		return self != null && self.spriteImages != null ? self : null;
+	}
+
+	/**
+	 * Loads the tile set for the given size on a background thread.
+	 * @param whenDone if not null, run on the event dispatch thread
+	 * once the tile set is available through getLoadedInstance()
+	 */
+	public static void loadInBackground(final int size, final Runnable whenDone)
+	{
+		synchronized (TileImages.class) {
+			if (!pendingLoads.add(size)) {
+				// already being loaded; just wait for that
+				if (whenDone != null) {
+					new LoadWatcher(size, whenDone).start();
+				}
+				return;
+			}
+		}
+
+		Thread t = new Thread("TileImages-" + size) {
+			public void run() {
+				try {
+					getInstance(size);
+				}
+				finally {
+					synchronized (TileImages.class) {
+						pendingLoads.remove(size);
+						TileImages.class.notifyAll();
+					}
+				}
+				if (whenDone != null) {
+					SwingUtilities.invokeLater(whenDone);
+				}
+			}};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Waits for another thread's load of a tile set to finish.
+	 */
+	static class LoadWatcher extends Thread
+	{
+		final int size;
+		final Runnable whenDone;
+
+		LoadWatcher(int size, Runnable whenDone)
+		{
+			super("TileImages-wait-" + size);
+			this.size = size;
+			this.whenDone = whenDone;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			synchronized (TileImages.class) {
+				while (pendingLoads.contains(size)) {
+					try {
+						TileImages.class.wait();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			SwingUtilities.invokeLater(whenDone);
+		}
+	}
+
+	/**
+	 * Drops least recently used tile sets until the cache fits
+	 * within CACHE_LIMIT. The most recently used one is always kept.
+	 */
+	static synchronized void trimCache()
+	{
+		long total = 0;
+		for (TileImages ti : savedInstances.values()) {
+			total += ti.getMemoryUsage();
+		}
+
+		Iterator<TileImages> it = savedInstances.values().iterator();
+		while (total > CACHE_LIMIT && savedInstances.size() > 1) {
+			TileImages ti = it.next();
+			total -= ti.getMemoryUsage();
+			it.remove();
 		}
-		return savedInstances.get(size);
+	}
+
+	/**
+	 * Estimates the number of bytes held by this tile set's images.
+	 */
+	long getMemoryUsage()
+	{
+		long total = 0;
+		Set<SourceImage> seen = new HashSet<SourceImage>();
+		for (TileImage ti : tileImageMap) {
+			if (ti instanceof SimpleTileImage) {
+				seen.add(((SimpleTileImage) ti).srcImage);
+			}
+			else if (ti instanceof Animation) {
+				for (Animation.Frame f : ((Animation) ti).frames) {
+					seen.add(((SimpleTileImage) f.frame).srcImage);
+				}
+			}
+		}
+		for (SourceImage si : seen) {
+			// the image itself plus its decoded copy in sourcePixels
+			total += 8L * si.image.getWidth() * si.image.getHeight();
+		}
+
+		if (spriteImages != null) {
+			for (Image [] frames : spriteImages) {
+				for (Image img : frames) {
+					if (img != null) {
+						total += 4L * img.getWidth(null) * img.getHeight(null);
+					}
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Makes a stand-in tile set of a different size by rescaling
+	 * this one. Used to show something right away while the real
+	 * tile set for that size is loaded in the background.
+	 */
+	public TileImages makePlaceholder(int size)
+	{
+		TileImages p = new TileImages(name, size, tileImageMap.length);
+
+		Map<SourceImage,SourceImage> scaledSources = new HashMap<SourceImage,SourceImage>();
+		Map<TileImage,TileImage> scaledImages = new IdentityHashMap<TileImage,TileImage>();
+		for (int i = 0; i < tileImageMap.length; i++) {
+			p.tileImageMap[i] = scaleTileImage(tileImageMap[i], size, scaledSources, scaledImages);
+		}
+		p.initImageInfo();
+
+		p.spriteImages = new Image[spriteImages.length][];
+		for (int k = 0; k < spriteImages.length; k++) {
+			p.spriteImages[k] = new Image[spriteImages[k].length];
+			for (int i = 0; i < spriteImages[k].length; i++) {
+				Image img = spriteImages[k][i];
+				if (img != null) {
+					p.spriteImages[k][i] = scaleImage(img,
+						img.getWidth(null) * size / TILE_WIDTH,
+						img.getHeight(null) * size / TILE_HEIGHT);
+				}
+			}
+		}
+		return p;
+	}
+
+	private TileImage scaleTileImage(TileImage ti, int size, Map<SourceImage,SourceImage> scaledSources, Map<TileImage,TileImage> scaledImages)
+	{
+		if (ti == null) {
+			// tile number without an image
+			return null;
+		}
+
+		TileImage result = scaledImages.get(ti);
+		if (result != null) {
+			return result;
+		}
+
+		if (ti instanceof SimpleTileImage) {
+			SimpleTileImage sti = (SimpleTileImage) ti;
+			SourceImage src = scaledSources.get(sti.srcImage);
+			if (src == null) {
+				BufferedImage bi = sti.srcImage.image;
+				src = new SourceImage(
+					scaleImage(bi, bi.getWidth() * size / TILE_WIDTH, bi.getHeight() * size / TILE_HEIGHT),
+					size);
+				scaledSources.put(sti.srcImage, src);
+			}
+
+			SimpleTileImage scaled = new SimpleTileImage();
+			scaled.srcImage = src;
+			scaled.offsetX = sti.offsetX * size / TILE_WIDTH;
+			scaled.offsetY = sti.offsetY * size / TILE_HEIGHT;
+			result = scaled;
+		}
+		else if (ti instanceof Animation) {
+			Animation scaled = new Animation();
+			for (Animation.Frame f : ((Animation) ti).frames) {
+				scaled.addFrame(scaleTileImage(f.frame, size, scaledSources, scaledImages), f.duration);
+			}
+			result = scaled;
+		}
+		else {
+			throw new Error("unexpected tile image: "+ti);
+		}
+
+		scaledImages.put(ti, result);
+		return result;
+	}
+
+	static BufferedImage scaleImage(Image img, int destWidth, int destHeight)
+	{
+		BufferedImage bi = new BufferedImage(destWidth, destHeight, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D gr = bi.createGraphics();
+		gr.drawImage(img,
+			0, 0, destWidth, destHeight,
+			0, 0, img.getWidth(null), img.getHeight(null),
+			null);
+		gr.dispose();
+		return bi;
 	}
 
 	public class ImageInfo
 	{
-		SimpleTileImage image;
-		boolean animated;
+		final SimpleTileImage image;
+		final boolean animated;
+
+		/** The source image's decoded pixels, once first needed. */
+		volatile int [] srcPixels;
+
+		/** This tile's part of the source image, once first needed. */
+		Image subimage;
 
 		ImageInfo(SimpleTileImage image, boolean animated) {
 			this.image = image;
@@ -178,13 +541,63 @@ public class TileImages
 			}
 		}
 
+		/**
+		 * Copies this tile's pixels, row by row, into the given array.
+		 */
+		public void getRGB(int [] dest)
+		{
+			image.srcImage.image.getRGB(0, image.offsetY,
+				TILE_WIDTH, TILE_HEIGHT,
+				dest, 0, TILE_WIDTH);
+		}
+
+		/**
+		 * Copies this tile's pixels straight into an integer RGB raster.
+		 * @param dest the raster's pixel array
+		 * @param offset index in dest of the tile's upper-left pixel
+		 * @param scanline number of array elements per raster row
+		 */
+		public void drawToPixels(int [] dest, int offset, int scanline)
+		{
+			int [] src = srcPixels;
+			if (src == null) {
+				src = srcPixels = getSourcePixels(image.srcImage);
+			}
+			int srcScan = image.srcImage.image.getWidth();
+			int srcOffset = image.offsetY * srcScan + image.offsetX;
+
+			for (int yy = 0; yy < TILE_HEIGHT; yy++)
+			{
+				System.arraycopy(src, srcOffset + yy*srcScan,
+					dest, offset + yy*scanline, TILE_WIDTH);
+			}
+		}
+
 		public Image getImage()
 		{
-			return image.srcImage.image.getSubimage(
-				0, image.offsetY,
-				TILE_WIDTH, TILE_HEIGHT
-				);
+			if (subimage == null) {
+				subimage = image.srcImage.image.getSubimage(
+					0, image.offsetY,
+					TILE_WIDTH, TILE_HEIGHT
+					);
+			}
+			return subimage;
+		}
+	}
+
+	/** Decoded RGB pixels of each source image, for raster copies. */
+	Map<SourceImage,int[]> sourcePixels = new HashMap<SourceImage,int[]>();
+
+	/** May be called from any thread, e.g. by MapRenderer. */
+	synchronized int [] getSourcePixels(SourceImage srcImage)
+	{
+		int [] pix = sourcePixels.get(srcImage);
+		if (pix == null) {
+			BufferedImage bi = srcImage.image;
+			pix = bi.getRGB(0, 0, bi.getWidth(), bi.getHeight(), null, 0, bi.getWidth());
+			sourcePixels.put(srcImage, pix);
 		}
+		return pix;
 	}
 
 	public ImageInfo getTileImageInfo(int tileNumber)
@@ -197,20 +610,22 @@ public class TileImages
 		assert (tileNumber & LOMASK) == tileNumber;
 		assert tileNumber >= 0 && tileNumber < tileImageMap.length;
 
-		TileImage ti = tileImageMap[tileNumber];
-		if (ti instanceof SimpleTileImage) {
-			final SimpleTileImage sti = (SimpleTileImage) ti;
-
-			return new ImageInfo(sti, false);
+		ImageInfo [] infos = tileInfo[tileNumber];
+		if (infos == null) {
+			throw new Error("no image for tile "+tileNumber);
 		}
-		else if (ti instanceof Animation) {
-			final Animation anim = (Animation) ti;
-			final SimpleTileImage sti = (SimpleTileImage) anim.getFrameByTime(acycle);
 
-			return new ImageInfo(sti, true);
+		int [] frames = tileFrames[tileNumber];
+		if (frames == null) {
+			return infos[0];
+		}
+		else if (acycle >= 0 && acycle < frames.length) {
+			return infos[frames[acycle]];
 		}
 		else {
-			throw new Error("no image for tile "+tileNumber);
+			// not a cycle the simulator produces
+			Animation anim = (Animation) tileImageMap[tileNumber];
+			return infos[anim.getFrameIndexByTime(acycle)];
 		}
 	}
 
@@ -223,28 +638,30 @@ public class TileImages
 	{
 		assert spriteImages != null;
 
-		return spriteImages.get(kind).get(frameNumber);
+		Image [] frames = spriteImages[kind.ordinal()];
+		if (frameNumber < 0 || frameNumber >= frames.length) {
+			return null;
+		}
+		return frames[frameNumber];
 	}
 
-	private void loadSpriteImages()
+	private synchronized void loadSpriteImages()
 	{
 		if (this.spriteImages != null) {
 			// already loaded
 			return;
 		}
 
-		spriteImages = new EnumMap<SpriteKind, Map<Integer,Image> >(SpriteKind.class);
-		for (SpriteKind kind : SpriteKind.values())
+		SpriteKind [] kinds = SpriteKind.values();
+		Image [][] imgs = new Image[kinds.length][];
+		for (SpriteKind kind : kinds)
 		{
-			HashMap<Integer,Image> imgs = new HashMap<Integer,Image>();
+			imgs[kind.ordinal()] = new Image[kind.numFrames];
 			for (int i = 0; i < kind.numFrames; i++) {
-				Image img = loadSpriteImage(kind, i);
-				if (img != null) {
-					imgs.put(i, img);
-				}
+				imgs[kind.ordinal()][i] = loadSpriteImage(kind, i);
 			}
-			spriteImages.put(kind, imgs);
 		}
+		spriteImages = imgs;
 	}
 
 	Image loadSpriteImage(SpriteKind kind, int frameNo)
@@ -267,21 +684,9 @@ public class TileImages
 
 		// scale the image ourselves
 		ImageIcon ii = new ImageIcon(iconUrl);
-		int destWidth = ii.getIconWidth() * TILE_WIDTH / 16;
-		int destHeight = ii.getIconHeight() * TILE_HEIGHT / 16;
-
-		GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
-		GraphicsDevice dev = env.getDefaultScreenDevice();
-		GraphicsConfiguration conf = dev.getDefaultConfiguration();
-		BufferedImage bi = conf.createCompatibleImage(destWidth, destHeight, Transparency.TRANSLUCENT);
-		Graphics2D gr = bi.createGraphics();
-
-		gr.drawImage(ii.getImage(),
-			0, 0, destWidth, destHeight,
-			0, 0,
-			ii.getIconWidth(), ii.getIconHeight(),
-			null);
-		return bi;
+		return scaleImage(ii.getImage(),
+			ii.getIconWidth() * TILE_WIDTH / 16,
+			ii.getIconHeight() * TILE_HEIGHT / 16);
 	}
 
 	static SourceImage loadImage(String resourceName, int basisSize)
@@ -0,0 +1,429 @@
+// This file is part of MicropolisJ.
+// Copyright (C) 2013 Jason Long
+// Portions Copyright (C) 1989-2007 Electronic Arts Inc.
+//
+// MicropolisJ is free software; you can redistribute it and/or modify
+// it under the terms of the GNU GPLv3, with additional terms.
+// See the README file, included in this distribution, for details.
+
+package micropolisj.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.imageio.*;
+import javax.imageio.metadata.*;
+import javax.imageio.stream.ImageOutputStream;
+
+import micropolisj.engine.*;
+
+/**
+ * Records a city's growth as a sequence of images: an animated GIF, or
+ * a directory of numbered PNG files.
+ * <p>
+ * Every so many ticks, the recorder copies the city's tiles into a
+ * spare buffer, on the simulation's thread. A background thread
+ * renders and encodes the copies. There is a fixed number of buffers.
+ * If all of them are still waiting to be encoded, the frame is skipped
+ * rather than making the simulation wait (see getFramesDropped()).
+ * <p>
+ * Can also be run from the command line, to record a saved city
+ * running without a window:
+ * <pre>
+ * java micropolisj.gui.TimelapseRecorder [-interval TICKS] [-size S] [-years N] CITYFILE OUTPUT
+ * </pre>
+ * where OUTPUT is a .gif file or a directory.
+ */
+public class TimelapseRecorder implements MapListener
+{
+	final Micropolis city;
+	final int interval;
+	final MapRenderer renderer;
+	final FrameWriter writer;
+
+	/** Number of frames that may wait to be encoded at once. */
+	static final int BUFFER_COUNT = 4;
+
+	/** Calls to animate() per simulated week. */
+	static final int TICKS_PER_WEEK = 32;
+
+	final BlockingQueue<Frame> pending = new ArrayBlockingQueue<Frame>(BUFFER_COUNT + 1);
+	final BlockingQueue<Frame> spare = new ArrayBlockingQueue<Frame>(BUFFER_COUNT);
+
+	/** Put on the pending queue to stop the encoder thread. */
+	static final Frame END = new Frame(0, 0);
+
+	final Thread encoder;
+
+	/** If set, capture waits for a buffer instead of dropping frames. */
+	boolean waitForEncoder;
+	boolean stopped;
+
+	int ticks;
+	int framesCaptured;
+	int framesDropped;
+
+	/** The first error met by the encoder thread. */
+	volatile IOException failure;
+
+	/**
+	 * One copy of the city's tiles.
+	 */
+	static class Frame
+	{
+		final int width;
+		final int height;
+		final char [] tiles;
+		int acycle;
+
+		Frame(int width, int height)
+		{
+			this.width = width;
+			this.height = height;
+			this.tiles = new char[width * height];
+		}
+	}
+
+	/**
+	 * Starts recording. Must be called on the simulation's thread.
+	 * @param output a file name ending in ".gif", or a directory for
+	 * PNG files
+	 * @param interval number of ticks (calls to animate()) between
+	 * frames
+	 * @param tileSize size, in pixels, to draw each tile; see MapRenderer
+	 */
+	public TimelapseRecorder(Micropolis city, File output, int interval, int tileSize)
+		throws IOException
+	{
+		assert interval > 0;
+
+		this.city = city;
+		this.interval = interval;
+		this.renderer = new MapRenderer(tileSize);
+		this.renderer.setThreads(1);
+		this.writer = output.getName().toLowerCase().endsWith(".gif") ?
+			new GifWriter(output) :
+			new PngWriter(output);
+
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			spare.add(new Frame(city.getWidth(), city.getHeight()));
+		}
+
+		encoder = new Thread("TimelapseRecorder") {
+			public void run() {
+				encodeFrames();
+			}};
+		encoder.setDaemon(true);
+		encoder.setPriority(Thread.MIN_PRIORITY);
+		encoder.start();
+
+		city.addMapListener(this);
+		capture();
+	}
+
+	/**
+	 * Stops capturing frames. Must be called on the simulation's
+	 * thread; close() may then be called on any thread.
+	 */
+	public void stop()
+	{
+		if (!stopped) {
+			stopped = true;
+			city.removeMapListener(this);
+		}
+	}
+
+	/**
+	 * Stops recording, and waits for the frames already captured to be
+	 * written. Must be called on the simulation's thread, unless stop()
+	 * was called first.
+	 * @throws IOException if any frame could not be written
+	 */
+	public void close()
+		throws IOException
+	{
+		stop();
+		try {
+			pending.put(END);
+			encoder.join();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+
+		try {
+			writer.close();
+		}
+		catch (IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Sets whether the simulation should wait for the encoder when it
+	 * falls behind, rather than skip frames. Useful when running
+	 * without a window, where there is nothing to keep responsive.
+	 */
+	public void setWaitForEncoder(boolean waitForEncoder)
+	{
+		this.waitForEncoder = waitForEncoder;
+	}
+
+	public int getFramesCaptured()
+	{
+		return framesCaptured;
+	}
+
+	/**
+	 * Gets the number of frames skipped because the encoder thread
+	 * had fallen behind.
+	 */
+	public int getFramesDropped()
+	{
+		return framesDropped;
+	}
+
+	void capture()
+	{
+		Frame f = spare.poll();
+		if (f == null && waitForEncoder) {
+			try {
+				f = spare.take();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (f == null) {
+			framesDropped++;
+			return;
+		}
+
+		if (f.width != city.getWidth() || f.height != city.getHeight()) {
+			f = new Frame(city.getWidth(), city.getHeight());
+		}
+		city.copyTiles(f.tiles);
+		f.acycle = city.getAnimationCycle();
+		pending.add(f);
+		framesCaptured++;
+	}
+
+	void encodeFrames()
+	{
+		try {
+			for (Frame f = pending.take(); f != END; f = pending.take()) {
+				if (failure == null) {
+					try {
+						writer.write(renderer.render(f.tiles, f.width, f.height, f.acycle));
+					}
+					catch (IOException e) {
+						// keep taking frames, so capture carries on
+						failure = e;
+					}
+					catch (RuntimeException e) {
+						failure = new IOException(e);
+					}
+				}
+				spare.add(f);
+			}
+		}
+		catch (InterruptedException e) {
+			failure = new InterruptedIOException();
+		}
+	}
+
+	//implements MapListener
+	public void mapAnimation()
+	{
+		if (++ticks % interval == 0) {
+			capture();
+		}
+	}
+
+	//implements MapListener
+	public void mapOverlayDataChanged(MapState overlayDataType, CityRect changedArea) {}
+
+	//implements MapListener
+	public void spriteMoved(Sprite sprite) {}
+
+	//implements MapListener
+	public void tileChanged(int xpos, int ypos) {}
+
+	//implements MapListener
+	public void wholeMapChanged() {}
+
+	/**
+	 * Writes the rendered frames; used by the encoder thread only.
+	 */
+	interface FrameWriter
+	{
+		void write(BufferedImage image)
+			throws IOException;
+		void close()
+			throws IOException;
+	}
+
+	/**
+	 * Writes each frame to a numbered PNG file.
+	 */
+	static class PngWriter implements FrameWriter
+	{
+		final File dir;
+		int count;
+
+		PngWriter(File dir)
+			throws IOException
+		{
+			this.dir = dir;
+			dir.mkdirs();
+			if (!dir.isDirectory()) {
+				throw new IOException(dir + ": not a directory");
+			}
+		}
+
+		public void write(BufferedImage image)
+			throws IOException
+		{
+			File f = new File(dir, String.format("frame-%05d.png", count++));
+			ImageIO.write(image, "png", f);
+		}
+
+		public void close() {}
+	}
+
+	/**
+	 * Writes the frames to an animated GIF file, which repeats forever.
+	 */
+	static class GifWriter implements FrameWriter
+	{
+		/** Time each frame is shown, in hundredths of a second. */
+		static final int FRAME_DELAY = 10;
+
+		final ImageWriter writer;
+		final ImageOutputStream out;
+		boolean first = true;
+
+		GifWriter(File file)
+			throws IOException
+		{
+			writer = ImageIO.getImageWritersByFormatName("gif").next();
+			out = ImageIO.createImageOutputStream(file);
+			if (out == null) {
+				throw new IOException(file + ": cannot write");
+			}
+			writer.setOutput(out);
+			writer.prepareWriteSequence(null);
+		}
+
+		public void write(BufferedImage image)
+			throws IOException
+		{
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			IIOMetadata metadata = writer.getDefaultImageMetadata(
+				ImageTypeSpecifier.createFromRenderedImage(image), param);
+			String format = metadata.getNativeMetadataFormatName();
+			IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+			IIOMetadataNode gce = getChild(root, "GraphicControlExtension");
+			gce.setAttribute("disposalMethod", "none");
+			gce.setAttribute("userInputFlag", "FALSE");
+			gce.setAttribute("transparentColorFlag", "FALSE");
+			gce.setAttribute("delayTime", Integer.toString(FRAME_DELAY));
+			gce.setAttribute("transparentColorIndex", "0");
+
+			if (first) {
+				// the NETSCAPE2.0 extension makes viewers loop the animation
+				IIOMetadataNode ext = new IIOMetadataNode("ApplicationExtension");
+				ext.setAttribute("applicationID", "NETSCAPE");
+				ext.setAttribute("authenticationCode", "2.0");
+				ext.setUserObject(new byte[] { 1, 0, 0 });
+				getChild(root, "ApplicationExtensions").appendChild(ext);
+				first = false;
+			}
+
+			metadata.setFromTree(format, root);
+			writer.writeToSequence(new IIOImage(image, null, metadata), param);
+		}
+
+		static IIOMetadataNode getChild(IIOMetadataNode parent, String name)
+		{
+			for (int i = 0; i < parent.getLength(); i++) {
+				if (parent.item(i).getNodeName().equals(name)) {
+					return (IIOMetadataNode) parent.item(i);
+				}
+			}
+			IIOMetadataNode node = new IIOMetadataNode(name);
+			parent.appendChild(node);
+			return node;
+		}
+
+		public void close()
+			throws IOException
+		{
+			try {
+				writer.endWriteSequence();
+			}
+			finally {
+				out.close();
+				writer.dispose();
+			}
+		}
+	}
+
+	public static void main(String [] args)
+		throws Exception
+	{
+		int interval = 4 * TICKS_PER_WEEK;
+		int size = 8;
+		int years = 10;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			}
+			else if (args[i].equals("-interval")) {
+				interval = Integer.parseInt(args[i+1]);
+			}
+			else if (args[i].equals("-size")) {
+				size = Integer.parseInt(args[i+1]);
+			}
+			else if (args[i].equals("-years")) {
+				years = Integer.parseInt(args[i+1]);
+			}
+			else {
+				usage();
+			}
+		}
+		if (args.length - i != 2 || interval < 1) {
+			usage();
+		}
+
+		Micropolis city = new Micropolis();
+		city.load(new File(args[i]));
+
+		long startTime = System.nanoTime();
+		TimelapseRecorder recorder = new TimelapseRecorder(city, new File(args[i+1]), interval, size);
+		recorder.setWaitForEncoder(true);
+		int endTime = city.cityTime + years * 48;
+		while (city.cityTime < endTime) {
+			city.animate();
+		}
+		recorder.close();
+		long elapsed = System.nanoTime() - startTime;
+
+		System.err.printf("%d frames, %d dropped, in %.2f s%n",
+			recorder.getFramesCaptured(), recorder.getFramesDropped(), elapsed / 1e9);
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: java "+TimelapseRecorder.class.getName()+" [-interval TICKS] [-size S] [-years N] CITYFILE OUTPUT");
+		System.exit(2);
+	}
+}